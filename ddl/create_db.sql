@@ -51,6 +51,16 @@ CREATE table cell_suspicious_cohort_members
 CREATE INDEX cscm_ix1 ON cell_suspicious_cohort_members
 (device_id,event_date);
 
+--
+-- Bloom filter of numbers we think are suspicious. See SuspiciousNumberFilter.
+--
+CREATE TABLE suspicious_number_filter
+(filter_name varchar(30) not null primary key
+,filter_version bigint not null
+,entry_count bigint not null
+,filter_bits varbinary(1048576) not null
+,last_built timestamp not null);
+
 CREATE view suspicious_devices_view AS
 SELECT device_id, min(event_date) min_event_date
 , max(event_date) max_event_date
@@ -69,6 +79,9 @@ CREATE table device_table
 ,cell_history_as_string_last6 varchar(120) not null
 ,suspicious_because varchar(1024)
 ,suspicious_value bigint
+,calls_until_eval bigint default 0 not null
+,eval_interval_calls bigint default 1 not null
+,next_eval_time timestamp
 );
 
 PARTITION TABLE device_table ON COLUMN device_id;
@@ -102,6 +115,40 @@ GROUP BY cell_history_as_string_last6;
 
 CREATE INDEX l6c_ix1 ON last_6_cells (how_many) ;
 
+--
+-- Every change to device_table.suspicious_because or suspicious_value.
+-- Rows expire after 7 days; use ALTER TABLE ... USING TTL to keep more.
+--
+CREATE table device_suspicion_log
+(device_id bigint not null 
+,event_time timestamp not null
+,old_suspicious_because varchar(1024)
+,new_suspicious_because varchar(1024)
+,old_suspicious_value bigint
+,new_suspicious_value bigint)
+USING TTL 7 DAYS ON COLUMN event_time;
+
+PARTITION TABLE device_suspicion_log ON COLUMN device_id;
+
+CREATE INDEX dsl_ix1 ON device_suspicion_log (device_id, event_time);
+
+CREATE INDEX dsl_ix2 ON device_suspicion_log (event_time);
+
+--
+-- Detections, for downstream case management. Exported to the
+-- detection_alerts target; see scripts/export_deployment.xml
+--
+CREATE STREAM detection_alerts 
+PARTITION ON COLUMN device_id 
+EXPORT TO TARGET detection_alerts
+(device_id bigint not null 
+,event_time timestamp not null
+,old_suspicious_because varchar(1024)
+,suspicious_because varchar(1024) not null
+,suspicious_value bigint
+,rule_stack varchar(2048)
+,feature_values varchar(2048));
+
 CREATE table device_cell_history
 (device_id bigint not null 
 ,current_cell_id bigint 
@@ -127,6 +174,7 @@ CREATE table device_incoming_call_history
 ,end_time timestamp not null
 ,duration int not null
 ,status_code varchar(1) not null
+,other_number_suspicious tinyint default 0 not null
 ,primary key (device_id,start_time)
 );
 
@@ -147,6 +195,99 @@ CREATE table device_outgoing_call_history
 
 PARTITION TABLE device_outgoing_call_history ON COLUMN device_id;
 
+--
+-- How often each device has called each number in the current bucket.
+-- Buckets are HOURS_BACK_TO_CHECK long; see ReportDeviceActivity.
+--
+CREATE table device_outgoing_number_counts
+(device_id bigint not null 
+,other_number  bigint not null 
+,bucket_start timestamp not null
+,how_many bigint not null
+,primary key (device_id,other_number)
+);
+
+PARTITION TABLE device_outgoing_number_counts ON COLUMN device_id;
+
+CREATE INDEX donc_ix1 ON device_outgoing_number_counts (device_id, bucket_start, how_many, other_number);
+
+--
+-- Fixed size sketches of each device's recent behaviour, for the current
+-- HOURS_BACK_TO_CHECK bucket. See DeviceSketches.
+--
+CREATE table device_sketches
+(device_id bigint not null primary key
+,bucket_start timestamp not null
+,callee_hll varbinary(256) not null
+,caller_hll varbinary(256) not null
+,out_duration_sketch varbinary(516) not null
+,in_duration_sketch varbinary(516) not null
+);
+
+PARTITION TABLE device_sketches ON COLUMN device_id;
+
+--
+-- One row per call and per arrival in a cell. Nothing is kept; it just
+-- feeds cell_minute_activity. The stream is partitioned like the
+-- procedures that write to it, so each partition has its own share of
+-- every cell's totals. Use GetAnomalousCells to read them.
+--
+CREATE STREAM cell_activity_events
+PARTITION ON COLUMN device_id
+(device_id bigint not null
+,cell_id bigint not null
+,event_minute timestamp not null
+,call_count bigint not null
+,call_duration bigint not null
+,active_device_count bigint not null
+,arrival_count bigint not null);
+
+CREATE VIEW cell_minute_activity AS
+SELECT cell_id, event_minute
+     , count(*) how_many
+     , sum(call_count) call_count
+     , sum(call_duration) call_duration
+     , sum(active_device_count) active_device_count
+     , sum(arrival_count) arrival_count
+FROM cell_activity_events
+GROUP BY cell_id, event_minute;
+
+CREATE INDEX cma_ix1 ON cell_minute_activity (event_minute, cell_id);
+
+--
+-- Counters kept by our procedures. A procedure writes one row with a column
+-- per counter to a stream partitioned like the procedure, so counting never
+-- needs a multi partition transaction. A change of verdict adds a row with
+-- flagged_because set. server_stats_view holds one row per flagged_because
+-- per partition; GetServerStats and ShowSimboxActivity__promBL add them up.
+--
+CREATE STREAM server_stat_events
+PARTITION ON COLUMN device_id
+(device_id bigint not null
+,flagged_because varchar(128)
+,incoming_calls bigint not null
+,outgoing_calls bigint not null
+,cell_moves bigint not null
+,flags_cleared bigint not null
+,devices_rescored bigint not null
+,evaluations_run bigint not null
+,evaluations_skipped bigint not null
+,feature_queries_skipped bigint not null);
+
+CREATE VIEW server_stats_view AS
+SELECT flagged_because
+     , count(*) events
+     , sum(incoming_calls) incoming_calls
+     , sum(outgoing_calls) outgoing_calls
+     , sum(cell_moves) cell_moves
+     , sum(flags_cleared) flags_cleared
+     , sum(devices_rescored) devices_rescored
+     , sum(evaluations_run) evaluations_run
+     , sum(evaluations_skipped) evaluations_skipped
+     , sum(feature_queries_skipped) feature_queries_skipped
+FROM server_stat_events
+GROUP BY flagged_because;
+
 
 
 CREATE PROCEDURE 
@@ -166,8 +307,33 @@ CREATE PROCEDURE
    PARTITION ON TABLE device_table COLUMN device_id
    FROM CLASS simbox.GetDevice;
    
+CREATE PROCEDURE 
+   PARTITION ON TABLE device_table COLUMN device_id PARAMETER 0
+   FROM CLASS simbox.BulkLoadDeviceEvents;
+   
+CREATE PROCEDURE 
+   PARTITION ON TABLE device_table COLUMN device_id PARAMETER 0
+   FROM CLASS simbox.BootstrapDevices;
+   
+CREATE PROCEDURE 
+   PARTITION ON TABLE device_table COLUMN device_id PARAMETER 0
+   FROM CLASS simbox.RescoreDevices;
+   
+CREATE PROCEDURE 
+   DIRECTED
+   FROM CLASS simbox.GetAnomalousCells;
+
+CREATE PROCEDURE 
+   FROM CLASS simbox.ResetForBootstrap;       
+
 CREATE PROCEDURE 
    FROM CLASS simbox.NoteSuspiciousCohort;       
+
+CREATE PROCEDURE 
+   FROM CLASS simbox.PublishStats;       
+
+CREATE PROCEDURE 
+   FROM CLASS simbox.RebuildSuspiciousNumberFilter;       
    
 create procedure getSimboxDeviceStatus as 
 select suspicious_because
@@ -177,11 +343,23 @@ where device_id in ?
 group by suspicious_because
 order by suspicious_because;
 
+create procedure getSimboxDeviceDetail as 
+select device_id
+     , suspicious_because
+from device_table 
+where device_id in ?
+order by device_id;
+
 create procedure getSuspectedDeviceSummary AS
 select suspicious_because, how_many  
 from suspicious_totals_view
 order by how_many desc;
 
+create procedure GetParameters AS
+select parameter_name, parameter_value 
+from simbox_parameters
+order by parameter_name;
+
 create procedure clearStats AS
 UPDATE simbox_stats SET stat_value = 0;
 
@@ -201,6 +379,23 @@ select cell_history_as_string_last3
 from last_3_cells
 order by how_many desc limit 1;
 
+CREATE procedure GetServerStats
+DIRECTED
+AS
+select flagged_because, events, incoming_calls, outgoing_calls, cell_moves, flags_cleared
+     , devices_rescored, evaluations_run, evaluations_skipped, feature_queries_skipped
+from server_stats_view
+order by flagged_because;
+
+--
+-- Views on streams don't age out, so old minutes have to be removed
+--
+CREATE procedure PurgeCellActivity
+DIRECTED
+AS
+DELETE FROM cell_minute_activity 
+WHERE event_minute < DATEADD(MINUTE, -1 * ?, TRUNCATE(MINUTE, NOW));
+
 CREATE PROCEDURE ShowSimboxActivity__promBL AS
 BEGIN
 --
@@ -214,6 +409,38 @@ select 'simbox_stats_'||stat_name statname
      , stat_value statvalue 
 from simbox_stats order by stat_name;
 --
+select 'simbox_server_incoming_calls' statname
+     , 'simbox_server_incoming_calls' stathelp
+     , sum(incoming_calls) statvalue
+from server_stats_view
+union all
+select 'simbox_server_outgoing_calls', 'simbox_server_outgoing_calls', sum(outgoing_calls)
+from server_stats_view
+union all
+select 'simbox_server_cell_moves', 'simbox_server_cell_moves', sum(cell_moves)
+from server_stats_view
+union all
+select 'simbox_server_flags_cleared', 'simbox_server_flags_cleared', sum(flags_cleared)
+from server_stats_view
+union all
+select 'simbox_server_devices_rescored', 'simbox_server_devices_rescored', sum(devices_rescored)
+from server_stats_view
+union all
+select 'simbox_server_evaluations_run', 'simbox_server_evaluations_run', sum(evaluations_run)
+from server_stats_view
+union all
+select 'simbox_server_evaluations_skipped', 'simbox_server_evaluations_skipped', sum(evaluations_skipped)
+from server_stats_view
+union all
+select 'simbox_server_feature_queries_skipped', 'simbox_server_feature_queries_skipped'
+     , sum(feature_queries_skipped)
+from server_stats_view
+union all
+select 'simbox_server_flagged_'||flagged_because, 'simbox_server_flagged_'||flagged_because, sum(events)
+from server_stats_view
+where flagged_because is not null
+group by flagged_because;
+--
 END;
 
 
@@ -254,6 +481,21 @@ upsert into simbox_parameters
 VALUES
 ('TOP_BOTTOM_N_RATIO',10);
 
+upsert into simbox_parameters
+(parameter_name,parameter_value)
+VALUES
+('SUSPICION_SCORE_DELTA',10);
+
+upsert into simbox_parameters
+(parameter_name,parameter_value)
+VALUES
+('EVAL_MAX_SKIP_CALLS',8);
+
+upsert into simbox_parameters
+(parameter_name,parameter_value)
+VALUES
+('EVAL_MAX_SKIP_SECONDS',300);
+
 upsert into simbox_parameters
 (parameter_name,parameter_value)
 VALUES
@@ -264,6 +506,21 @@ upsert into simbox_parameters
 VALUES
 ('SIMBOX_CALLS_ITSELF',0);
 
+upsert into simbox_parameters
+(parameter_name,parameter_value)
+VALUES
+('CELL_ANOMALY_RECENT_MINUTES',5);
+
+upsert into simbox_parameters
+(parameter_name,parameter_value)
+VALUES
+('CELL_ANOMALY_BASELINE_MINUTES',60);
+
+upsert into simbox_parameters
+(parameter_name,parameter_value)
+VALUES
+('CELL_ACTIVITY_KEEP_MINUTES',120);
+
 --
 -- We create values for all stats so prometheus works properly...
 --
@@ -1,29 +1,49 @@
 DROP PROCEDURE ReportCellChange IF EXISTS;  
 DROP PROCEDURE RegisterDevice IF EXISTS;  
 DROP PROCEDURE ReportDeviceActivity IF EXISTS;       
+DROP PROCEDURE BulkLoadDeviceEvents IF EXISTS;       
+DROP PROCEDURE BootstrapDevices IF EXISTS;       
+DROP PROCEDURE RescoreDevices IF EXISTS;       
+DROP PROCEDURE ResetForBootstrap IF EXISTS;       
 DROP PROCEDURE NoteSuspiciousCohort IF EXISTS;       
+DROP PROCEDURE PublishStats IF EXISTS;       
+DROP PROCEDURE RebuildSuspiciousNumberFilter IF EXISTS;       
 DROP PROCEDURE getSimboxDeviceStatus IF EXISTS;
+DROP PROCEDURE getSimboxDeviceDetail IF EXISTS;
 DROP PROCEDURE ShowSimboxActivity__promBL IF EXISTS;
 DROP PROCEDURE getSuspectedDeviceSummary IF EXISTS;
 DROP PROCEDURE clearStats IF EXISTS;
+DROP PROCEDURE GetParameters IF EXISTS;
 DROP PROCEDURE GetDevice IF EXISTS;
 DROP PROCEDURE GetPartition6CellRuns IF EXISTS;
 DROP PROCEDURE GetPartition3CellRuns IF EXISTS;
+DROP PROCEDURE GetAnomalousCells IF EXISTS;
+DROP PROCEDURE PurgeCellActivity IF EXISTS;
+DROP PROCEDURE GetServerStats IF EXISTS;
 
 DROP view suspicious_devices_view IF EXISTS;
 DROP VIEW suspicious_totals_view  IF EXISTS;
 DROP VIEW last_3_cells  IF EXISTS;
 DROP VIEW last_6_cells  IF EXISTS;
+DROP VIEW cell_minute_activity IF EXISTS;
+DROP VIEW server_stats_view IF EXISTS;
 
 DROP TABLE simbox_parameters  IF EXISTS;
 DROP TABLE simbox_stats IF EXISTS;
+DROP TABLE suspicious_number_filter IF EXISTS;
 DROP table cell_table IF EXISTS;
 DROP table cell_suspicious_cohorts IF EXISTS;
 DROP table cell_suspicious_cohort_members IF EXISTS;
 DROP table device_table IF EXISTS;
 DROP table device_cell_history IF EXISTS;
+DROP table device_suspicion_log IF EXISTS;
+DROP STREAM detection_alerts IF EXISTS;
 DROP table device_incoming_call_history IF EXISTS;
 DROP table device_outgoing_call_history IF EXISTS;
+DROP table device_outgoing_number_counts IF EXISTS;
+DROP table device_sketches IF EXISTS;
+DROP STREAM cell_activity_events IF EXISTS;
+DROP STREAM server_stat_events IF EXISTS;
 DROP TABLE volt_rules IF EXISTS;
 
 DROP FUNCTION add_new_cell  IF EXISTS;
@@ -0,0 +1,26 @@
+#!/bin/sh
+#
+# Compare ReportDeviceActivity between two checkouts of this repo, each with
+# its jars built, using each checkout's own DDL. Both runs send the same
+# calls, so the tps and latency lines can be compared directly.
+#
+# Usage: benchmark_report_device_activity.sh hostnames beforeDir afterDir [deviceCount tpMs durationSeconds]
+#
+
+. $HOME/.profile
+
+HOSTS=$1
+DEVICES=${4:-100000}
+TPMS=${5:-20}
+DURATION=${6:-300}
+SEED=42
+
+for DIR in $2 $3
+do
+	cd $DIR/ddl
+	sqlcmd --servers=$HOSTS < remove_db.sql
+	sqlcmd --servers=$HOSTS < create_db.sql
+	echo "$DIR:"
+	java ${JVMOPTS} -cp ../jars/voltdb-simbox-client.jar org.voltdb.simbox.ClientTransportBenchmark \
+		$HOSTS $DEVICES $TPMS $DURATION --seed=$SEED --transport=legacy | grep "Legacy:"
+done
@@ -0,0 +1,23 @@
+#!/bin/sh
+#
+# Time device creation with and without --bootstrap for the same userCount.
+# The database is recreated before each run, and durationSeconds is 0, so
+# each run only creates devices and prints how long it took.
+#
+# Usage: measure_bootstrap.sh hostnames [userCount cellCount]
+#
+
+. $HOME/.profile
+
+HOSTS=$1
+USERS=${2:-500000}
+CELLS=${3:-500}
+
+for MODE in "" "--bootstrap"
+do
+	cd ../ddl
+	sqlcmd --servers=$HOSTS < remove_db.sql
+	sqlcmd --servers=$HOSTS < create_db.sql
+	cd ../scripts
+	java ${JVMOPTS} -jar ../jars/voltdb-simbox-client.jar $HOSTS $USERS 90 0 $CELLS 15 --seed=42 $MODE | grep "Took"
+done
@@ -0,0 +1,149 @@
+package simbox;
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.Date;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.types.TimestampType;
+
+/**
+ * Create a batch of brand new devices, each with a history of cell moves,
+ * in one transaction. This is what the generator's bootstrap mode uses
+ * instead of one 'RegisterDevice' and several 'ReportCellChange' calls per
+ * device.
+ * <p>
+ * Cell history strings are built here in Java instead of by repeated updates.
+ * We don't look for existing rows, so the caller has to know the ids are new;
+ * see ResetForBootstrap.
+ *
+ */
+public class BootstrapDevices extends VoltProcedure {
+
+    // @formatter:off
+
+    public static final SQLStmt createNewDevice = new SQLStmt(
+            "INSERT INTO device_table "
+            + "(device_id,current_cell_id,first_seen,last_seen"
+            + ",cell_history_as_string,cell_history_as_string_last3,cell_history_as_string_last6"
+            + ",suspicious_because,suspicious_value)"
+            + "VALUES"
+            + "(?,?,?,NOW,?,?,?,null,null);");
+
+    public static final SQLStmt createDeviceCellHist = new SQLStmt(
+            "INSERT INTO device_cell_history "
+            + "(device_id,current_cell_id,from_timestamp"
+            + ",to_timestamp)"
+            + "VALUES"
+            + "(?,?,?,?);");
+
+    public static final SQLStmt createCurrentCellHist = new SQLStmt(
+            "INSERT INTO device_cell_history "
+            + "(device_id,current_cell_id,from_timestamp"
+            + ",to_timestamp)"
+            + "VALUES"
+            + "(?,?,?,MAX_VALID_TIMESTAMP());");
+
+ 	// @formatter:on
+
+    /**
+     * Most statements we queue before executing them. VoltDB allows 200.
+     */
+    private static final int MAX_QUEUED_STATEMENTS = 196;
+
+    /**
+     * Time between the moves we make up, in ms
+     */
+    private static final long MOVE_INTERVAL_MS = 1000;
+
+    /**
+     * Builds cell history strings
+     */
+    private final CellHistoryAsStringWrangler wrangler = new CellHistoryAsStringWrangler();
+
+    /**
+     * @param partitionKey  a device id in the partition this batch is for
+     * @param deviceIds
+     * @param createDatesMs
+     * @param cellPaths     for each device, the cell it starts in followed by
+     *                      'moveCount' cells it moves to
+     * @param moveCount
+     * @return
+     * @throws VoltAbortException
+     */
+    public VoltTable[] run(long partitionKey, long[] deviceIds, long[] createDatesMs, long[] cellPaths,
+            int moveCount) throws VoltAbortException {
+
+        final int pathLength = moveCount + 1;
+
+        if (createDatesMs.length != deviceIds.length || cellPaths.length != deviceIds.length * pathLength) {
+            throw new VoltAbortException("Expected " + deviceIds.length + " create dates and "
+                    + (deviceIds.length * pathLength) + " cells");
+        }
+
+        final long nowMs = getTransactionTime().getTime();
+        final int statementsPerDevice = 1 + pathLength;
+        int queued = 0;
+
+        for (int i = 0; i < deviceIds.length; i++) {
+
+            if (queued + statementsPerDevice > MAX_QUEUED_STATEMENTS) {
+                voltExecuteSQL();
+                queued = 0;
+            }
+
+            final long deviceId = deviceIds[i];
+            final int pathStart = i * pathLength;
+            String history = null;
+
+            // The last move happens now, earlier ones a little before...
+            for (int j = 0; j < pathLength; j++) {
+
+                final long cellId = cellPaths[pathStart + j];
+                final long fromMs = nowMs - ((moveCount - j) * MOVE_INTERVAL_MS);
+                final TimestampType from = new TimestampType(new Date(fromMs));
+
+                history = wrangler.addNewCell(history, cellId, from);
+
+                if (j == moveCount) {
+                    voltQueueSQL(createCurrentCellHist, deviceId, cellId, from);
+                } else {
+                    voltQueueSQL(createDeviceCellHist, deviceId, cellId, from,
+                            new TimestampType(((fromMs + MOVE_INTERVAL_MS) * 1000) - 1));
+                }
+            }
+
+            voltQueueSQL(createNewDevice, deviceId, cellPaths[pathStart + moveCount],
+                    new TimestampType(new Date(createDatesMs[i])), history, wrangler.getLastN(history, 3),
+                    wrangler.getLastN(history, 6));
+
+            queued += statementsPerDevice;
+        }
+
+        return voltExecuteSQL(true);
+    }
+}
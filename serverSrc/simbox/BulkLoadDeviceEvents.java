@@ -0,0 +1,235 @@
+package simbox;
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.types.TimestampType;
+
+/**
+ * Load a batch of historical device events in one transaction. Used by
+ * CdrBulkImporter for backfills.
+ * <p>
+ * Every device in the batch must be in the same partition as
+ * 'partitionKey', and the events for each device must be in time order with
+ * its registration first. Unlike the per event procedures we trust our input
+ * and don't run the rules engine; devices are scored when they next make a
+ * call.
+ *
+ */
+public class BulkLoadDeviceEvents extends VoltProcedure {
+
+    /**
+     * A device being registered
+     */
+    public static final int TYPE_REGISTER = 1;
+
+    /**
+     * A device changing cell
+     */
+    public static final int TYPE_CELL_CHANGE = 2;
+
+    /**
+     * An incoming call leg
+     */
+    public static final int TYPE_CALL_IN = 3;
+
+    /**
+     * An outgoing call leg
+     */
+    public static final int TYPE_CALL_OUT = 4;
+
+    // @formatter:off
+
+    public static final SQLStmt upsertDevice = new SQLStmt(
+            "UPSERT INTO device_table "
+            + "(device_id,current_cell_id,first_seen,last_seen"
+            + ",cell_history_as_string,cell_history_as_string_last3,cell_history_as_string_last6"
+            + ",suspicious_because,suspicious_value)"
+            + "VALUES"
+            + "(?,?,?,?"
+            + ",add_new_cell(null, ?,?),add_new_cell(null, ?,?),add_new_cell(null, ?,?) "
+            + ",null,null);");
+
+    public static final SQLStmt updateCurrentCell1 = new SQLStmt(
+            "UPDATE device_table "
+            + "SET current_cell_id = ? "
+            + "  , cell_history_as_string = add_new_cell(cell_history_as_string, ?,?) "
+            + "WHERE device_id = ?;");
+
+    public static final SQLStmt updateCurrentCell2 = new SQLStmt(
+            "UPDATE device_table "
+            + "SET cell_history_as_string_last3 = get_last_n_cells(cell_history_as_string,3) "
+            + "  , cell_history_as_string_last6 = get_last_n_cells(cell_history_as_string,6) "
+            + "  , last_seen = ? "
+            + "WHERE device_id = ?;");
+
+    public static final SQLStmt finishCurrentCellHist = new SQLStmt(
+            "UPDATE device_cell_history "
+            + "SET to_timestamp = DATEADD(MICROSECOND, -1, ?) "
+            + "WHERE device_id = ? "
+            + "AND   to_timestamp = MAX_VALID_TIMESTAMP();");
+
+    public static final SQLStmt upsertCellHist = new SQLStmt(
+            "UPSERT INTO device_cell_history "
+            + "(device_id,current_cell_id,from_timestamp"
+            + ",to_timestamp)"
+            + "VALUES"
+            + "(?,?,?,MAX_VALID_TIMESTAMP());");
+
+    public static final SQLStmt upsertInCall = new SQLStmt(
+            "UPSERT INTO device_incoming_call_history "
+            + "(other_number, cell_id, end_time, duration, status_code, device_id, start_time) "
+            + "VALUES "
+            + "(?,?,?,?,?,?,?)");
+
+    public static final SQLStmt upsertOutCall = new SQLStmt(
+            "UPSERT INTO device_outgoing_call_history "
+            + "(other_number, cell_id, end_time, duration, status_code, device_id, start_time) "
+            + "VALUES "
+            + "(?,?,?,?,?,?,?)");
+
+    public static final SQLStmt incrementCallHistory = new SQLStmt(
+            "UPDATE device_cell_history "
+            + "SET incoming_call_count = incoming_call_count + ? "
+            + "  , outgoing_call_count = outgoing_call_count + ? "
+            + "  , incoming_call_duration = incoming_call_duration + ? "
+            + "  , outgoing_call_duration = outgoing_call_duration + ? "
+            + "WHERE device_id = ? AND to_timestamp = MAX_VALID_TIMESTAMP();");
+
+    public static final SQLStmt updateDeviceLastSeen = new SQLStmt(
+            "UPDATE device_table "
+            + "SET last_seen = ? "
+            + "WHERE device_id = ?;");
+
+ 	// @formatter:on
+
+    /**
+     * Most statements we queue before executing them. VoltDB allows 200.
+     */
+    private static final int MAX_QUEUED_STATEMENTS = 196;
+
+    /**
+     * How many statements are queued but not executed
+     */
+    private int queued = 0;
+
+    /**
+     * @param partitionKey       a device id in the partition this batch is for
+     * @param eventTypes         TYPE_REGISTER, TYPE_CELL_CHANGE, TYPE_CALL_IN
+     *                           or TYPE_CALL_OUT
+     * @param deviceIds
+     * @param otherNumbers       other number for calls, otherwise ignored
+     * @param cellIds
+     * @param eventTimesMs       for registrations this is the create date
+     * @param durationsSeconds   for calls, otherwise ignored
+     * @param statusCodes        for calls, otherwise ignored
+     * @return
+     * @throws VoltAbortException
+     */
+    public VoltTable[] run(long partitionKey, int[] eventTypes, long[] deviceIds, long[] otherNumbers,
+            long[] cellIds, long[] eventTimesMs, int[] durationsSeconds, String[] statusCodes)
+            throws VoltAbortException {
+
+        final int eventCount = eventTypes.length;
+
+        if (deviceIds.length != eventCount || otherNumbers.length != eventCount || cellIds.length != eventCount
+                || eventTimesMs.length != eventCount || durationsSeconds.length != eventCount
+                || statusCodes.length != eventCount) {
+            throw new VoltAbortException("All arrays must have " + eventCount + " entries");
+        }
+
+        queued = 0;
+
+        for (int i = 0; i < eventCount; i++) {
+
+            final long deviceId = deviceIds[i];
+            final long cellId = cellIds[i];
+            final TimestampType eventTime = new TimestampType(eventTimesMs[i] * 1000);
+
+            switch (eventTypes[i]) {
+
+            case TYPE_REGISTER:
+                makeRoomFor(2);
+                voltQueueSQL(upsertDevice, deviceId, cellId, eventTime, eventTime, cellId, eventTime, cellId,
+                        eventTime, cellId, eventTime);
+                voltQueueSQL(upsertCellHist, deviceId, cellId, eventTime);
+                break;
+
+            case TYPE_CELL_CHANGE:
+                makeRoomFor(4);
+                voltQueueSQL(updateCurrentCell1, cellId, cellId, eventTime, deviceId);
+                voltQueueSQL(updateCurrentCell2, eventTime, deviceId);
+                voltQueueSQL(finishCurrentCellHist, eventTime, deviceId);
+                voltQueueSQL(upsertCellHist, deviceId, cellId, eventTime);
+                break;
+
+            case TYPE_CALL_IN:
+            case TYPE_CALL_OUT:
+
+                final int duration = durationsSeconds[i];
+                final TimestampType endTime = new TimestampType((eventTimesMs[i] + (1000L * duration)) * 1000);
+
+                makeRoomFor(3);
+
+                if (eventTypes[i] == TYPE_CALL_IN) {
+                    voltQueueSQL(upsertInCall, otherNumbers[i], cellId, endTime, duration, statusCodes[i], deviceId,
+                            eventTime);
+                    voltQueueSQL(incrementCallHistory, 1, 0, duration, 0, deviceId);
+                } else {
+                    voltQueueSQL(upsertOutCall, otherNumbers[i], cellId, endTime, duration, statusCodes[i],
+                            deviceId, eventTime);
+                    voltQueueSQL(incrementCallHistory, 0, 1, 0, duration, deviceId);
+                }
+
+                voltQueueSQL(updateDeviceLastSeen, eventTime, deviceId);
+                break;
+
+            default:
+                throw new VoltAbortException("Unknown event type " + eventTypes[i] + " for device " + deviceId);
+            }
+
+        }
+
+        return voltExecuteSQL(true);
+    }
+
+    /**
+     * Execute what we've queued if another 'statementCount' statements won't
+     * fit in the batch.
+     * 
+     * @param statementCount
+     */
+    private void makeRoomFor(int statementCount) {
+
+        if (queued + statementCount > MAX_QUEUED_STATEMENTS) {
+            voltExecuteSQL();
+            queued = 0;
+        }
+
+        queued += statementCount;
+    }
+}
@@ -0,0 +1,141 @@
+package simbox;
+
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.VoltTable;
+
+/**
+ * The simbox_parameters values that drive a detection. They're read in one
+ * go by {@link DeviceDetectionProcedure#queueDetectionParameters()}.
+ *
+ */
+public class DetectionParameters {
+
+    /**
+     * How many statements queueDetectionParameters() adds to a batch
+     */
+    public static final int QUERY_COUNT = 11;
+
+    /**
+     * Minimum number of outgoing calls before we look at how busy a device is
+     */
+    public final long outgoingCallThreshold;
+
+    /**
+     * Minimum number of incoming calls before we look at how busy a device is
+     */
+    public final long incomingCallThreshold;
+
+    /**
+     * How many times more outgoing than incoming calls is suspicious
+     */
+    public final long outgoingIncoming;
+
+    /**
+     * Devices first seen longer ago than this aren't checked
+     */
+    public final long notNewAnyMoreDays;
+
+    /**
+     * % of time in calls that counts as busy
+     */
+    public final long busynessPercentage;
+
+    /**
+     * How far back our features look
+     */
+    public final long hoursBackToCheck;
+
+    /**
+     * How many numbers we use for the top and bottom N ratio
+     */
+    public final long topN;
+
+    /**
+     * Top N : bottom N ratio below which we're suspicious
+     */
+    public final long topBottomNRatio;
+
+    /**
+     * How much a score has to move before we write it again
+     */
+    public final long suspicionScoreDelta;
+
+    /**
+     * Most calls a device can make between evaluations. 0 means every call
+     * is evaluated.
+     */
+    public final long evalMaxSkipCalls;
+
+    /**
+     * Longest time a device can go between evaluations while it's making
+     * calls
+     */
+    public final long evalMaxSkipSeconds;
+
+    /**
+     * @param results output of a batch that started with
+     *                queueDetectionParameters()
+     * @param offset  where in 'results' our statements start
+     */
+    DetectionParameters(VoltTable[] results, int offset) {
+        super();
+        outgoingCallThreshold = getParameter(2, results[offset]);
+        incomingCallThreshold = getParameter(2, results[offset + 1]);
+        outgoingIncoming = getParameter(10, results[offset + 2]);
+        notNewAnyMoreDays = getParameter(10, results[offset + 3]);
+        busynessPercentage = getParameter(30, results[offset + 4]);
+        hoursBackToCheck = getParameter(3, results[offset + 5]);
+        topN = getParameter(5, results[offset + 6]);
+        topBottomNRatio = getParameter(10, results[offset + 7]);
+        suspicionScoreDelta = getParameter(10, results[offset + 8]);
+        evalMaxSkipCalls = getParameter(8, results[offset + 9]);
+        evalMaxSkipSeconds = getParameter(300, results[offset + 10]);
+    }
+
+    /**
+     * @param transactionTimeMs
+     * @return devices first seen before this are too old to worry about
+     */
+    public long getYoungestOldDeviceMs(long transactionTimeMs) {
+        return transactionTimeMs - (notNewAnyMoreDays * 24 * 60 * 60 * 1000);
+    }
+
+    /**
+     * Get a parameter or its default value
+     * 
+     * @param value          - default value
+     * @param parameterTable
+     * @return a parameter or its default value
+     */
+    static long getParameter(long value, VoltTable parameterTable) {
+        if (parameterTable.advanceRow()) {
+            value = parameterTable.getLong("parameter_value");
+        }
+        return value;
+    }
+
+}
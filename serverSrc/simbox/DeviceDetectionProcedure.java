@@ -0,0 +1,1015 @@
+package simbox;
+
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.types.TimestampType;
+
+import org.voltdbse.rules.BadRuleException;
+import org.voltdbse.rules.RuleSet;
+
+/**
+ * The feature and rule pipeline shared by everything that decides whether a
+ * device is in a simbox. ReportDeviceActivity runs it as calls arrive and
+ * RescoreDevices runs it over devices that have gone quiet, so both reach
+ * the same verdict from the same data.
+ *
+ */
+public abstract class DeviceDetectionProcedure extends VoltProcedure {
+
+    // @formatter:off
+
+    public static final SQLStmt getParameter = new SQLStmt(
+            "SELECT parameter_value FROM simbox_parameters WHERE parameter_name = ?;");
+
+    public static final SQLStmt getDeviceCellHistory = new SQLStmt(
+            "SELECT min(from_timestamp) from_timestamp"
+            + "    , sum(incoming_call_count) incoming_call_count"
+            + "    , sum(outgoing_call_count) outgoing_call_count "
+            + "    , sum(incoming_call_duration) incoming_call_duration"
+            + "    , sum(outgoing_call_duration) outgoing_call_duration "
+            + "FROM device_cell_history "
+            + "WHERE device_id = ? "
+            + "AND   from_timestamp >= DATEADD(HOUR, -1 * ?, NOW) ; ");
+
+    public static final SQLStmt getDeviceOutgoingHistorySummary = new SQLStmt(
+            "SELECT min(start_time) start_time"
+            + "    ,max(end_time) end_time"
+            + "    , sum(duration) duration "
+            + "    , count(*) how_many "
+            + "FROM device_outgoing_call_history "
+            + "WHERE device_id = ? "
+            + "AND   start_time >= DATEADD(HOUR, -1 * ?, NOW) ; ");
+
+    public static final SQLStmt getDeviceSketches = new SQLStmt(
+            "SELECT * FROM device_sketches WHERE device_id = ?;");
+
+    public static final SQLStmt getTopOutgoingNumberCounts = new SQLStmt(
+            "SELECT other_number, how_many "
+            + "FROM device_outgoing_number_counts "
+            + "WHERE device_id = ? "
+            + "AND   bucket_start = ? "
+            + "ORDER BY how_many DESC, other_number DESC LIMIT ?;");
+
+    public static final SQLStmt getBottomOutgoingNumberCounts = new SQLStmt(
+            "SELECT other_number, how_many "
+            + "FROM device_outgoing_number_counts "
+            + "WHERE device_id = ? "
+            + "AND   bucket_start = ? "
+            + "ORDER BY how_many, other_number LIMIT ?;");
+
+    public static final SQLStmt getDeviceIncomingHistorySummary = new SQLStmt(
+            "SELECT min(start_time) start_time"
+            + "    ,max(end_time) end_time"
+            + "    , sum(duration) duration "
+            + "    , count(*) how_many "
+            + "FROM device_incoming_call_history "
+            + "WHERE device_id = ? "
+            + "AND   start_time >= DATEADD(HOUR, -1 * ?, NOW) ; ");
+
+    public static final SQLStmt getSuspiciousDeviceIncomingHistorySummary = new SQLStmt(
+            "SELECT min(start_time) start_time"
+            + "    ,max(end_time) end_time"
+            + "    , sum(duration) duration "
+            + "    , count(*) how_many "
+            + "FROM device_incoming_call_history "
+            + "WHERE device_id = ? "
+            + "AND   start_time >= DATEADD(HOUR, -1 * ?, NOW) "
+            + "AND   other_number_suspicious = 1 ; ");
+
+
+    public static final SQLStmt getSuspiciousDevice = new SQLStmt(
+            "SELECT * FROM suspicious_devices_view WHERE device_id = ?;");
+
+ 
+    public static final SQLStmt flagDevice = new SQLStmt(
+            "UPDATE device_table "
+            + "SET suspicious_because = ?"
+            + "  , suspicious_value = ? "
+            + "WHERE device_id = ?;");
+
+
+    public static final SQLStmt clearDevice = new SQLStmt(
+            "UPDATE device_table "
+            + "SET suspicious_because = null"
+            + "  , suspicious_value = null "
+            + "WHERE device_id = ?;");
+
+    public static final SQLStmt logSuspicionChange = new SQLStmt(
+            "INSERT INTO device_suspicion_log "
+            + "(device_id, event_time, old_suspicious_because, new_suspicious_because"
+            + ", old_suspicious_value, new_suspicious_value) "
+            + "VALUES (?,NOW,?,?,?,?);");
+
+    public static final SQLStmt publishAlert = new SQLStmt(
+            "INSERT INTO detection_alerts "
+            + "(device_id, event_time, old_suspicious_because, suspicious_because"
+            + ", suspicious_value, rule_stack, feature_values) "
+            + "VALUES (?,NOW,?,?,?,?,?);");
+    
+    public static final SQLStmt countServerStats = new SQLStmt(
+            "INSERT INTO server_stat_events "
+            + "(device_id, flagged_because, incoming_calls, outgoing_calls, cell_moves, flags_cleared"
+            + ", devices_rescored, evaluations_run, evaluations_skipped, feature_queries_skipped) "
+            + "VALUES (?,?,?,?,?,?,?,?,?,?);");
+
+    public static final SQLStmt getRules = new SQLStmt(RuleSet.GET_RULE_SET);
+
+    public static final SQLStmt getSuspiciousNumberFilterVersion = new SQLStmt(
+            "SELECT filter_version FROM suspicious_number_filter WHERE filter_name = ?;");
+
+    public static final SQLStmt getSuspiciousNumberFilter = new SQLStmt(
+            "SELECT filter_version, filter_bits FROM suspicious_number_filter WHERE filter_name = ?;");
+
+
+	// @formatter:on
+
+    /**
+     * How many statements queueFeatureQueries() adds to a batch
+     */
+    protected static final int FEATURE_QUERY_COUNT = 6;
+
+    /**
+     * Order of getTopOutgoingNumberCounts
+     */
+    private static final Comparator<long[]> BUSIEST_FIRST = new Comparator<long[]>() {
+        @Override
+        public int compare(long[] o1, long[] o2) {
+            if (o1[1] != o2[1]) {
+                return Long.compare(o2[1], o1[1]);
+            }
+            return Long.compare(o2[0], o1[0]);
+        }
+    };
+
+    /**
+     * Order of getBottomOutgoingNumberCounts
+     */
+    private static final Comparator<long[]> QUIETEST_FIRST = new Comparator<long[]>() {
+        @Override
+        public int compare(long[] o1, long[] o2) {
+            if (o1[1] != o2[1]) {
+                return Long.compare(o1[1], o2[1]);
+            }
+            return Long.compare(o1[0], o2[0]);
+        }
+    };
+
+    /**
+     * Which feature we store as 'suspicious_value' for each rule stack. Stacks
+     * not listed use actualBusynessPercentage.
+     */
+    private static final HashMap<String, String> SCORE_FEATURES = new HashMap<String, String>();
+
+    /**
+     * Score for stacks not in SCORE_FEATURES
+     */
+    private static final String DEFAULT_SCORE_FEATURE = "actualBusynessPercentage";
+
+    /**
+     * Size of the string columns in 'detection_alerts'
+     */
+    private static final int MAX_ALERT_STRING_LENGTH = 2048;
+
+    static {
+        SCORE_FEATURES.put("all_incoming_calls_from_known_bad_numbers", "actualBusyInCallSuspicuousPct");
+        SCORE_FEATURES.put("some_incoming_calls_from_known_bad_numbers", "actualBusyInCallSuspicuousPct");
+        SCORE_FEATURES.put("suspicious_device_has_no_incoming_calls", "actualBusyOutCallPct");
+        SCORE_FEATURES.put("suspiciously_moving_device", "actualBusyOutCallPct");
+        SCORE_FEATURES.put("total_incoming_outgoing_ratio_bad", "actualBusynessPercentage");
+        SCORE_FEATURES.put("topn_incoming_outgoing_ratio_bad", "outCallTopBottomNRatio");
+    }
+    
+    RuleSet rs = null;
+
+    /**
+     * Which feature queries 'rs' can need. Rebuilt whenever 'rs' is.
+     */
+    RulePlan plan = null;
+
+    /**
+     * Numbers we think are suspicious. Null if the filter hasn't been built yet.
+     */
+    SuspiciousNumberFilter snf = null;
+
+    /**
+     * When we next check for a new version of 'snf'
+     */
+    Date snfExpiryDate = null;
+
+    /**
+     * Features from the last call to evaluateDevice()
+     */
+    HashMap<String, Double> lastFeatures = null;
+
+    /**
+     * Rule stack the last call to evaluateDevice() tripped, or null
+     */
+    String lastVerdict = null;
+
+    /**
+     * Parameters as of the last time we read them
+     */
+    DetectionParameters cachedParams = null;
+
+    /**
+     * When we next read 'cachedParams'
+     */
+    Date cachedParamsExpiryDate = null;
+
+    /**
+     * Make sure our rules and suspicious number filter are current. Call
+     * this before anything else in run().
+     */
+    protected void refreshRulesAndFilter() {
+        refreshRulesAndFilter(false);
+    }
+
+    /**
+     * Make sure our rules and suspicious number filter are current. Call
+     * this before anything else in run().
+     * 
+     * @param force true to read them now, even if we read them less than a
+     *              minute ago
+     */
+    protected void refreshRulesAndFilter(boolean force) {
+
+        if (force || rs == null || rs.expired(getTransactionTime())) {
+            try {
+                rs = createRuleSet("SIMBOX");
+            } catch (BadRuleException e) {
+                throw new VoltAbortException("BadRuleException:"+e.getMessage());
+            }
+        }
+
+        if (force || snfExpiryDate == null || !getTransactionTime().before(snfExpiryDate)) {
+            refreshSuspiciousNumberFilter();
+        }
+    }
+
+    /**
+     * @param otherNumber
+     * @return true if 'otherNumber' is in the suspicious number filter
+     */
+    protected boolean isSuspiciousNumber(long otherNumber) {
+        return snf != null && snf.mightContain(otherNumber);
+    }
+
+    private RuleSet createRuleSet(String ruleSetName) throws BadRuleException {
+        
+        final Date expiryDate = new Date(getTransactionTime().getTime() + 60000);
+        
+        voltQueueSQL(getRules, ruleSetName);
+
+        VoltTable ruleTable = voltExecuteSQL()[0];
+        
+        RuleSet rs = new RuleSet(ruleSetName,ruleTable,expiryDate);
+
+        plan = new RulePlan(ruleTable, SCORE_FEATURES, DEFAULT_SCORE_FEATURE);
+        
+        return rs;
+   }
+
+    /**
+     * See if a new suspicious number filter has been stored. We only read the
+     * filter itself if its version has changed and no other site in this JVM
+     * has already decoded it.
+     */
+    private void refreshSuspiciousNumberFilter() {
+
+        snfExpiryDate = new Date(getTransactionTime().getTime() + 60000);
+
+        voltQueueSQL(getSuspiciousNumberFilterVersion, SuspiciousNumberFilter.FILTER_NAME);
+        VoltTable versionTable = voltExecuteSQL()[0];
+
+        if (!versionTable.advanceRow()) {
+            snf = null;
+            return;
+        }
+
+        final long version = versionTable.getLong("filter_version");
+
+        if (snf != null && snf.getVersion() == version) {
+            return;
+        }
+
+        SuspiciousNumberFilter sharedFilter = SuspiciousNumberFilter.getShared(version);
+
+        if (sharedFilter != null) {
+            snf = sharedFilter;
+            return;
+        }
+
+        voltQueueSQL(getSuspiciousNumberFilter, SuspiciousNumberFilter.FILTER_NAME);
+        VoltTable filterTable = voltExecuteSQL()[0];
+
+        if (filterTable.advanceRow()) {
+            snf = SuspiciousNumberFilter.decode(filterTable.getLong("filter_version"),
+                    filterTable.getVarbinary("filter_bits"));
+        }
+    }
+
+
+    /**
+     * Get the parameters that affect the decision making logic. Like our
+     * rules they're read at most once a minute, so changes take up to a
+     * minute to be seen.
+     * 
+     * @return current parameters
+     */
+    protected DetectionParameters getDetectionParameters() {
+        return getDetectionParameters(false);
+    }
+
+    /**
+     * Get the parameters that affect the decision making logic.
+     * 
+     * @param force true to read them now, even if we read them less than a
+     *              minute ago
+     * @return current parameters
+     */
+    protected DetectionParameters getDetectionParameters(boolean force) {
+
+        if (force || cachedParams == null || !getTransactionTime().before(cachedParamsExpiryDate)) {
+
+            cachedParamsExpiryDate = new Date(getTransactionTime().getTime() + 60000);
+
+            queueDetectionParameters();
+            cachedParams = new DetectionParameters(voltExecuteSQL(), 0);
+        }
+
+        return cachedParams;
+    }
+
+    /**
+     * Queue the reads for the parameters that affect the decision making
+     * logic. There are DetectionParameters.QUERY_COUNT of them.
+     */
+    protected void queueDetectionParameters() {
+        voltQueueSQL(getParameter, "OUTGOING_CALL_ONLY_COUNT");
+        voltQueueSQL(getParameter, "IMCOMING_CALL_ONLY_COUNT");
+        voltQueueSQL(getParameter, "OUTGOING_INCOMING_RATIO");
+        voltQueueSQL(getParameter, "NOT_NEW_ANY_MORE_DAYS");
+        voltQueueSQL(getParameter, "BUSYNESS_PERCENTAGE");
+        voltQueueSQL(getParameter, "HOURS_BACK_TO_CHECK");
+        voltQueueSQL(getParameter, "TOP_N");
+        voltQueueSQL(getParameter, "TOP_BOTTOM_N_RATIO");
+        voltQueueSQL(getParameter, "SUSPICION_SCORE_DELTA");
+        voltQueueSQL(getParameter, "EVAL_MAX_SKIP_CALLS");
+        voltQueueSQL(getParameter, "EVAL_MAX_SKIP_SECONDS");
+    }
+
+    /**
+     * Work out which feature queries the current rules need for a device,
+     * using only what we know without running any of them.
+     * 
+     * @param params
+     * @param thisDeviceIsSuspicious
+     * @param otherNumberIsSuspicious
+     * @param sketches
+     * @return a mask of RulePlan query flags
+     */
+    protected int getNeededFeatureQueries(DetectionParameters params, boolean thisDeviceIsSuspicious,
+            boolean otherNumberIsSuspicious, DeviceSketches sketches) {
+
+        HashMap<String, Double> freeFeatures = new HashMap<String, Double>();
+        putFreeFeatures(freeFeatures, params, thisDeviceIsSuspicious, otherNumberIsSuspicious, sketches);
+
+        return plan.getNeededQueries(freeFeatures);
+    }
+
+    /**
+     * Queue the reads our features are built from. There are up to
+     * FEATURE_QUERY_COUNT of them.
+     * 
+     * @param deviceId
+     * @param params
+     * @param bucketStart start of the current per number count bucket
+     * @param queries     a mask of RulePlan query flags
+     */
+    protected void queueFeatureQueries(long deviceId, DetectionParameters params, TimestampType bucketStart,
+            int queries) {
+
+        if ((queries & RulePlan.CELL_HISTORY) != 0) {
+            voltQueueSQL(getDeviceCellHistory, deviceId, params.hoursBackToCheck);
+        }
+
+        if ((queries & RulePlan.OUTGOING_SUMMARY) != 0) {
+            voltQueueSQL(getDeviceOutgoingHistorySummary, deviceId, params.hoursBackToCheck);
+        }
+
+        if ((queries & RulePlan.INCOMING_SUMMARY) != 0) {
+            voltQueueSQL(getDeviceIncomingHistorySummary, deviceId, params.hoursBackToCheck);
+        }
+
+        if ((queries & RulePlan.SUSPICIOUS_INCOMING_SUMMARY) != 0) {
+            voltQueueSQL(getSuspiciousDeviceIncomingHistorySummary, deviceId, params.hoursBackToCheck);
+        }
+
+        if ((queries & RulePlan.NUMBER_COUNTS) != 0) {
+            voltQueueSQL(getTopOutgoingNumberCounts, deviceId, bucketStart, params.topN + 1);
+            voltQueueSQL(getBottomOutgoingNumberCounts, deviceId, bucketStart, params.topN + 1);
+        }
+    }
+
+    /**
+     * Work out a device's features, run the rules over them and queue
+     * whatever changes to 'device_table' the verdict needs. Nothing is
+     * executed.
+     * 
+     * @param deviceId
+     * @param params
+     * @param thisDeviceIsSuspicious  true if the device is in a suspicious cohort
+     * @param otherNumberIsSuspicious true if the number on the call we're
+     *                                looking at is in the suspicious number
+     *                                filter
+     * @param sketches                the device's sketches
+     * @param suspiciousBecause       current verdict, or null
+     * @param suspiciousValue         current score
+     * @param suspiciousValueIsNull
+     * @param results                 output of a batch that included
+     *                                queueFeatureQueries()
+     * @param offset                  where in 'results' our statements start
+     * @param queries                 the RulePlan query flags passed to
+     *                                queueFeatureQueries(). Features built
+     *                                from other queries are set to
+     *                                RulePlan.NOT_FETCHED.
+     * @param pendingCall             a call 'results' doesn't include yet, or
+     *                                null
+     * @return true if the verdict or score changed
+     */
+    @SuppressWarnings("unused")
+    protected boolean evaluateDevice(long deviceId, DetectionParameters params, boolean thisDeviceIsSuspicious,
+            boolean otherNumberIsSuspicious, DeviceSketches sketches, String suspiciousBecause, long suspiciousValue,
+            boolean suspiciousValueIsNull, VoltTable[] results, int offset, int queries, PendingCall pendingCall) {
+
+        HashMap<String, Double> theNumericValues = new  HashMap<String, Double>();
+        HashMap<String, String> theStringValues = new HashMap<String, String>();
+
+        lastFeatures = null;
+        lastVerdict = null;
+
+        final long outgoingCallThreshold = params.outgoingCallThreshold;
+        final long incomingCallThreshold = params.incomingCallThreshold;
+        final long outgoingIncoming = params.outgoingIncoming;
+        final long busynessPercentage = params.busynessPercentage;
+        final long topN = params.topN;
+        final long topBottomNRatio = params.topBottomNRatio;
+        final long suspicionScoreDelta = params.suspicionScoreDelta;
+
+        long incomingCallCount = 0;
+        long incomingCallDuration;
+        long outgoingCallCount = 0;
+        long outgoingCallDuration;
+
+        // Find where each query we ran ended up...
+        VoltTable[] featureResults = new VoltTable[FEATURE_QUERY_COUNT];
+        final int[] queryFlags = { RulePlan.CELL_HISTORY, RulePlan.OUTGOING_SUMMARY, RulePlan.INCOMING_SUMMARY,
+                RulePlan.SUSPICIOUS_INCOMING_SUMMARY, RulePlan.NUMBER_COUNTS, RulePlan.NUMBER_COUNTS };
+
+        for (int i = 0; i < FEATURE_QUERY_COUNT; i++) {
+            if ((queries & queryFlags[i]) != 0) {
+                featureResults[i] = results[offset++];
+            }
+        }
+
+        VoltTable cellHistory = featureResults[0];
+        if (cellHistory != null && cellHistory.advanceRow()) {
+
+            incomingCallCount = cellHistory.getLong("incoming_call_count");
+            incomingCallDuration = cellHistory.getLong("incoming_call_duration");
+            outgoingCallCount = cellHistory.getLong("outgoing_call_count");
+            outgoingCallDuration = cellHistory.getLong("outgoing_call_duration");
+
+            // The pending call goes on the current cell history row, which
+            // is in our window if any row is
+            if (pendingCall != null && cellHistory.getTimestampAsTimestamp("from_timestamp") != null) {
+                if (pendingCall.isOutgoing()) {
+                    outgoingCallCount++;
+                } else {
+                    incomingCallCount++;
+                }
+            }
+
+        }
+
+        CallSummary outCallHistory = new CallSummary(featureResults[1]);
+        CallSummary inCallHistory = new CallSummary(featureResults[2]);
+        CallSummary suspiciousInCallHistory = new CallSummary(featureResults[3]);
+
+        if (pendingCall != null && pendingCall.getStartMs() >= getTransactionTime().getTime()
+                - (params.hoursBackToCheck * 60 * 60 * 1000)) {
+
+            if (pendingCall.isOutgoing()) {
+                outCallHistory.add(pendingCall);
+            } else {
+                inCallHistory.add(pendingCall);
+
+                if (pendingCall.isOtherNumberSuspicious()) {
+                    suspiciousInCallHistory.add(pendingCall);
+                }
+            }
+        }
+
+        long actualBusyOutCallPct = getActualBusyOutCallPct(outgoingCallThreshold, outCallHistory);
+
+        long actualBusyInCallPct = getActualBusyInCallPct(incomingCallThreshold, inCallHistory);
+
+        long actualBusyInCallSuspicuousPct = getActualBusyInCallSuspiciousPct(suspiciousInCallHistory);
+
+        long outCallTopBottomNRatio = getTopNRatio(
+                getNumberCounts(featureResults[4], pendingCall, BUSIEST_FIRST, (int) topN),
+                getNumberCounts(featureResults[5], pendingCall, QUIETEST_FIRST, (int) topN), (int) topN);
+
+        putFreeFeatures(theNumericValues, params, thisDeviceIsSuspicious, otherNumberIsSuspicious, sketches);
+
+        theNumericValues.put("actualBusyOutCallPct", (double) actualBusyOutCallPct);
+        theNumericValues.put("actualBusyInCallPct", (double) actualBusyInCallPct);
+        theNumericValues.put("actualBusyInCallSuspicuousPct", (double) actualBusyInCallSuspicuousPct);  
+        
+        theNumericValues.put("incomingCallCount", (double) incomingCallCount);  
+        theNumericValues.put("outgoingCallCount", (double) outgoingCallCount);  
+        
+        theNumericValues.put("actualBusynessPercentage", (double) (actualBusyInCallPct + actualBusyOutCallPct));  
+        theNumericValues.put("outgoingIncomingRatioTrip", (double) (outgoingIncoming * incomingCallCount));  
+ 
+        theNumericValues.put("outCallTopBottomNRatio", (double) outCallTopBottomNRatio);              
+
+        RulePlan.markUnfetched(theNumericValues, queries);
+        
+        try {
+            String ruleTripped = rs.evaluate(theNumericValues, theStringValues);
+
+            lastFeatures = theNumericValues;
+            lastVerdict = ruleTripped;
+            
+            if (ruleTripped != null) {
+
+                final long score = getScore(ruleTripped, theNumericValues);
+
+                // Only write if the verdict or score has really changed
+                if (!ruleTripped.equals(suspiciousBecause) || suspiciousValueIsNull
+                        || Math.abs(score - suspiciousValue) >= suspicionScoreDelta) {
+                    voltQueueSQL(flagDevice, ruleTripped, score, deviceId);
+
+                    if (!ruleTripped.equals(suspiciousBecause)) {
+                        voltQueueSQL(countServerStats, deviceId, ruleTripped, 0, 0, 0, 0, 0, 0, 0, 0);
+                    }
+
+                    voltQueueSQL(logSuspicionChange, deviceId, suspiciousBecause,
+                            ruleTripped, suspiciousValueIsNull ? null : suspiciousValue, score);
+                    voltQueueSQL(publishAlert, deviceId, suspiciousBecause, ruleTripped, score,
+                            truncate(rs.getLastTriggeredStackDetail(), MAX_ALERT_STRING_LENGTH),
+                            truncate(getFeaturesAsString(theNumericValues, queries), MAX_ALERT_STRING_LENGTH));
+                    return true;
+                }
+
+            } else if (suspiciousBecause != null) {
+                voltQueueSQL(clearDevice, deviceId);
+                voltQueueSQL(countServerStats, deviceId, null, 0, 0, 0, 1, 0, 0, 0, 0);
+                voltQueueSQL(logSuspicionChange, deviceId, suspiciousBecause, null,
+                        suspiciousValueIsNull ? null : suspiciousValue, null);
+                return true;
+            }
+            
+        } catch (BadRuleException e) {
+            throw new VoltAbortException("BadRuleException:"+e.getMessage());
+        }
+        
+
+//        // Decide what kind of device this is...
+//        if (thisDeviceIsSuspicious // Known suspicious number
+//                && actualBusyInCallPct >= 1 // We have incoming calls..
+//                && actualBusyInCallSuspicuousPct == actualBusyInCallPct) // All of them are from bad numbers
+//        {
+//
+//            voltQueueSQL(flagDevice, "all_incoming_calls_from_known_bad_numbers", actualBusyInCallSuspicuousPct,
+//                    deviceId);
+//
+//        } else if (thisDeviceIsSuspicious && // Known suspicious number
+//                actualBusyInCallSuspicuousPct > 1) { // At least one call from a bad number
+//
+//            voltQueueSQL(flagDevice, "some_incoming_calls_from_known_bad_numbers", actualBusyInCallSuspicuousPct,
+//                    deviceId);
+//
+//        } else if (thisDeviceIsSuspicious // Known suspicious number
+//                && incomingCallCount == 0 // no incoming calls
+//                && outgoingCallCount > 0 // some outgoing calls
+//        ) {
+//            voltQueueSQL(flagDevice, "suspicious_device_has_no_incoming_calls", actualBusyOutCallPct, deviceId);
+//
+//        } else if (thisDeviceIsSuspicious) { // Device is part of a group that have all moved together >= 6 times
+//
+//            voltQueueSQL(flagDevice, "suspiciously_moving_device", actualBusyOutCallPct, deviceId);
+//
+//        } else if ((actualBusyInCallPct + actualBusyOutCallPct) >= busynessPercentage // We're very busy
+//                && (outgoingIncoming * incomingCallCount) < outgoingCallCount) { // Lots of calls out
+//
+//            voltQueueSQL(flagDevice, "total_incoming_outgoing_ratio_bad",
+//                    actualBusyInCallPct + actualBusyOutCallPct, deviceId);
+//
+//        } else if ((actualBusyInCallPct + actualBusyOutCallPct) >= busynessPercentage // We're very busy
+//                && outCallTopBottomNRatio < topBottomNRatio) { // Lots of calls out
+//
+//            voltQueueSQL(flagDevice, "topn_incoming_outgoing_ratio_bad", outCallTopBottomNRatio, deviceId);
+//
+//        } else {
+//            voltQueueSQL(clearDevice, deviceId);
+//        }
+
+        return false;
+    }
+
+    /**
+     * Is the last evaluation far enough away from every rule that the device
+     * can go a while before we look again? The rule jar doesn't tell us how
+     * close a device came, so we use its busyness and whether it's taken
+     * calls from suspicious numbers as a stand in. Features we didn't fetch
+     * count as 0, as no stack that could have tripped needed them.
+     * 
+     * @param params
+     * @return true if evaluateDevice() found nothing and wasn't close
+     */
+    protected boolean lastEvaluationWasClearCut(DetectionParameters params) {
+
+        if (lastVerdict != null || lastFeatures == null) {
+            return false;
+        }
+
+        return lastFeatures.get("actualBusyInCallSuspicuousPct") == 0
+                && lastFeatures.get("actualBusynessPercentage") * 2 < params.busynessPercentage;
+    }
+
+    /**
+     * Determine what % of time is spent making calls
+     * @param outgoingCallThreshold min number of calls before we care
+     * @param outCallHistory Call history
+     * @return 0 or pct spent making calls
+     */
+    private long getActualBusyOutCallPct(final long outgoingCallThreshold, CallSummary outCallHistory) {
+        return outCallHistory.getBusyPct(outgoingCallThreshold);
+    }
+
+    /**
+     * Determine what % of time is spent receiving calls
+     * @param outgoingCallThreshold min number of calls before we care
+     * @param outCallHistory Call history
+     * @return 0 or pct spent receiving calls
+     */ 
+    private long getActualBusyInCallPct(final long outgoingCallOnlyCount, CallSummary inCallHistory) {
+        return inCallHistory.getBusyPct(outgoingCallOnlyCount);
+    }
+
+    /**
+     * Determine what % of time is spent receiving calls from numbers we think are suspicious
+     * @param outCallHistory Call history
+     * @return pct spent receiving calls
+     */ 
+     private long getActualBusyInCallSuspiciousPct(CallSummary suspiciousInCallHistorySummary) {
+        return suspiciousInCallHistorySummary.getBusyPct(0);
+    }
+
+    /**
+     * Get ratio between total number of calls for top 'n' busiest numbers and 
+     * bottom 'n' busiest numbers. Both lists come from bounded index reads
+     * of 'device_outgoing_number_counts', so this costs the same no matter how
+     * many numbers the device has called.
+     * 
+     * @param topCounts    up to 'n' numbers, busiest first
+     * @param bottomCounts up to 'n' numbers, quietest first
+     * @param n - how many to compare 
+     * @return Integer.MAX_VALUE if less than n * 2 numbers were called, otherwise ratio top n : bottom n
+     */
+    private int getTopNRatio(ArrayList<long[]> topCounts, ArrayList<long[]> bottomCounts, int n) {
+
+        if (n <= 0 || topCounts.size() < n || bottomCounts.size() < n) {
+            return Integer.MAX_VALUE;
+        }
+
+        HashSet<Long> topNumbers = new HashSet<Long>(n * 2);
+        long topNCalls = 0;
+        long bottomNCalls = 0;
+
+        for (int i = 0; i < n; i++) {
+            topNumbers.add(topCounts.get(i)[0]);
+            topNCalls += topCounts.get(i)[1];
+        }
+
+        for (int i = 0; i < n; i++) {
+
+            // If the lists overlap there are fewer than n * 2 numbers
+            if (topNumbers.contains(bottomCounts.get(i)[0])) {
+                return Integer.MAX_VALUE;
+            }
+
+            bottomNCalls += bottomCounts.get(i)[1];
+        }
+
+        if (bottomNCalls == 0) {
+            return Integer.MAX_VALUE;
+        }
+
+        return (int) Math.min(Integer.MAX_VALUE, topNCalls / bottomNCalls);
+    }
+
+    /**
+     * Read the output of getTopOutgoingNumberCounts or
+     * getBottomOutgoingNumberCounts, adding 'pendingCall' if it's outgoing.
+     * We read one more row than we need, which is enough to put the pending
+     * call's number in the right place.
+     * 
+     * @param countTable  null if the query wasn't run
+     * @param pendingCall call the counts don't include yet, or null
+     * @param order       order the query returned rows in
+     * @param n           how many rows we want
+     * @return up to 'n' {other_number, how_many} pairs in 'order'
+     */
+    private static ArrayList<long[]> getNumberCounts(VoltTable countTable, PendingCall pendingCall,
+            Comparator<long[]> order, int n) {
+
+        if (countTable == null) {
+            return new ArrayList<long[]>();
+        }
+
+        ArrayList<long[]> counts = new ArrayList<long[]>(countTable.getRowCount() + 1);
+
+        while (countTable.advanceRow()) {
+            counts.add(new long[] { countTable.getLong("other_number"), countTable.getLong("how_many") });
+        }
+
+        if (pendingCall != null && pendingCall.isOutgoing()) {
+
+            boolean found = false;
+
+            for (int i = 0; i < counts.size(); i++) {
+                if (counts.get(i)[0] == pendingCall.getOtherNumber()) {
+                    counts.get(i)[1]++;
+                    found = true;
+                }
+            }
+
+            if (!found) {
+                counts.add(new long[] { pendingCall.getOtherNumber(), pendingCall.getPriorNumberCount() + 1 });
+            }
+
+            Collections.sort(counts, order);
+        }
+
+        while (counts.size() > n) {
+            counts.remove(counts.size() - 1);
+        }
+
+        return counts;
+    }
+
+    /**
+     * Per number counts and sketches cover buckets 'hoursBackToCheck' long, so
+     * they cover the same sort of period as the rest of our features.
+     * 
+     * @param hoursBackToCheck
+     * @return start of the bucket this transaction falls in
+     */
+    protected TimestampType getCountBucketStart(long hoursBackToCheck) {
+
+        final long bucketMs = Math.max(1, hoursBackToCheck) * 60 * 60 * 1000;
+        final long nowMs = getTransactionTime().getTime();
+
+        return new TimestampType((nowMs - (nowMs % bucketMs)) * 1000);
+    }
+
+    /**
+     * Add the features that don't need a query: things we already know about
+     * the device and call, our parameters and the device's sketches.
+     * 
+     * @param theNumericValues
+     * @param params
+     * @param thisDeviceIsSuspicious
+     * @param otherNumberIsSuspicious
+     * @param sketches
+     */
+    private void putFreeFeatures(HashMap<String, Double> theNumericValues, DetectionParameters params,
+            boolean thisDeviceIsSuspicious, boolean otherNumberIsSuspicious, DeviceSketches sketches) {
+
+        theNumericValues.put("thisDeviceIsSuspicious", thisDeviceIsSuspicious ? 1d : 0d);
+        theNumericValues.put("otherNumberIsSuspicious", otherNumberIsSuspicious ? 1d : 0d);
+
+        theNumericValues.put("busynessPercentage", (double) params.busynessPercentage);
+        theNumericValues.put("topBottomNRatio", (double) params.topBottomNRatio);
+
+        theNumericValues.put("distinctCalleesWindow", (double) sketches.getDistinctCallees());
+        theNumericValues.put("distinctCallersWindow", (double) sketches.getDistinctCallers());
+
+        putDurationFeatures(theNumericValues, "outCallDuration", sketches.getOutgoingDurations());
+        putDurationFeatures(theNumericValues, "inCallDuration", sketches.getIncomingDurations());
+    }
+
+    /**
+     * Add the median, interquartile range and coefficient of variation of a
+     * duration sketch as features. Simbox traffic tends to have very regular
+     * call lengths, so a low IQR or CV is suspicious once there are enough
+     * calls. The CV is stored as a percentage, as features are shown as
+     * whole numbers.
+     * 
+     * @param theNumericValues
+     * @param prefix
+     * @param durations
+     */
+    private void putDurationFeatures(HashMap<String, Double> theNumericValues, String prefix,
+            DurationSketch durations) {
+
+        theNumericValues.put(prefix + "Count", (double) durations.getCount());
+        theNumericValues.put(prefix + "Median", durations.getQuantile(0.5));
+        theNumericValues.put(prefix + "Iqr", durations.getQuantile(0.75) - durations.getQuantile(0.25));
+        theNumericValues.put(prefix + "CvPct", 100 * durations.getCoefficientOfVariation());
+    }
+
+    /**
+     * Work out what to store as 'suspicious_value' when a rule stack trips.
+     * 
+     * @param ruleTripped      name of the stack
+     * @param theNumericValues the features the rules saw
+     * @return the value of the feature that best describes why we tripped
+     */
+    private long getScore(String ruleTripped, HashMap<String, Double> theNumericValues) {
+
+        String scoreFeature = SCORE_FEATURES.get(ruleTripped);
+
+        if (scoreFeature == null) {
+            scoreFeature = DEFAULT_SCORE_FEATURE;
+        }
+
+        Double score = theNumericValues.get(scoreFeature);
+
+        if (score == null) {
+            return 0;
+        }
+
+        return score.longValue();
+    }
+
+    /**
+     * @param theNumericValues
+     * @param queries          feature queries that were run
+     * @return features as 'name=value' pairs, in name order, leaving out any
+     *         we didn't fetch
+     */
+    private String getFeaturesAsString(HashMap<String, Double> theNumericValues, int queries) {
+
+        StringBuilder b = new StringBuilder();
+        TreeMap<String, Double> fetchedValues = new TreeMap<String, Double>(theNumericValues);
+        RulePlan.removeUnfetched(fetchedValues, queries);
+
+        for (Map.Entry<String, Double> entry : fetchedValues.entrySet()) {
+
+            if (b.length() > 0) {
+                b.append(',');
+            }
+
+            b.append(entry.getKey());
+            b.append('=');
+            b.append(entry.getValue().longValue());
+        }
+
+        return b.toString();
+    }
+
+    /**
+     * @param value
+     * @param maxLength
+     * @return 'value', cut down to 'maxLength' if need be
+     */
+    private static String truncate(String value, int maxLength) {
+
+        if (value == null || value.length() <= maxLength) {
+            return value;
+        }
+
+        return value.substring(0, maxLength);
+    }
+
+    /**
+     * Get a parameter or its default value
+     * 
+     * @param value          - default value
+     * @param parameterTable
+     * @return a parameter or its default value
+     */
+    protected long getParameter(long value, VoltTable parameterTable) {
+        return DetectionParameters.getParameter(value, parameterTable);
+    }
+
+    /**
+     * What one of the call history summary queries returned, plus a pending
+     * call if there is one.
+     */
+    private static class CallSummary {
+
+        /**
+         * Start of the earliest call
+         */
+        private long firstMs = 0;
+
+        /**
+         * End of the latest call
+         */
+        private long lastMs = 0;
+
+        /**
+         * Total seconds
+         */
+        private long duration = 0;
+
+        /**
+         * How many calls
+         */
+        private long howMany = 0;
+
+        /**
+         * @param historySummary output of a '...HistorySummary' query, or
+         *                       null if it wasn't run
+         */
+        CallSummary(VoltTable historySummary) {
+
+            if (historySummary != null && historySummary.advanceRow()) {
+
+                howMany = historySummary.getLong("how_many");
+
+                if (howMany > 0) {
+                    firstMs = historySummary.getTimestampAsTimestamp("start_time").asApproximateJavaDate().getTime();
+                    lastMs = historySummary.getTimestampAsTimestamp("end_time").asApproximateJavaDate().getTime();
+                    duration = historySummary.getLong("duration");
+                }
+            }
+        }
+
+        /**
+         * @param pendingCall
+         */
+        void add(PendingCall pendingCall) {
+
+            if (howMany == 0) {
+                firstMs = pendingCall.getStartMs();
+                lastMs = pendingCall.getEndMs();
+            } else {
+                firstMs = Math.min(firstMs, pendingCall.getStartMs());
+                lastMs = Math.max(lastMs, pendingCall.getEndMs());
+            }
+
+            duration += pendingCall.getDurationSeconds();
+            howMany++;
+        }
+
+        /**
+         * @param threshold min number of calls before we care
+         * @return 0 or pct of the time covered spent in these calls
+         */
+        long getBusyPct(long threshold) {
+
+            if (howMany > threshold) {
+                // calculate time period covered in seconds
+                final long timePeriodSeconds = (lastMs - firstMs) / 1000;
+
+                if (timePeriodSeconds > 0) {
+                    return (100 * duration) / timePeriodSeconds;
+                }
+            }
+
+            return 0;
+        }
+    }
+
+}
@@ -0,0 +1,186 @@
+package simbox;
+
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.VoltTable;
+import org.voltdb.types.TimestampType;
+
+/**
+ * The sketches we keep in 'device_sketches' for one device. They cover the
+ * bucket starting at 'bucketStart'; a row from an older bucket is ignored and
+ * we start again with empty sketches. The duration sketches change on every
+ * call, so the row is written back every time.
+ *
+ */
+public class DeviceSketches {
+
+    /**
+     * Start of the bucket these sketches cover
+     */
+    private final TimestampType bucketStart;
+
+    /**
+     * Distinct numbers this device has called
+     */
+    private final HyperLogLog callees;
+
+    /**
+     * Distinct numbers that have called this device
+     */
+    private final HyperLogLog callers;
+
+    /**
+     * Durations of calls this device made
+     */
+    private final DurationSketch outgoingDurations;
+
+    /**
+     * Durations of calls this device received
+     */
+    private final DurationSketch incomingDurations;
+
+    /**
+     * @param bucketStart
+     * @param callees
+     * @param callers
+     * @param outgoingDurations
+     * @param incomingDurations
+     */
+    private DeviceSketches(TimestampType bucketStart, HyperLogLog callees, HyperLogLog callers,
+            DurationSketch outgoingDurations, DurationSketch incomingDurations) {
+        super();
+        this.bucketStart = bucketStart;
+        this.callees = callees;
+        this.callers = callers;
+        this.outgoingDurations = outgoingDurations;
+        this.incomingDurations = incomingDurations;
+    }
+
+    /**
+     * @param sketchRow   output of a SELECT * from 'device_sketches'
+     * @param bucketStart the bucket we're in now
+     * @return the stored sketches, or empty ones if there aren't any for
+     *         'bucketStart'
+     */
+    public static DeviceSketches load(VoltTable sketchRow, TimestampType bucketStart) {
+
+        if (sketchRow.advanceRow() && sketchRow.getTimestampAsTimestamp("bucket_start").equals(bucketStart)) {
+            return new DeviceSketches(bucketStart, new HyperLogLog(sketchRow.getVarbinary("callee_hll")),
+                    new HyperLogLog(sketchRow.getVarbinary("caller_hll")),
+                    new DurationSketch(sketchRow.getVarbinary("out_duration_sketch")),
+                    new DurationSketch(sketchRow.getVarbinary("in_duration_sketch")));
+        }
+
+        return new DeviceSketches(bucketStart, new HyperLogLog(), new HyperLogLog(), new DurationSketch(),
+                new DurationSketch());
+    }
+
+    /**
+     * Note a call to 'otherNumber'
+     * 
+     * @param otherNumber
+     * @param durationSeconds
+     */
+    public void addOutgoingCall(long otherNumber, int durationSeconds) {
+        callees.add(otherNumber);
+        outgoingDurations.add(durationSeconds);
+    }
+
+    /**
+     * Note a call from 'otherNumber'
+     * 
+     * @param otherNumber
+     * @param durationSeconds
+     */
+    public void addIncomingCall(long otherNumber, int durationSeconds) {
+        callers.add(otherNumber);
+        incomingDurations.add(durationSeconds);
+    }
+
+    /**
+     * @return roughly how many numbers this device has called in this bucket
+     */
+    public long getDistinctCallees() {
+        return callees.estimate();
+    }
+
+    /**
+     * @return roughly how many numbers have called this device in this bucket
+     */
+    public long getDistinctCallers() {
+        return callers.estimate();
+    }
+
+    /**
+     * @return durations of calls this device made in this bucket
+     */
+    public DurationSketch getOutgoingDurations() {
+        return outgoingDurations;
+    }
+
+    /**
+     * @return durations of calls this device received in this bucket
+     */
+    public DurationSketch getIncomingDurations() {
+        return incomingDurations;
+    }
+
+    /**
+     * @return the bucketStart
+     */
+    public TimestampType getBucketStart() {
+        return bucketStart;
+    }
+
+    /**
+     * @return callees sketch for storing
+     */
+    public byte[] getCalleeBytes() {
+        return callees.toBytes();
+    }
+
+    /**
+     * @return callers sketch for storing
+     */
+    public byte[] getCallerBytes() {
+        return callers.toBytes();
+    }
+
+    /**
+     * @return outgoing duration sketch for storing
+     */
+    public byte[] getOutgoingDurationBytes() {
+        return outgoingDurations.toBytes();
+    }
+
+    /**
+     * @return incoming duration sketch for storing
+     */
+    public byte[] getIncomingDurationBytes() {
+        return incomingDurations.toBytes();
+    }
+
+}
@@ -0,0 +1,246 @@
+package simbox;
+
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * A DDSketch style quantile sketch of call durations in seconds.
+ * <p>
+ * Durations of 1 second or more go into logarithmic buckets, where bucket i
+ * holds values in (GAMMA^(i-1), GAMMA^i]. Any quantile we report is within
+ * RELATIVE_ACCURACY of the true value. Zero length calls have their own
+ * count. There are BUCKET_COUNT buckets, which covers calls of several days,
+ * so a sketch always takes STORED_SIZE bytes.
+ *
+ */
+public class DurationSketch {
+
+    /**
+     * Relative error of any quantile we return
+     */
+    public static final double RELATIVE_ACCURACY = 0.05;
+
+    /**
+     * How many log buckets we have
+     */
+    public static final int BUCKET_COUNT = 128;
+
+    /**
+     * Size of what {@link #toBytes()} returns
+     */
+    public static final int STORED_SIZE = 4 * (BUCKET_COUNT + 1);
+
+    /**
+     * Ratio between bucket boundaries
+     */
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+
+    /**
+     * Used to find a bucket
+     */
+    private static final double LOG_GAMMA = StrictMath.log(GAMMA);
+
+    /**
+     * Calls that lasted 0 seconds
+     */
+    private int zeroCount = 0;
+
+    /**
+     * Calls in each bucket
+     */
+    private final int[] counts = new int[BUCKET_COUNT];
+
+    /**
+     * Total calls we've seen
+     */
+    private long totalCount = 0;
+
+    /**
+     * Create an empty sketch
+     */
+    public DurationSketch() {
+        super();
+    }
+
+    /**
+     * Recreate a sketch from what {@link #toBytes()} gave us. Anything that
+     * isn't the right size gives an empty sketch.
+     * 
+     * @param storedSketch
+     */
+    public DurationSketch(byte[] storedSketch) {
+
+        super();
+
+        if (storedSketch == null || storedSketch.length != STORED_SIZE) {
+            return;
+        }
+
+        ByteBuffer bb = ByteBuffer.wrap(storedSketch);
+        zeroCount = bb.getInt();
+        totalCount = zeroCount;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = bb.getInt();
+            totalCount += counts[i];
+        }
+    }
+
+    /**
+     * Add a call
+     * 
+     * @param durationSeconds
+     */
+    public void add(int durationSeconds) {
+
+        if (durationSeconds <= 0) {
+            zeroCount++;
+        } else {
+            counts[getBucket(durationSeconds)]++;
+        }
+
+        totalCount++;
+    }
+
+    /**
+     * @return how many calls we've seen
+     */
+    public long getCount() {
+        return totalCount;
+    }
+
+    /**
+     * @param quantile between 0 and 1
+     * @return approximate duration at 'quantile', or 0 if we're empty
+     */
+    public double getQuantile(double quantile) {
+
+        if (totalCount == 0) {
+            return 0;
+        }
+
+        final long rank = (long) Math.floor(quantile * (totalCount - 1));
+        long seen = zeroCount;
+
+        if (rank < seen) {
+            return 0;
+        }
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+
+            seen += counts[i];
+
+            if (rank < seen) {
+                return getBucketValue(i);
+            }
+        }
+
+        return getBucketValue(BUCKET_COUNT - 1);
+    }
+
+    /**
+     * @return approximate mean duration, or 0 if we're empty
+     */
+    public double getMean() {
+
+        if (totalCount == 0) {
+            return 0;
+        }
+
+        double sum = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            sum += counts[i] * getBucketValue(i);
+        }
+
+        return sum / totalCount;
+    }
+
+    /**
+     * Coefficient of variation, i.e. standard deviation / mean. Robotic
+     * traffic with near constant call lengths has a value close to 0.
+     * 
+     * @return approximate coefficient of variation, or 0 if we're empty
+     */
+    public double getCoefficientOfVariation() {
+
+        final double mean = getMean();
+
+        if (mean == 0) {
+            return 0;
+        }
+
+        double sumOfSquares = zeroCount * mean * mean;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            final double diff = getBucketValue(i) - mean;
+            sumOfSquares += counts[i] * diff * diff;
+        }
+
+        return StrictMath.sqrt(sumOfSquares / totalCount) / mean;
+    }
+
+    /**
+     * @return us, as something that can go in a VARBINARY column
+     */
+    public byte[] toBytes() {
+
+        ByteBuffer bb = ByteBuffer.allocate(STORED_SIZE);
+        bb.putInt(zeroCount);
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            bb.putInt(counts[i]);
+        }
+
+        return bb.array();
+    }
+
+    /**
+     * @param durationSeconds must be > 0
+     * @return bucket for 'durationSeconds'
+     */
+    private static int getBucket(int durationSeconds) {
+
+        final int bucket = (int) StrictMath.ceil(StrictMath.log(durationSeconds) / LOG_GAMMA);
+
+        return Math.min(BUCKET_COUNT - 1, bucket);
+    }
+
+    /**
+     * @param bucket
+     * @return the value we report for anything in 'bucket'
+     */
+    private static double getBucketValue(int bucket) {
+
+        if (bucket == 0) {
+            return 1;
+        }
+
+        return 2 * StrictMath.pow(GAMMA, bucket) / (GAMMA + 1);
+    }
+
+}
@@ -0,0 +1,168 @@
+package simbox;
+
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+/**
+ * Get this partition's traffic totals for every cell that was active in the
+ * last few minutes or in the hour or so before, so callers can find the cells
+ * whose traffic has jumped. A simbox that has just moved into a cell shows up
+ * as a burst of calls and arrivals there.
+ * <p>
+ * This is a DIRECTED procedure. cell_minute_activity is fed by device
+ * partitioned events, so each partition only sees its share of a cell's
+ * traffic. We don't score or rank anything here: a cell's score depends on
+ * its totals across every partition, so callers add up the rows from all
+ * partitions first and only then score and rank the cells.
+ *
+ */
+public class GetAnomalousCells extends VoltProcedure {
+
+    // @formatter:off
+
+    public static final SQLStmt getCellActivity = new SQLStmt(
+            "SELECT cell_id"
+            + "    , sum(call_count) call_count"
+            + "    , sum(call_duration) call_duration"
+            + "    , sum(active_device_count) active_device_count"
+            + "    , sum(arrival_count) arrival_count "
+            + "FROM cell_minute_activity "
+            + "WHERE event_minute >= DATEADD(MINUTE, -1 * ?, TRUNCATE(MINUTE, NOW)) "
+            + "AND   event_minute < DATEADD(MINUTE, -1 * ?, TRUNCATE(MINUTE, NOW)) "
+            + "GROUP BY cell_id;");
+
+    // @formatter:on
+
+    /**
+     * Where recent calls go in a cell's totals
+     */
+    private static final int CALLS = 0;
+
+    /**
+     * Where recent call seconds go in a cell's totals
+     */
+    private static final int DURATION = 1;
+
+    /**
+     * Where recent active devices go in a cell's totals
+     */
+    private static final int DEVICES = 2;
+
+    /**
+     * Where recent arrivals go in a cell's totals
+     */
+    private static final int ARRIVALS = 3;
+
+    /**
+     * Where baseline calls go in a cell's totals
+     */
+    private static final int BASELINE_CALLS = 4;
+
+    /**
+     * Where baseline arrivals go in a cell's totals
+     */
+    private static final int BASELINE_ARRIVALS = 5;
+
+    /**
+     * @param recentMinutes   how many whole minutes count as 'now'
+     * @param baselineMinutes how many minutes before that we compare with
+     * @return one row per cell with this partition's totals, in cell order
+     * @throws VoltAbortException
+     */
+    public VoltTable[] run(int recentMinutes, int baselineMinutes) throws VoltAbortException {
+
+        if (recentMinutes < 1 || baselineMinutes < 1) {
+            throw new VoltAbortException("recentMinutes and baselineMinutes must be at least 1");
+        }
+
+        // The current minute is still filling up, so we leave it out
+        voltQueueSQL(getCellActivity, recentMinutes, 0);
+        voltQueueSQL(getCellActivity, recentMinutes + baselineMinutes, recentMinutes);
+
+        VoltTable[] activity = voltExecuteSQL(true);
+
+        TreeMap<Long, long[]> cells = new TreeMap<Long, long[]>();
+
+        while (activity[0].advanceRow()) {
+            long[] totals = getTotals(cells, activity[0].getLong("cell_id"));
+            totals[CALLS] = activity[0].getLong("call_count");
+            totals[DURATION] = activity[0].getLong("call_duration");
+            totals[DEVICES] = activity[0].getLong("active_device_count");
+            totals[ARRIVALS] = activity[0].getLong("arrival_count");
+        }
+
+        // A cell that is quiet here but busy elsewhere still needs our share
+        // of its baseline, so we keep baseline only cells too
+        while (activity[1].advanceRow()) {
+            long[] totals = getTotals(cells, activity[1].getLong("cell_id"));
+            totals[BASELINE_CALLS] = activity[1].getLong("call_count");
+            totals[BASELINE_ARRIVALS] = activity[1].getLong("arrival_count");
+        }
+
+        VoltTable results = new VoltTable(new VoltTable.ColumnInfo("cell_id", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("recent_call_count", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("recent_call_duration", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("recent_active_devices", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("recent_arrivals", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("baseline_call_count", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("baseline_arrivals", VoltType.BIGINT));
+
+        for (Map.Entry<Long, long[]> entry : cells.entrySet()) {
+
+            final long[] t = entry.getValue();
+
+            results.addRow(entry.getKey(), t[CALLS], t[DURATION], t[DEVICES], t[ARRIVALS], t[BASELINE_CALLS],
+                    t[BASELINE_ARRIVALS]);
+        }
+
+        return new VoltTable[] { results };
+    }
+
+    /**
+     * @param cells
+     * @param cellId
+     * @return the totals for 'cellId', created if needed
+     */
+    private static long[] getTotals(TreeMap<Long, long[]> cells, long cellId) {
+
+        long[] totals = cells.get(cellId);
+
+        if (totals == null) {
+            totals = new long[BASELINE_ARRIVALS + 1];
+            cells.put(cellId, totals);
+        }
+
+        return totals;
+    }
+
+}
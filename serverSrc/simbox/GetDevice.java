@@ -49,6 +49,9 @@ public class GetDevice extends VoltProcedure {
     public static final SQLStmt getOutgoingCallHistory = new SQLStmt(
             "SELECT * FROM device_outgoing_call_history WHERE device_id = ? ORDER BY START_TIME;");
  
+    public static final SQLStmt getSuspicionLog = new SQLStmt(
+            "SELECT * FROM device_suspicion_log WHERE device_id = ? ORDER BY event_time;");
+ 
     public static final SQLStmt getDeviceOutgoingHistoryByDevice = new SQLStmt(
             "SELECT other_number "
             + "    , count(*) how_many "
@@ -74,6 +77,7 @@ public class GetDevice extends VoltProcedure {
         voltQueueSQL(getIncomingCallHistory, deviceId);
         voltQueueSQL(getOutgoingCallHistory, deviceId);
         voltQueueSQL(getDeviceOutgoingHistoryByDevice, deviceId,24);
+        voltQueueSQL(getSuspicionLog, deviceId);
 
         return voltExecuteSQL(true);
     }
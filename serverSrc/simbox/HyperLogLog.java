@@ -0,0 +1,134 @@
+package simbox;
+
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+/**
+ * A HyperLogLog sketch for counting distinct phone numbers in constant space.
+ * <p>
+ * We use 2^PRECISION one byte registers, which gives a standard error of
+ * about 6.5%. Sketches are stored as the raw register array in a VARBINARY
+ * column.
+ *
+ */
+public class HyperLogLog {
+
+    /**
+     * Number of hash bits used to pick a register
+     */
+    public static final int PRECISION = 8;
+
+    /**
+     * How many registers we have. Also our size in bytes.
+     */
+    public static final int REGISTER_COUNT = 1 << PRECISION;
+
+    /**
+     * Bias correction constant for REGISTER_COUNT registers
+     */
+    private static final double ALPHA = 0.7213 / (1 + (1.079 / REGISTER_COUNT));
+
+    /**
+     * Highest zero run + 1 we've seen for each register
+     */
+    private final byte[] registers;
+
+    /**
+     * Create an empty sketch
+     */
+    public HyperLogLog() {
+        registers = new byte[REGISTER_COUNT];
+    }
+
+    /**
+     * Recreate a sketch from what {@link #toBytes()} gave us. Anything that
+     * isn't the right size gives an empty sketch.
+     * 
+     * @param storedRegisters
+     */
+    public HyperLogLog(byte[] storedRegisters) {
+
+        if (storedRegisters == null || storedRegisters.length != REGISTER_COUNT) {
+            registers = new byte[REGISTER_COUNT];
+        } else {
+            registers = storedRegisters.clone();
+        }
+    }
+
+    /**
+     * Add a number
+     * 
+     * @param number
+     * @return true if the sketch changed
+     */
+    public boolean add(long number) {
+
+        final long hash = NumberHash.mix(number);
+        final int register = (int) (hash >>> (64 - PRECISION));
+        final byte rank = (byte) (Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1);
+
+        if (rank > registers[register]) {
+            registers[register] = rank;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return roughly how many distinct numbers we've seen
+     */
+    public long estimate() {
+
+        double sum = 0;
+        int zeroRegisters = 0;
+
+        for (int i = 0; i < REGISTER_COUNT; i++) {
+
+            sum += 1.0 / (1L << registers[i]);
+
+            if (registers[i] == 0) {
+                zeroRegisters++;
+            }
+        }
+
+        final double rawEstimate = ALPHA * REGISTER_COUNT * REGISTER_COUNT / sum;
+
+        // Linear counting is more accurate while lots of registers are empty
+        if (rawEstimate <= 2.5 * REGISTER_COUNT && zeroRegisters > 0) {
+            return Math.round(REGISTER_COUNT * StrictMath.log((double) REGISTER_COUNT / zeroRegisters));
+        }
+
+        return Math.round(rawEstimate);
+    }
+
+    /**
+     * @return us, as something that can go in a VARBINARY column
+     */
+    public byte[] toBytes() {
+        return registers.clone();
+    }
+
+}
@@ -53,6 +53,14 @@ public class NoteSuspiciousCohort extends VoltProcedure {
             "UPSERT INTO cell_suspicious_cohort_members "
             + "VALUES "
             + "(?,NOW,?);");
+
+    public static final SQLStmt getFilter = new SQLStmt(
+            "SELECT entry_count, filter_bits FROM suspicious_number_filter WHERE filter_name = ?;");
+
+    public static final SQLStmt upsertFilter = new SQLStmt(
+            "UPSERT INTO suspicious_number_filter "
+            + "(filter_name, filter_version, entry_count, filter_bits, last_built) "
+            + "VALUES (?,?,?,?,NOW);");
     
   	// @formatter:on
 
@@ -64,11 +72,36 @@ public class NoteSuspiciousCohort extends VoltProcedure {
      */
     public VoltTable[] run(String[] cellHistoryBusiest) throws VoltAbortException {
 
+        voltQueueSQL(getFilter, SuspiciousNumberFilter.FILTER_NAME);
+        VoltTable filterTable = voltExecuteSQL()[0];
+
+        // Find every cohort's members first, so a brand new filter can be
+        // sized for all of them
+        VoltTable[] cohorts = new VoltTable[cellHistoryBusiest.length];
+        int memberCount = 0;
+
         for (int i = 0; i < cellHistoryBusiest.length; i++) {
             // Get Devices...
             voltQueueSQL(getSuspiciousDevices, cellHistoryBusiest[i]);
+            cohorts[i] = voltExecuteSQL()[0];
+            memberCount += cohorts[i].getRowCount();
+        }
+
+        // Cohort members are added to the suspicious number filter right away,
+        // rather than waiting for the next rebuild.
+        SuspiciousNumberFilter newFilter = null;
+        long entryCount = 0;
 
-            VoltTable suspiciousDevices = voltExecuteSQL()[0];
+        if (filterTable.advanceRow()) {
+            entryCount = filterTable.getLong("entry_count");
+            newFilter = SuspiciousNumberFilter.fromBytes(filterTable.getVarbinary("filter_bits"));
+        } else {
+            newFilter = new SuspiciousNumberFilter(memberCount);
+        }
+
+        for (int i = 0; i < cohorts.length; i++) {
+
+            VoltTable suspiciousDevices = cohorts[i];
 
             // Record existence of cohort and members...
             long cellId = Long.MIN_VALUE;
@@ -81,12 +114,24 @@ public class NoteSuspiciousCohort extends VoltProcedure {
 
                 long deviceId = suspiciousDevices.getLong("device_id");
                 voltQueueSQL(createNewCohortMember, cellId, deviceId);
+
+                // Cohorts are noted again every time they're seen, so only
+                // count members the filter doesn't already have. A false
+                // positive means we undercount slightly, which the next
+                // rebuild corrects.
+                if (!newFilter.mightContain(deviceId)) {
+                    newFilter.add(deviceId);
+                    entryCount++;
+                }
             }
 
             voltExecuteSQL();
 
         }
 
+        voltQueueSQL(upsertFilter, SuspiciousNumberFilter.FILTER_NAME, getUniqueId(), entryCount,
+                newFilter.toBytes());
+
         return voltExecuteSQL(true);
     }
 
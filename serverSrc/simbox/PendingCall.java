@@ -0,0 +1,144 @@
+package simbox;
+
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.types.TimestampType;
+
+/**
+ * A call whose writes are queued in the same batch as the reads our features
+ * come from. The reads run first, so they don't include it, and
+ * DeviceDetectionProcedure adds it to what they return.
+ *
+ */
+public class PendingCall {
+
+    /**
+     * When the call started, in ms
+     */
+    private final long startMs;
+
+    /**
+     * When the call ended, in ms
+     */
+    private final long endMs;
+
+    /**
+     * How long it lasted
+     */
+    private final int durationSeconds;
+
+    /**
+     * True if the device made the call
+     */
+    private final boolean outgoing;
+
+    /**
+     * The number at the other end
+     */
+    private final long otherNumber;
+
+    /**
+     * True if 'otherNumber' is in the suspicious number filter
+     */
+    private final boolean otherNumberIsSuspicious;
+
+    /**
+     * How many times the device had called 'otherNumber' in the current
+     * bucket before this call
+     */
+    private final long priorNumberCount;
+
+    /**
+     * @param startTime
+     * @param durationSeconds
+     * @param outgoing
+     * @param otherNumber
+     * @param otherNumberIsSuspicious
+     * @param priorNumberCount
+     */
+    public PendingCall(TimestampType startTime, int durationSeconds, boolean outgoing, long otherNumber,
+            boolean otherNumberIsSuspicious, long priorNumberCount) {
+        super();
+        this.startMs = startTime.asExactJavaDate().getTime();
+        this.endMs = startMs + (1000L * durationSeconds);
+        this.durationSeconds = durationSeconds;
+        this.outgoing = outgoing;
+        this.otherNumber = otherNumber;
+        this.otherNumberIsSuspicious = otherNumberIsSuspicious;
+        this.priorNumberCount = priorNumberCount;
+    }
+
+    /**
+     * @return the startMs
+     */
+    public long getStartMs() {
+        return startMs;
+    }
+
+    /**
+     * @return the endMs
+     */
+    public long getEndMs() {
+        return endMs;
+    }
+
+    /**
+     * @return the durationSeconds
+     */
+    public int getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    /**
+     * @return true if the device made the call
+     */
+    public boolean isOutgoing() {
+        return outgoing;
+    }
+
+    /**
+     * @return the otherNumber
+     */
+    public long getOtherNumber() {
+        return otherNumber;
+    }
+
+    /**
+     * @return true if 'otherNumber' is in the suspicious number filter
+     */
+    public boolean isOtherNumberSuspicious() {
+        return otherNumberIsSuspicious;
+    }
+
+    /**
+     * @return how many times the device had called 'otherNumber' in this
+     *         bucket before
+     */
+    public long getPriorNumberCount() {
+        return priorNumberCount;
+    }
+
+}
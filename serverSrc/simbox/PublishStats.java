@@ -0,0 +1,80 @@
+package simbox;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+
+/**
+ * Write a batch of client statistics in one transaction.
+ *
+ */
+public class PublishStats extends VoltProcedure {
+
+    // @formatter:off
+
+    public static final SQLStmt clearStats = new SQLStmt(
+            "UPDATE simbox_stats SET stat_value = 0;");
+
+    public static final SQLStmt upsertStat = new SQLStmt(
+            "UPSERT INTO simbox_stats (stat_name, stat_value) VALUES (?,?);");
+
+ 	// @formatter:on
+
+    /**
+     * How many statements we queue before executing them
+     */
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * @param clearFirst 1 if all existing stats should be zeroed first
+     * @param statNames
+     * @param statValues
+     * @return
+     * @throws VoltAbortException
+     */
+    public VoltTable[] run(int clearFirst, String[] statNames, long[] statValues) throws VoltAbortException {
+
+        if (statNames.length != statValues.length) {
+            throw new VoltAbortException(
+                    "Got " + statNames.length + " stat names but " + statValues.length + " values");
+        }
+
+        if (clearFirst == 1) {
+            voltQueueSQL(clearStats);
+        }
+
+        for (int i = 0; i < statNames.length; i++) {
+
+            voltQueueSQL(upsertStat, statNames[i], statValues[i]);
+
+            if ((i + 1) % BATCH_SIZE == 0) {
+                voltExecuteSQL();
+            }
+        }
+
+        return voltExecuteSQL(true);
+    }
+}
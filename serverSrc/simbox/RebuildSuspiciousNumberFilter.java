@@ -0,0 +1,79 @@
+package simbox;
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+
+/**
+ * Rebuild the suspicious number filter from scratch, using every cohort
+ * member and every device that is currently flagged.
+ *
+ */
+public class RebuildSuspiciousNumberFilter extends VoltProcedure {
+
+    // @formatter:off
+
+    public static final SQLStmt getCohortMembers = new SQLStmt(
+            "SELECT DISTINCT device_id FROM cell_suspicious_cohort_members;");
+
+    public static final SQLStmt getFlaggedDevices = new SQLStmt(
+            "SELECT device_id FROM device_table WHERE suspicious_because IS NOT NULL;");
+
+    public static final SQLStmt upsertFilter = new SQLStmt(
+            "UPSERT INTO suspicious_number_filter "
+            + "(filter_name, filter_version, entry_count, filter_bits, last_built) "
+            + "VALUES (?,?,?,?,NOW);");
+
+ 	// @formatter:on
+
+    /**
+     * @return
+     * @throws VoltAbortException
+     */
+    public VoltTable[] run() throws VoltAbortException {
+
+        voltQueueSQL(getCohortMembers);
+        voltQueueSQL(getFlaggedDevices);
+
+        VoltTable[] suspiciousNumbers = voltExecuteSQL();
+
+        final int entryCount = suspiciousNumbers[0].getRowCount() + suspiciousNumbers[1].getRowCount();
+
+        SuspiciousNumberFilter newFilter = new SuspiciousNumberFilter(entryCount);
+
+        for (int i = 0; i < suspiciousNumbers.length; i++) {
+            while (suspiciousNumbers[i].advanceRow()) {
+                newFilter.add(suspiciousNumbers[i].getLong("device_id"));
+            }
+        }
+
+        voltQueueSQL(upsertFilter, SuspiciousNumberFilter.FILTER_NAME, getUniqueId(), entryCount,
+                newFilter.toBytes());
+
+        return voltExecuteSQL(true);
+    }
+}
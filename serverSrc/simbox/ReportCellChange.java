@@ -30,7 +30,8 @@ import org.voltdb.VoltTable;
 /**
  * Report that a device has moved cells. This also updates the columns
  * cell_history_as_string_last3 and cell_history_as_string_last6 that are
- * used to spot cohorts of devices that move at the same time.
+ * used to spot cohorts of devices that move at the same time, and counts the
+ * arrival in cell_minute_activity.
  *
  */
 public class ReportCellChange extends VoltProcedure {
@@ -40,6 +41,18 @@ public class ReportCellChange extends VoltProcedure {
 	public static final SQLStmt getDevice = new SQLStmt(
 			"SELECT cell_history_as_string FROM device_table WHERE device_id = ?;");
 
+    public static final SQLStmt countServerStats = new SQLStmt(
+            "INSERT INTO server_stat_events "
+            + "(device_id, flagged_because, incoming_calls, outgoing_calls, cell_moves, flags_cleared"
+            + ", devices_rescored, evaluations_run, evaluations_skipped, feature_queries_skipped) "
+            + "VALUES (?,?,?,?,?,?,?,?,?,?);");
+
+    public static final SQLStmt insertCellArrival = new SQLStmt(
+            "INSERT INTO cell_activity_events "
+            + "(device_id, cell_id, event_minute, call_count, call_duration, active_device_count, arrival_count) "
+            + "VALUES "
+            + "(?,?,TRUNCATE(MINUTE, NOW),0,0,1,1);");
+
 	public static final SQLStmt getCell = new SQLStmt("SELECT * FROM cell_table WHERE cell_id = ?;");
 
     public static final SQLStmt updateCurrentCell1 = new SQLStmt(
@@ -93,6 +106,8 @@ public class ReportCellChange extends VoltProcedure {
         voltQueueSQL(updateCurrentCell2, deviceId);
         voltQueueSQL(finishCurrentCellHist, deviceId);
         voltQueueSQL(createNewDeviceCellHist, deviceId,cellId);
+        voltQueueSQL(insertCellArrival, deviceId, cellId);
+        voltQueueSQL(countServerStats, deviceId, null, 0, 0, 1, 0, 0, 0, 0, 0);
 
         return voltExecuteSQL(true);
     }
@@ -24,23 +24,19 @@ package simbox;
  */
 
 import java.util.Date;
-import java.util.HashMap;
-
 
 import org.voltdb.SQLStmt;
-import org.voltdb.VoltProcedure;
 import org.voltdb.VoltTable;
 import org.voltdb.types.TimestampType;
 
-import org.voltdbse.rules.BadRuleException;
-import org.voltdbse.rules.RuleSet;
-
-public class ReportDeviceActivity extends VoltProcedure {
+public class ReportDeviceActivity extends DeviceDetectionProcedure {
 
     // @formatter:off
 
     public static final SQLStmt getDevice = new SQLStmt(
-            "SELECT * FROM device_table WHERE device_id = ?;");
+            "SELECT current_cell_id, first_seen, last_seen, suspicious_because, suspicious_value "
+            + "     , calls_until_eval, eval_interval_calls, next_eval_time "
+            + "FROM device_table WHERE device_id = ?;");
 
     public static final SQLStmt upsertInCall = new SQLStmt(
             "UPSERT INTO device_incoming_call_history "
@@ -50,9 +46,10 @@ public class ReportDeviceActivity extends VoltProcedure {
                     + "  , duration "
                     + "  , status_code "
                     + ", device_id "
-                    + ",   start_time ) "
+                    + ",   start_time "
+                    + ",   other_number_suspicious ) "
                     + "VALUES "
-                    + "(?,?,?,?,?,?,?)");
+                    + "(?,?,?,?,?,?,?,?)");
 
     public static final SQLStmt upsertOutCall = new SQLStmt(
             "UPSERT INTO device_outgoing_call_history "
@@ -77,119 +74,76 @@ public class ReportDeviceActivity extends VoltProcedure {
     public static final SQLStmt updateDeviceLastSeen = new SQLStmt(
             "UPDATE device_table "
             + "SET last_seen = NOW "
+            + "  , calls_until_eval = calls_until_eval - 1 "
             + "WHERE device_id = ?;");
 
-    public static final SQLStmt getParameter = new SQLStmt(
-            "SELECT parameter_value FROM simbox_parameters WHERE parameter_name = ?;");
-
-    public static final SQLStmt getDeviceCellHistory = new SQLStmt(
-            "SELECT min(from_timestamp) from_timestamp"
-            + "    , sum(incoming_call_count) incoming_call_count"
-            + "    , sum(outgoing_call_count) outgoing_call_count "
-            + "    , sum(incoming_call_duration) incoming_call_duration"
-            + "    , sum(outgoing_call_duration) outgoing_call_duration "
-            + "FROM device_cell_history "
-            + "WHERE device_id = ? "
-            + "AND   from_timestamp >= DATEADD(HOUR, -1 * ?, NOW) ; ");
-
-    public static final SQLStmt getDeviceOutgoingHistorySummary = new SQLStmt(
-            "SELECT min(start_time) start_time"
-            + "    ,max(end_time) end_time"
-            + "    , sum(duration) duration "
-            + "    , count(*) how_many "
-            + "FROM device_outgoing_call_history "
-            + "WHERE device_id = ? "
-            + "AND   start_time >= DATEADD(HOUR, -1 * ?, NOW) ; ");
-
-    public static final SQLStmt getDeviceOutgoingHistory = new SQLStmt(
-            "SELECT other_number "
-            + "    , count(*) how_many "
-            + "FROM device_outgoing_call_history "
-            + "WHERE device_id = ? "
-            + "AND   start_time >= DATEADD(HOUR, -1 * ?, NOW)"
-            + "GROUP BY other_number "
-            + "ORDER BY count(*) DESC ; ");
-
-    public static final SQLStmt getDeviceIncomingHistorySummary = new SQLStmt(
-            "SELECT min(start_time) start_time"
-            + "    ,max(end_time) end_time"
-            + "    , sum(duration) duration "
-            + "    , count(*) how_many "
-            + "FROM device_incoming_call_history "
-            + "WHERE device_id = ? "
-            + "AND   start_time >= DATEADD(HOUR, -1 * ?, NOW) ; ");
-
-    public static final SQLStmt getSuspiciousDeviceIncomingHistorySummary = new SQLStmt(
-            "SELECT min(dicm.start_time) start_time"
-            + "    ,max(dicm.end_time) end_time"
-            + "    , sum(dicm.duration) duration "
-            + "    , count(*) how_many "
-            + "FROM device_incoming_call_history dicm"
-            + "   , suspicious_devices_view v "
-            + "WHERE dicm.device_id = ? "
-            + "AND   dicm.device_id = v.device_id "
-            + "AND   dicm.start_time >= DATEADD(HOUR, -1 * ?, NOW) ; ");
-
-
-    public static final SQLStmt getSuspiciousDevice = new SQLStmt(
-            "SELECT * FROM suspicious_devices_view WHERE device_id = ?;");
-
- 
-    public static final SQLStmt flagDevice = new SQLStmt(
+    public static final SQLStmt setEvaluationSchedule = new SQLStmt(
             "UPDATE device_table "
-            + "SET suspicious_because = ?"
-            + "  , suspicious_value = ? "
+            + "SET calls_until_eval = ? "
+            + "  , eval_interval_calls = ? "
+            + "  , next_eval_time = DATEADD(SECOND, ?, NOW) "
             + "WHERE device_id = ?;");
 
+    public static final SQLStmt getOutgoingNumberCount = new SQLStmt(
+            "SELECT bucket_start, how_many "
+            + "FROM device_outgoing_number_counts "
+            + "WHERE device_id = ? "
+            + "AND   other_number = ?;");
 
-    public static final SQLStmt clearDevice = new SQLStmt(
-            "UPDATE device_table "
-            + "SET suspicious_because = null"
-            + "  , suspicious_value = null "
-            + "WHERE device_id = ?;");
-    
-    public static final SQLStmt getRules = new SQLStmt(RuleSet.GET_RULE_SET);
+    public static final SQLStmt incrementOutgoingNumberCount = new SQLStmt(
+            "UPDATE device_outgoing_number_counts "
+            + "SET how_many = how_many + 1 "
+            + "WHERE device_id = ? "
+            + "AND   other_number = ?;");
 
+    public static final SQLStmt removeStaleOutgoingNumberCounts = new SQLStmt(
+            "DELETE FROM device_outgoing_number_counts "
+            + "WHERE device_id = ? "
+            + "AND   bucket_start < ?;");
+
+    public static final SQLStmt upsertOutgoingNumberCount = new SQLStmt(
+            "UPSERT INTO device_outgoing_number_counts "
+            + "(device_id, other_number, bucket_start, how_many) "
+            + "VALUES "
+            + "(?,?,?,1);");
+
+    public static final SQLStmt upsertDeviceSketches = new SQLStmt(
+            "UPSERT INTO device_sketches "
+            + "(device_id, bucket_start, callee_hll, caller_hll, out_duration_sketch, in_duration_sketch) "
+            + "VALUES "
+            + "(?,?,?,?,?,?);");
+
+    public static final SQLStmt insertCellActivity = new SQLStmt(
+            "INSERT INTO cell_activity_events "
+            + "(device_id, cell_id, event_minute, call_count, call_duration, active_device_count, arrival_count) "
+            + "VALUES "
+            + "(?,?,TRUNCATE(MINUTE, NOW),1,?,?,0);");
 
 	// @formatter:on
-    
-    RuleSet rs = null;
-
-    public VoltTable[] run(long deviceId, TimestampType startTime, int durationSeconds, String inOrOut,
-            long otherNumber, String status) throws VoltAbortException {
-        
-        if (rs == null || rs.expired(getTransactionTime())) {
-            try {
-                rs = createRuleSet("SIMBOX");
-            } catch (BadRuleException e) {
-                throw new VoltAbortException("BadRuleException:"+e.getMessage());
-            }
-        }
-
-        // Note what's changed...
-        updateDatabaseTablesForDevice(deviceId, startTime, durationSeconds, inOrOut, otherNumber, status);
-
-        // See if device's behaviour indicates its in a simbox
-        seeIfDeviceIsSuspect(deviceId, startTime, durationSeconds, inOrOut, otherNumber, status);
-
-        return voltExecuteSQL(true);
-    }
-
-    private RuleSet createRuleSet(String ruleSetName) throws BadRuleException {
-        
-        final Date expiryDate = new Date(getTransactionTime().getTime() + 60000);
-        
-        voltQueueSQL(getRules, ruleSetName);
-
-        VoltTable ruleTable = voltExecuteSQL()[0];
-        
-        RuleSet rs = new RuleSet(ruleSetName,ruleTable,expiryDate);
-        
-        return rs;
-   }
 
     /**
-     * Record the fact that a call has happened.
+     * Record a call and see if it changes our opinion of the device. In the
+     * usual case this is two round trips: one to read the device, and one to
+     * read its features and make every write. The features are read before
+     * the writes in the same batch, so this call is added to them in Java.
+     * Rules, the suspicious number filter and parameters are read at most
+     * once a minute, and a verdict change costs one more batch.
+     * <p>
+     * The verdict writes can't go in the second batch as conditional SQL:
+     * the verdict comes from RuleSet, which runs in Java over that batch's
+     * feature reads, and the rules' thresholds and combinations can't be
+     * expressed as a WHERE clause. So a third batch runs only when the
+     * verdict changes or the guessed schedule turns out to be wrong. Leaving
+     * a schedule correction until the next call would let a device that has
+     * just stopped being clear cut skip evaluations it needs.
+     * <p>
+     * Devices that are a long way from tripping a rule aren't evaluated on
+     * every call. Each evaluation sets how many calls and seconds can pass
+     * before the next one, doubling the gap up to EVAL_MAX_SKIP_CALLS while
+     * the device stays clear cut. Flagged devices, devices in a suspicious
+     * cohort and calls from suspicious numbers are always evaluated. When we
+     * do evaluate, RulePlan leaves out feature queries that only matter to
+     * rule stacks that can't trip.
      * 
      * @param deviceId
      * @param startTime
@@ -197,355 +151,235 @@ public class ReportDeviceActivity extends VoltProcedure {
      * @param inOrOut
      * @param otherNumber
      * @param status
+     * @return
+     * @throws VoltAbortException
      */
-    private void updateDatabaseTablesForDevice(long deviceId, TimestampType startTime, int durationSeconds,
-            String inOrOut, long otherNumber, String status) {
-        // See if we know about this user and transaction...
+    public VoltTable[] run(long deviceId, TimestampType startTime, int durationSeconds, String inOrOut,
+            long otherNumber, String status) throws VoltAbortException {
+        
+        refreshRulesAndFilter();
+
+        final DetectionParameters params = getDetectionParameters();
+        final boolean otherNumberIsSuspicious = isSuspiciousNumber(otherNumber);
+        final boolean isOutgoing = !inOrOut.equalsIgnoreCase("I");
+
+        // Per number counts and sketches share buckets
+        final TimestampType bucketStart = getCountBucketStart(params.hoursBackToCheck);
+
+        // See if we know about this user and what we've seen so far...
         voltQueueSQL(getDevice, deviceId);
+        voltQueueSQL(getSuspiciousDevice, deviceId);
+        voltQueueSQL(getDeviceSketches, deviceId);
 
-        VoltTable deviceTable = voltExecuteSQL()[0];
+        if (isOutgoing) {
+            voltQueueSQL(getOutgoingNumberCount, deviceId, otherNumber);
+        }
+
+        VoltTable[] firstResults = voltExecuteSQL();
+        VoltTable device = firstResults[0];
 
         // Sanity Check: Is this a real user?
-        if (!deviceTable.advanceRow()) {
+        if (!device.advanceRow()) {
             throw new VoltAbortException("Device " + deviceId + " does not exist");
         }
 
-        long currentCellId = deviceTable.getLong("current_cell_id");
-
-        TimestampType endTime = new TimestampType(
-                new Date(startTime.asExactJavaDate().getTime() + (1000 * durationSeconds)));
+        final Date deviceIsYoungEnoughToWorryAbout = new Date(
+                params.getYoungestOldDeviceMs(this.getTransactionTime().getTime()));
+        final boolean deviceIsYoung = deviceIsYoungEnoughToWorryAbout
+                .before(device.getTimestampAsTimestamp("first_seen").asApproximateJavaDate());
+        final boolean thisDeviceIsSuspicious = firstResults[1].advanceRow();
+        final String suspiciousBecause = device.getString("suspicious_because");
+        final long suspiciousValue = device.getLong("suspicious_value");
+        final boolean suspiciousValueIsNull = device.wasNull();
+        final long evalIntervalCalls = device.getLong("eval_interval_calls");
+
+        final boolean checkDevice = deviceIsYoung && (otherNumberIsSuspicious || thisDeviceIsSuspicious
+                || suspiciousBecause != null || isEvaluationDue(params, device));
+
+        // Sketches are kept in Java, so this call can go straight in...
+        DeviceSketches sketches = DeviceSketches.load(firstResults[2], bucketStart);
+
+        if (isOutgoing) {
+            sketches.addOutgoingCall(otherNumber, durationSeconds);
+        } else {
+            sketches.addIncomingCall(otherNumber, durationSeconds);
+        }
 
-        if (inOrOut.equalsIgnoreCase("I")) {
+        // Feature reads go first, so they see the device as it was before
+        // this call. We only run the ones a rule stack that could still trip
+        // needs...
+        int featureQueries = 0;
 
-            voltQueueSQL(upsertInCall, otherNumber, currentCellId, endTime, durationSeconds, status, deviceId,
-                    startTime);
-            voltQueueSQL(incrementCallHistory, 1, 0, durationSeconds, 0, deviceId);
+        if (checkDevice) {
+            featureQueries = getNeededFeatureQueries(params, thisDeviceIsSuspicious, otherNumberIsSuspicious,
+                    sketches);
+            queueFeatureQueries(deviceId, params, bucketStart, featureQueries);
+        }
 
-        } else {
+        long priorNumberCount = 0;
 
-            voltQueueSQL(upsertOutCall, otherNumber, currentCellId, endTime, durationSeconds, status, deviceId,
-                    startTime);
-            voltQueueSQL(incrementCallHistory, 0, 1, 0, durationSeconds, deviceId);
+        if (isOutgoing) {
+            priorNumberCount = countOutgoingNumber(deviceId, otherNumber, bucketStart, firstResults[3]);
         }
 
-        voltQueueSQL(updateDeviceLastSeen, deviceId);
+        // Note what's changed...
+        recordCall(deviceId, device, startTime, durationSeconds, isOutgoing, otherNumber, status,
+                otherNumberIsSuspicious, sketches);
 
-        voltExecuteSQL();
-    }
+        // Every counter for this call goes in one row...
+        final int featureQueriesSkipped = checkDevice
+                ? RulePlan.getStatementCount(RulePlan.ALL_QUERIES) - RulePlan.getStatementCount(featureQueries)
+                : 0;
 
-    /**
-     * See if given device might be in a simbox by looking at its behaviour.
-     * 
-     * @param deviceId
-     * @param startTime
-     * @param durationSeconds
-     * @param inOrOut
-     * @param otherNumber
-     * @param status
-     * @throws BadRuleException 
-     */
-    @SuppressWarnings("unused")
-    private void seeIfDeviceIsSuspect(long deviceId, TimestampType startTime, int durationSeconds, String inOrOut,
-            long otherNumber, String status)  {
-        
-        HashMap<String, Double> theNumericValues = new  HashMap<String, Double>();
-        HashMap<String, String> theStringValues = new HashMap<String, String>();
-
-        // These parameters affect the decision making logic.
-        voltQueueSQL(getParameter, "OUTGOING_CALL_ONLY_COUNT");
-        voltQueueSQL(getParameter, "IMCOMING_CALL_ONLY_COUNT");
-        voltQueueSQL(getParameter, "OUTGOING_INCOMING_RATIO");
-        voltQueueSQL(getParameter, "NOT_NEW_ANY_MORE_DAYS");
-        voltQueueSQL(getParameter, "BUSYNESS_PERCENTAGE");
-        voltQueueSQL(getParameter, "HOURS_BACK_TO_CHECK");
-        voltQueueSQL(getParameter, "TOP_N");
-        voltQueueSQL(getParameter, "TOP_BOTTOM_N_RATIO");
-
-        voltQueueSQL(getDevice, EXPECT_ONE_ROW, deviceId);
-        voltQueueSQL(getSuspiciousDevice, deviceId);
+        voltQueueSQL(countServerStats, deviceId, null, isOutgoing ? 0 : 1, isOutgoing ? 1 : 0, 0, 0, 0,
+                checkDevice ? 1 : 0, deviceIsYoung && !checkDevice ? 1 : 0, featureQueriesSkipped);
 
-        VoltTable[] firstResults = voltExecuteSQL();
+        if (!checkDevice) {
+            return voltExecuteSQL(true);
+        }
 
-        final long outgoingCallThreshold = getParameter(2, firstResults[0]);
-        final long incomingCallThreshold = getParameter(2, firstResults[1]);
-        final long outgoingIncoming = getParameter(10, firstResults[2]);
-        final long notNewAnyMoreDays = getParameter(10, firstResults[3]);
-        final long busynessPercentage = getParameter(30, firstResults[4]);
-        final long hoursBackToCheck = getParameter(3, firstResults[5]);
-        final long topN = getParameter(5, firstResults[6]);
-        final long topBottomNRatio = getParameter(10, firstResults[7]);
-        
+        // Guess the next schedule from how the last evaluation went, so we
+        // only need another batch if the guess turns out to be wrong...
+        final long guessedInterval = getNextEvalInterval(params, evalIntervalCalls, evalIntervalCalls > 1);
 
-        VoltTable device = firstResults[8];
-        device.advanceRow();
+        if (params.evalMaxSkipCalls > 0) {
+            voltQueueSQL(setEvaluationSchedule, guessedInterval, guessedInterval, params.evalMaxSkipSeconds,
+                    deviceId);
+        }
 
-        VoltTable suspiciousDevice = firstResults[9];
-        boolean thisDeviceIsSuspicious = false;
+        VoltTable[] secondResults = voltExecuteSQL();
 
-        if (suspiciousDevice.advanceRow()) {
-            thisDeviceIsSuspicious = true;
-        }
+        // See if device's behaviour indicates its in a simbox
+        final boolean changed = evaluateDevice(deviceId, params, thisDeviceIsSuspicious, otherNumberIsSuspicious,
+                sketches, suspiciousBecause, suspiciousValue, suspiciousValueIsNull, secondResults, 0, featureQueries,
+                new PendingCall(startTime, durationSeconds, isOutgoing, otherNumber, otherNumberIsSuspicious,
+                        priorNumberCount));
 
-        final TimestampType deviceFirstSeen = device.getTimestampAsTimestamp("first_seen");
-        String suspiciousBecause = device.getString("suspicious_because");
+        final long nextInterval = getNextEvalInterval(params, evalIntervalCalls,
+                !changed && lastEvaluationWasClearCut(params));
 
-        if (suspiciousBecause == null) {
-            suspiciousBecause = new String("");
+        if (params.evalMaxSkipCalls > 0 && nextInterval != guessedInterval) {
+            voltQueueSQL(setEvaluationSchedule, nextInterval, nextInterval, params.evalMaxSkipSeconds, deviceId);
         }
 
-        final Date deviceIsYoungEnoughToWorryAbout = new Date(
-                this.getTransactionTime().getTime() - (notNewAnyMoreDays * 24 * 60 * 60 * 1000));
-
-        if (deviceIsYoungEnoughToWorryAbout.before(deviceFirstSeen.asApproximateJavaDate())) {
-
-            voltQueueSQL(getDeviceCellHistory, deviceId, hoursBackToCheck);
-            voltQueueSQL(getDeviceOutgoingHistorySummary, deviceId, hoursBackToCheck);
-            voltQueueSQL(getDeviceIncomingHistorySummary, deviceId, hoursBackToCheck);
-            voltQueueSQL(getSuspiciousDeviceIncomingHistorySummary, deviceId, hoursBackToCheck);
-            voltQueueSQL(getDeviceOutgoingHistory, deviceId, hoursBackToCheck);
-
-            VoltTable[] secondResults = voltExecuteSQL();
-
-            long incomingCallCount = 0;
-            long incomingCallDuration;
-            long outgoingCallCount = 0;
-            long outgoingCallDuration;
-
-            VoltTable cellHistory = secondResults[0];
-            if (cellHistory.advanceRow()) {
-
-                incomingCallCount = cellHistory.getLong("incoming_call_count");
-                incomingCallDuration = cellHistory.getLong("incoming_call_duration");
-                outgoingCallCount = cellHistory.getLong("outgoing_call_count");
-                outgoingCallDuration = cellHistory.getLong("outgoing_call_duration");
-
-            }
-
-            long actualBusyOutCallPct = getActualBusyOutCallPct(outgoingCallThreshold, secondResults[1]);
-
-            long actualBusyInCallPct = getActualBusyInCallPct(incomingCallThreshold, secondResults[2]);
-
-            long actualBusyInCallSuspicuousPct = getActualBusyInCallSuspiciousPct(secondResults[3]);
-
-            long outCallTopBottomNRatio = getTopNRatio(secondResults[4], (int) topN);
-            
-            
-            
-            
-            theNumericValues.put("thisDeviceIsSuspicious", (double) 0);
-            
-            if (thisDeviceIsSuspicious) {
-                theNumericValues.put("thisDeviceIsSuspicious", (double) 1);
-            }
-
-
-            theNumericValues.put("actualBusyInCallPct", (double) actualBusyInCallPct);
-            theNumericValues.put("actualBusyInCallSuspicuousPct", (double) actualBusyInCallSuspicuousPct);  
-            
-            theNumericValues.put("incomingCallCount", (double) incomingCallCount);  
-            theNumericValues.put("outgoingCallCount", (double) outgoingCallCount);  
-            
-            theNumericValues.put("busynessPercentage", (double) busynessPercentage);  
-            theNumericValues.put("actualBusynessPercentage", (double) (actualBusyInCallPct + actualBusyOutCallPct));  
-            theNumericValues.put("outgoingIncomingRatioTrip", (double) (outgoingIncoming * incomingCallCount));  
- 
-            theNumericValues.put("outCallTopBottomNRatio", (double) outCallTopBottomNRatio);              
-            theNumericValues.put("topBottomNRatio", (double) topBottomNRatio);  
-            
-            try {
-                String ruleTripped = rs.evaluate(theNumericValues, theStringValues);
-                
-                if (ruleTripped != null) {
-                    System.out.println(ruleTripped);
-                    voltQueueSQL(flagDevice, ruleTripped, 42,
-                            deviceId);
-                } else {
-                    voltQueueSQL(clearDevice, deviceId);
-                }
-                
-            } catch (BadRuleException e) {
-                System.out.println(rs.toString() + " " + e.getMessage());
-                throw new VoltAbortException("BadRuleException:"+e.getMessage());
-            }
-            
-
-//            // Decide what kind of device this is...
-//            if (thisDeviceIsSuspicious // Known suspicious number
-//                    && actualBusyInCallPct >= 1 // We have incoming calls..
-//                    && actualBusyInCallSuspicuousPct == actualBusyInCallPct) // All of them are from bad numbers
-//            {
-//
-//                voltQueueSQL(flagDevice, "all_incoming_calls_from_known_bad_numbers", actualBusyInCallSuspicuousPct,
-//                        deviceId);
-//
-//            } else if (thisDeviceIsSuspicious && // Known suspicious number
-//                    actualBusyInCallSuspicuousPct > 1) { // At least one call from a bad number
-//
-//                voltQueueSQL(flagDevice, "some_incoming_calls_from_known_bad_numbers", actualBusyInCallSuspicuousPct,
-//                        deviceId);
-//
-//            } else if (thisDeviceIsSuspicious // Known suspicious number
-//                    && incomingCallCount == 0 // no incoming calls
-//                    && outgoingCallCount > 0 // some outgoing calls
-//            ) {
-//                voltQueueSQL(flagDevice, "suspicious_device_has_no_incoming_calls", actualBusyOutCallPct, deviceId);
-//
-//            } else if (thisDeviceIsSuspicious) { // Device is part of a group that have all moved together >= 6 times
-//
-//                voltQueueSQL(flagDevice, "suspiciously_moving_device", actualBusyOutCallPct, deviceId);
-//
-//            } else if ((actualBusyInCallPct + actualBusyOutCallPct) >= busynessPercentage // We're very busy
-//                    && (outgoingIncoming * incomingCallCount) < outgoingCallCount) { // Lots of calls out
-//
-//                voltQueueSQL(flagDevice, "total_incoming_outgoing_ratio_bad",
-//                        actualBusyInCallPct + actualBusyOutCallPct, deviceId);
-//
-//            } else if ((actualBusyInCallPct + actualBusyOutCallPct) >= busynessPercentage // We're very busy
-//                    && outCallTopBottomNRatio < topBottomNRatio) { // Lots of calls out
-//
-//                voltQueueSQL(flagDevice, "topn_incoming_outgoing_ratio_bad", outCallTopBottomNRatio, deviceId);
-//
-//            } else {
-//                voltQueueSQL(clearDevice, deviceId);
-//            }
-
+        if (changed || nextInterval != guessedInterval) {
+            return voltExecuteSQL(true);
         }
 
+        return secondResults;
     }
 
     /**
-     * Determine what % of time is spent making calls
-     * @param outgoingCallThreshold min number of calls before we care
-     * @param outCallHistory Call history
-     * @return 0 or pct spent making calls
+     * Has a device reached the point its last evaluation said it should be
+     * looked at again?
+     * 
+     * @param params
+     * @param device our row from 'device_table'
+     * @return true if it should be evaluated on this call
      */
-    private long getActualBusyOutCallPct(final long outgoingCallThreshold, VoltTable outCallHistory) {
-        long actualBusyOutCallPct = 0;
-
-        if (outCallHistory.advanceRow()) {
-
-            final TimestampType firstSeen = outCallHistory.getTimestampAsTimestamp("start_time");
-            final TimestampType lastSeen = outCallHistory.getTimestampAsTimestamp("end_time");
-            long outgoingCallDurationRecent = outCallHistory.getLong("duration");
-            long howMany = outCallHistory.getLong("how_many");
+    private boolean isEvaluationDue(DetectionParameters params, VoltTable device) {
 
-            if (howMany > outgoingCallThreshold) {
-                // calculate time period covered in seconds
-                final long timePeriodSeconds = (lastSeen.asApproximateJavaDate().getTime()
-                        - firstSeen.asApproximateJavaDate().getTime()) / 1000;
-
-                if (timePeriodSeconds > 0) {
-                actualBusyOutCallPct = (100 * outgoingCallDurationRecent) / timePeriodSeconds;
-                }
-            }
+        if (params.evalMaxSkipCalls <= 0 || device.getLong("calls_until_eval") <= 1) {
+            return true;
         }
-        return actualBusyOutCallPct;
-    }
 
-    /**
-     * Determine what % of time is spent receiving calls
-     * @param outgoingCallThreshold min number of calls before we care
-     * @param outCallHistory Call history
-     * @return 0 or pct spent receiving calls
-     */ 
-    private long getActualBusyInCallPct(final long outgoingCallOnlyCount, VoltTable inCallHistory) {
-        long actualBusyInCallPct = 0;
-
-        if (inCallHistory.advanceRow()) {
-
-            final TimestampType firstSeen = inCallHistory.getTimestampAsTimestamp("start_time");
-            final TimestampType lastSeen = inCallHistory.getTimestampAsTimestamp("end_time");
-            long incomingCallDurationRecent = inCallHistory.getLong("duration");
-            long howMany = inCallHistory.getLong("how_many");
-
-            if (howMany > outgoingCallOnlyCount) {
-                // calculate time period covered in seconds
-                final long timePeriodSeconds = (lastSeen.asApproximateJavaDate().getTime()
-                        - firstSeen.asApproximateJavaDate().getTime()) / 1000;
-                if (timePeriodSeconds > 0) {
-                actualBusyInCallPct = (100 * incomingCallDurationRecent) / timePeriodSeconds;
-                }
-            }
-        }
-        return actualBusyInCallPct;
+        final TimestampType nextEvalTime = device.getTimestampAsTimestamp("next_eval_time");
+
+        return nextEvalTime == null || !getTransactionTime().before(nextEvalTime.asApproximateJavaDate());
     }
 
     /**
-     * Determine what % of time is spent receiving calls from numbers we think are suspicious
-     * @param outCallHistory Call history
-     * @return pct spent receiving calls
-     */ 
-     private long getActualBusyInCallSuspiciousPct(VoltTable suspiciousInCallHistorySummary) {
-
-        long actualBusyInCallSuspicuousPct = 0;
-
-        if (suspiciousInCallHistorySummary.advanceRow()) {
-
-            final TimestampType firstSeen = suspiciousInCallHistorySummary.getTimestampAsTimestamp("start_time");
-            final TimestampType lastSeen = suspiciousInCallHistorySummary.getTimestampAsTimestamp("end_time");
-            long incomingCallDurationRecent = suspiciousInCallHistorySummary.getLong("duration");
-            long howMany = suspiciousInCallHistorySummary.getLong("how_many");
-
-            if (howMany > 0) {
-                // calculate time period covered in seconds
-                final long timePeriodSeconds = (lastSeen.asApproximateJavaDate().getTime()
-                        - firstSeen.asApproximateJavaDate().getTime()) / 1000;
-
-                if (timePeriodSeconds > 0) {
-                    actualBusyInCallSuspicuousPct = (100 * incomingCallDurationRecent) / timePeriodSeconds;
-
-                }
+     * @param params
+     * @param evalIntervalCalls gap before the evaluation we've just done
+     * @param clearCut          true if the device is a long way from
+     *                          tripping a rule
+     * @return how many calls to wait before evaluating again
+     */
+    private long getNextEvalInterval(DetectionParameters params, long evalIntervalCalls, boolean clearCut) {
 
-            }
+        if (!clearCut) {
+            return 1;
         }
 
-        return actualBusyInCallSuspicuousPct;
+        return Math.min(Math.max(1, params.evalMaxSkipCalls), Math.max(1, evalIntervalCalls) * 2);
     }
 
     /**
-     * Get ratio between total number of calls for top 'n' busiest numbers and 
-     * bottom 'n' busiest numbers
+     * Queue the writes that record the fact that a call has happened.
      * 
-     * @param suspiciousInCallHistory
-     * @param n - how many to compare 
-     * @return Integer.MAX_VALUE if less than n * 2 calls, otherwise ratio top n : bottom n
+     * @param deviceId
+     * @param device                  our row from 'device_table'
+     * @param startTime
+     * @param durationSeconds
+     * @param isOutgoing
+     * @param otherNumber
+     * @param status
+     * @param otherNumberIsSuspicious true if 'otherNumber' is in the suspicious number filter
+     * @param sketches                the device's sketches, including this call
      */
-    private int getTopNRatio(VoltTable suspiciousInCallHistory, int n) {
+    private void recordCall(long deviceId, VoltTable device, TimestampType startTime, int durationSeconds,
+            boolean isOutgoing, long otherNumber, String status, boolean otherNumberIsSuspicious,
+            DeviceSketches sketches) {
 
-        int topNCalls = 0;
-        int bottomNCalls = 0;
+        long currentCellId = device.getLong("current_cell_id");
+        final boolean cellIsKnown = !device.wasNull();
 
-        if (suspiciousInCallHistory.getRowCount() >= (n * 2)) {
+        // A device counts towards a cell's active devices the first time it's
+        // seen in a minute. last_seen is about to be moved on to now.
+        final long lastSeenMinute = device.getTimestampAsTimestamp("last_seen").getTime() / 60000000;
+        final long thisMinute = getTransactionTime().getTime() / 60000;
 
-            while (suspiciousInCallHistory.advanceRow()) {
+        TimestampType endTime = new TimestampType(
+                new Date(startTime.asExactJavaDate().getTime() + (1000 * durationSeconds)));
 
-                if (suspiciousInCallHistory.getActiveRowIndex() < n) {
-                    topNCalls += suspiciousInCallHistory.getLong("how_many");
-                } else if (suspiciousInCallHistory.getActiveRowIndex() > suspiciousInCallHistory.getRowCount() - n) {
-                    bottomNCalls += suspiciousInCallHistory.getLong("how_many");
-                }
+        if (!isOutgoing) {
 
-            }
+            voltQueueSQL(upsertInCall, otherNumber, currentCellId, endTime, durationSeconds, status, deviceId,
+                    startTime, otherNumberIsSuspicious ? 1 : 0);
+            voltQueueSQL(incrementCallHistory, 1, 0, durationSeconds, 0, deviceId);
 
         } else {
-            return Integer.MAX_VALUE;
+
+            voltQueueSQL(upsertOutCall, otherNumber, currentCellId, endTime, durationSeconds, status, deviceId,
+                    startTime);
+            voltQueueSQL(incrementCallHistory, 0, 1, 0, durationSeconds, deviceId);
         }
 
-        return topNCalls / bottomNCalls;
+        voltQueueSQL(updateDeviceLastSeen, deviceId);
+
+        if (cellIsKnown) {
+            voltQueueSQL(insertCellActivity, deviceId, currentCellId, durationSeconds,
+                    lastSeenMinute < thisMinute ? 1 : 0);
+        }
+
+        voltQueueSQL(upsertDeviceSketches, deviceId, sketches.getBucketStart(), sketches.getCalleeBytes(),
+                sketches.getCallerBytes(), sketches.getOutgoingDurationBytes(), sketches.getIncomingDurationBytes());
     }
 
     /**
-     * Get a parameter or its default value
+     * Add one to the count of calls from 'deviceId' to 'otherNumber' in the
+     * current bucket. The first time a device calls a number in a new bucket
+     * we throw away its counts from old buckets, so each stale row is only
+     * ever deleted once.
      * 
-     * @param value          - default value
-     * @param parameterTable
-     * @return a parameter or its default value
+     * @param deviceId
+     * @param otherNumber
+     * @param bucketStart
+     * @param currentCount output of 'getOutgoingNumberCount'
+     * @return how many times 'deviceId' had already called 'otherNumber' in
+     *         this bucket
      */
-    protected long getParameter(long value, VoltTable parameterTable) {
-        if (parameterTable.advanceRow()) {
-            value = parameterTable.getLong("parameter_value");
+    private long countOutgoingNumber(long deviceId, long otherNumber, TimestampType bucketStart,
+            VoltTable currentCount) {
+
+        if (currentCount.advanceRow() && currentCount.getTimestampAsTimestamp("bucket_start").equals(bucketStart)) {
+            voltQueueSQL(incrementOutgoingNumberCount, deviceId, otherNumber);
+            return currentCount.getLong("how_many");
         }
-        return value;
+
+        voltQueueSQL(removeStaleOutgoingNumberCounts, deviceId, bucketStart);
+        voltQueueSQL(upsertOutgoingNumberCount, deviceId, otherNumber, bucketStart);
+        return 0;
     }
 
 }
@@ -0,0 +1,174 @@
+package simbox;
+
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.types.TimestampType;
+
+/**
+ * Run the detection pipeline over the devices in one partition that are
+ * still young enough to worry about, so a change to 'volt_rules' or
+ * 'simbox_parameters' reaches devices that haven't made a call since.
+ * <p>
+ * Each call reads no more than 'maxRows' rows of device_table with ids after
+ * 'afterDeviceId', in primary key order, and returns where it got to, so a
+ * partition is walked in short transactions that don't hold up
+ * ReportDeviceActivity. Old devices are skipped here rather than in SQL:
+ * first_seen isn't indexed, so filtering on it would make one call walk
+ * past any number of old devices looking for young ones. The first
+ * parameter is a partition key from @GetPartitionKeys and only picks the
+ * partition. Calls don't involve a particular call, so
+ * otherNumberIsSuspicious is always 0.
+ * <p>
+ * Rules, the suspicious number filter and parameters are read afresh on
+ * every call rather than taken from the one minute caches, so a rescore
+ * started straight after an edit uses the new values.
+ *
+ */
+public class RescoreDevices extends DeviceDetectionProcedure {
+
+    // @formatter:off
+
+    public static final SQLStmt getDevices = new SQLStmt(
+            "SELECT device_id, first_seen, suspicious_because, suspicious_value "
+            + "FROM device_table "
+            + "WHERE device_id > ? "
+            + "ORDER BY device_id LIMIT ?;");
+
+    // @formatter:on
+
+    /**
+     * Statements we queue for each device. Whether a device is in a
+     * suspicious cohort comes back in the same batch as its features, so we
+     * can't use the rule plan to skip any of them.
+     */
+    private static final int QUERIES_PER_DEVICE = FEATURE_QUERY_COUNT + 2;
+
+    /**
+     * Devices whose reads fit in one batch, leaving room for their writes
+     */
+    private static final int DEVICES_PER_BATCH = 20;
+
+    /**
+     * @param partitionKey  any value that hashes to the partition we want
+     * @param afterDeviceId last device id looked at by the previous call, or
+     *                      Long.MIN_VALUE to start at the beginning
+     * @param maxRows       most device rows to read in this call
+     * @return one row: where we got to, how many rows we read, how many young
+     *         devices we rescored, how many changed, and 1 if the partition
+     *         has been finished
+     * @throws VoltAbortException
+     */
+    public VoltTable[] run(long partitionKey, long afterDeviceId, int maxRows) throws VoltAbortException {
+
+        refreshRulesAndFilter(true);
+
+        final DetectionParameters params = getDetectionParameters(true);
+
+        final TimestampType bucketStart = getCountBucketStart(params.hoursBackToCheck);
+        final long youngestOldMs = params.getYoungestOldDeviceMs(getTransactionTime().getTime());
+
+        voltQueueSQL(getDevices, afterDeviceId, maxRows);
+        VoltTable devices = voltExecuteSQL()[0];
+
+        final int rowCount = devices.getRowCount();
+        long lastDeviceId = afterDeviceId;
+
+        // Rows of 'devices' that are young enough to rescore
+        int[] youngRows = new int[rowCount];
+        int deviceCount = 0;
+
+        while (devices.advanceRow()) {
+
+            lastDeviceId = devices.getLong("device_id");
+
+            if (devices.getTimestampAsTimestamp("first_seen").getTime() / 1000 > youngestOldMs) {
+                youngRows[deviceCount++] = devices.getActiveRowIndex();
+            }
+        }
+
+        int changedCount = 0;
+
+        for (int first = 0; first < deviceCount; first += DEVICES_PER_BATCH) {
+
+            final int last = Math.min(deviceCount, first + DEVICES_PER_BATCH);
+
+            for (int i = first; i < last; i++) {
+
+                devices.advanceToRow(youngRows[i]);
+                final long deviceId = devices.getLong("device_id");
+
+                voltQueueSQL(getSuspiciousDevice, deviceId);
+                voltQueueSQL(getDeviceSketches, deviceId);
+                queueFeatureQueries(deviceId, params, bucketStart, RulePlan.ALL_QUERIES);
+            }
+
+            VoltTable[] results = voltExecuteSQL();
+            boolean writesQueued = false;
+
+            for (int i = first; i < last; i++) {
+
+                devices.advanceToRow(youngRows[i]);
+                final long deviceId = devices.getLong("device_id");
+                final String suspiciousBecause = devices.getString("suspicious_because");
+                final long suspiciousValue = devices.getLong("suspicious_value");
+                final boolean suspiciousValueIsNull = devices.wasNull();
+
+                final int offset = (i - first) * QUERIES_PER_DEVICE;
+                final boolean thisDeviceIsSuspicious = results[offset].advanceRow();
+                final DeviceSketches sketches = DeviceSketches.load(results[offset + 1], bucketStart);
+
+                if (evaluateDevice(deviceId, params, thisDeviceIsSuspicious, false, sketches, suspiciousBecause,
+                        suspiciousValue, suspiciousValueIsNull, results, offset + 2, RulePlan.ALL_QUERIES, null)) {
+                    changedCount++;
+                    writesQueued = true;
+                }
+            }
+
+            if (writesQueued) {
+                voltExecuteSQL();
+            }
+        }
+
+        if (deviceCount > 0) {
+            voltQueueSQL(countServerStats, partitionKey, null, 0, 0, 0, 0, deviceCount, 0, 0, 0);
+            voltExecuteSQL();
+        }
+
+        VoltTable progress = new VoltTable(new VoltTable.ColumnInfo("last_device_id", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("rows_read", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("devices_checked", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("devices_changed", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("finished", VoltType.TINYINT));
+
+        progress.addRow(lastDeviceId, rowCount, deviceCount, changedCount, rowCount < maxRows ? 1 : 0);
+
+        return new VoltTable[] { progress };
+    }
+
+}
@@ -0,0 +1,106 @@
+package simbox;
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+
+/**
+ * Get ready for BootstrapDevices by removing every device and making sure
+ * our cells exist. After this every device id is known to be new.
+ *
+ */
+public class ResetForBootstrap extends VoltProcedure {
+
+    // @formatter:off
+
+    public static final SQLStmt removeDevices = new SQLStmt(
+            "DELETE FROM device_table;");
+
+    public static final SQLStmt removeDeviceCellHistory = new SQLStmt(
+            "DELETE FROM device_cell_history;");
+
+    public static final SQLStmt removeIncomingCallHistory = new SQLStmt(
+            "DELETE FROM device_incoming_call_history;");
+
+    public static final SQLStmt removeOutgoingCallHistory = new SQLStmt(
+            "DELETE FROM device_outgoing_call_history;");
+
+    public static final SQLStmt removeOutgoingNumberCounts = new SQLStmt(
+            "DELETE FROM device_outgoing_number_counts;");
+
+    public static final SQLStmt removeDeviceSketches = new SQLStmt(
+            "DELETE FROM device_sketches;");
+
+    public static final SQLStmt removeCellActivity = new SQLStmt(
+            "DELETE FROM cell_minute_activity;");
+
+    public static final SQLStmt removeServerStats = new SQLStmt(
+            "DELETE FROM server_stats_view;");
+
+    public static final SQLStmt removeSuspicionLog = new SQLStmt(
+            "DELETE FROM device_suspicion_log;");
+
+    public static final SQLStmt upsertCell = new SQLStmt(
+            "UPSERT INTO cell_table (cell_id) VALUES (?);");
+
+ 	// @formatter:on
+
+    /**
+     * How many statements we queue before executing them
+     */
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * @param cellCount cells 0 to cellCount - 1 will exist when we finish
+     * @return
+     * @throws VoltAbortException
+     */
+    public VoltTable[] run(int cellCount) throws VoltAbortException {
+
+        voltQueueSQL(removeDevices);
+        voltQueueSQL(removeDeviceCellHistory);
+        voltQueueSQL(removeIncomingCallHistory);
+        voltQueueSQL(removeOutgoingCallHistory);
+        voltQueueSQL(removeOutgoingNumberCounts);
+        voltQueueSQL(removeDeviceSketches);
+        voltQueueSQL(removeSuspicionLog);
+        voltQueueSQL(removeCellActivity);
+        voltQueueSQL(removeServerStats);
+        voltExecuteSQL();
+
+        for (int i = 0; i < cellCount; i++) {
+
+            voltQueueSQL(upsertCell, i);
+
+            if ((i + 1) % BATCH_SIZE == 0) {
+                voltExecuteSQL();
+            }
+        }
+
+        return voltExecuteSQL(true);
+    }
+}
@@ -0,0 +1,415 @@
+package simbox;
+
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.voltdb.VoltTable;
+
+/**
+ * Works out which of the feature queries a device actually needs, given the
+ * rule stacks in 'volt_rules'.
+ * <p>
+ * Every feature is registered with the queries it's built from. Features
+ * that don't need a query, such as whether the device is in a suspicious
+ * cohort, are free. Stacks are split up the way RuleSet does it: a new stack
+ * starts whenever STACK_NAME changes from one row to the next, and the
+ * stack's ISAND comes from its first row. RuleSet trips an AND stack if its
+ * first rule passes, and an OR stack if any rule passes. So we can rule out
+ * an AND stack when its first rule is free and fails, and an OR stack when
+ * every rule is free and fails. Any other stack needs every query its rules
+ * and its score depend on.
+ * <p>
+ * The plan only decides what to fetch. RuleSet still evaluates the rules, and
+ * features whose queries weren't run are given a placeholder value that can
+ * only be seen by stacks the plan has already ruled out.
+ *
+ */
+public class RulePlan {
+
+    /**
+     * getDeviceCellHistory
+     */
+    public static final int CELL_HISTORY = 1;
+
+    /**
+     * getDeviceOutgoingHistorySummary
+     */
+    public static final int OUTGOING_SUMMARY = 2;
+
+    /**
+     * getDeviceIncomingHistorySummary
+     */
+    public static final int INCOMING_SUMMARY = 4;
+
+    /**
+     * getSuspiciousDeviceIncomingHistorySummary
+     */
+    public static final int SUSPICIOUS_INCOMING_SUMMARY = 8;
+
+    /**
+     * getTopOutgoingNumberCounts and getBottomOutgoingNumberCounts
+     */
+    public static final int NUMBER_COUNTS = 16;
+
+    /**
+     * Every feature query
+     */
+    public static final int ALL_QUERIES = CELL_HISTORY | OUTGOING_SUMMARY | INCOMING_SUMMARY
+            | SUSPICIOUS_INCOMING_SUMMARY | NUMBER_COUNTS;
+
+    /**
+     * Placeholder for a feature whose queries weren't run
+     */
+    public static final double NOT_FETCHED = 0;
+
+    /**
+     * How RuleSet spells an AND stack. Anything else is treated as OR.
+     */
+    private static final String AND = "AND";
+
+    /**
+     * Queries each feature is built from. Features not listed are free.
+     */
+    private static final HashMap<String, Integer> FEATURE_QUERIES = new HashMap<String, Integer>();
+
+    static {
+        FEATURE_QUERIES.put("incomingCallCount", CELL_HISTORY);
+        FEATURE_QUERIES.put("outgoingCallCount", CELL_HISTORY);
+        FEATURE_QUERIES.put("outgoingIncomingRatioTrip", CELL_HISTORY);
+        FEATURE_QUERIES.put("actualBusyOutCallPct", OUTGOING_SUMMARY);
+        FEATURE_QUERIES.put("actualBusyInCallPct", INCOMING_SUMMARY);
+        FEATURE_QUERIES.put("actualBusynessPercentage", OUTGOING_SUMMARY | INCOMING_SUMMARY);
+        FEATURE_QUERIES.put("actualBusyInCallSuspicuousPct", SUSPICIOUS_INCOMING_SUMMARY);
+        FEATURE_QUERIES.put("outCallTopBottomNRatio", NUMBER_COUNTS);
+    }
+
+    /**
+     * Our stacks, in the order RuleSet evaluates them
+     */
+    private final ArrayList<Stack> stacks = new ArrayList<Stack>();
+
+    /**
+     * Build a plan from the output of RuleSet.GET_RULE_SET.
+     * 
+     * @param ruleTable
+     * @param scoreFeatures       feature each stack is scored by
+     * @param defaultScoreFeature feature used for stacks not in
+     *                            'scoreFeatures'
+     */
+    public RulePlan(VoltTable ruleTable, Map<String, String> scoreFeatures, String defaultScoreFeature) {
+
+        super();
+
+        Stack stack = null;
+
+        ruleTable.resetRowPosition();
+
+        while (ruleTable.advanceRow()) {
+
+            final String stackName = ruleTable.getString("STACK_NAME");
+
+            if (stack == null || !stack.stackName.equals(stackName)) {
+
+                String scoreFeature = scoreFeatures.get(stackName);
+
+                if (scoreFeature == null) {
+                    scoreFeature = defaultScoreFeature;
+                }
+
+                stack = new Stack(stackName, AND.equals(ruleTable.getString("ISAND")), getQueries(scoreFeature));
+                stacks.add(stack);
+            }
+
+            final String ruleField = ruleTable.getString("RULE_FIELD");
+            final String thresholdExpression = ruleTable.getString("THRESHOLD_EXPRESSION");
+
+            final double threshold = ruleTable.getDouble("THRESHOLD_FLOAT");
+            final boolean thresholdIsNull = ruleTable.wasNull();
+
+            int queries = getQueries(ruleField);
+
+            if (thresholdExpression != null) {
+                queries |= getQueries(thresholdExpression);
+            }
+
+            stack.add(new Condition(ruleField, ruleTable.getString("RULE_OPERATOR"), threshold,
+                    thresholdExpression, thresholdIsNull && thresholdExpression == null, queries));
+        }
+
+        ruleTable.resetRowPosition();
+
+    }
+
+    /**
+     * Work out which feature queries could change the outcome of the rules.
+     * 
+     * @param freeFeatures values of the features that don't need a query
+     * @return a mask of the queries we need to run
+     */
+    public int getNeededQueries(HashMap<String, Double> freeFeatures) {
+
+        int neededQueries = 0;
+
+        for (int i = 0; i < stacks.size(); i++) {
+
+            Stack stack = stacks.get(i);
+
+            if (!stack.isRuledOut(freeFeatures)) {
+                neededQueries |= stack.queries;
+            }
+        }
+
+        return neededQueries;
+    }
+
+    /**
+     * Replace the features whose queries weren't run with NOT_FETCHED.
+     * 
+     * @param theNumericValues
+     * @param queries          queries that were run
+     */
+    public static void markUnfetched(HashMap<String, Double> theNumericValues, int queries) {
+
+        for (Map.Entry<String, Integer> entry : FEATURE_QUERIES.entrySet()) {
+            if ((entry.getValue() & queries) != entry.getValue()) {
+                theNumericValues.put(entry.getKey(), NOT_FETCHED);
+            }
+        }
+    }
+
+    /**
+     * Take the features whose queries weren't run out of a set of values, so
+     * they don't end up in alerts.
+     * 
+     * @param theNumericValues
+     * @param queries          queries that were run
+     */
+    public static void removeUnfetched(Map<String, Double> theNumericValues, int queries) {
+
+        Iterator<String> i = theNumericValues.keySet().iterator();
+
+        while (i.hasNext()) {
+            final int featureQueries = getQueries(i.next());
+            if ((featureQueries & queries) != featureQueries) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * @param feature
+     * @return queries 'feature' is built from, or 0 if it's free
+     */
+    private static int getQueries(String feature) {
+
+        Integer queries = FEATURE_QUERIES.get(feature);
+
+        if (queries == null) {
+            return 0;
+        }
+
+        return queries.intValue();
+    }
+
+    /**
+     * @param queries a mask of feature queries
+     * @return how many SQL statements they take
+     */
+    public static int getStatementCount(int queries) {
+
+        int cost = Integer.bitCount(queries);
+
+        // Top and bottom counts are two statements...
+        if ((queries & NUMBER_COUNTS) != 0) {
+            cost++;
+        }
+
+        return cost;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("RulePlan [stacks=");
+        builder.append(stacks.size());
+        builder.append("]");
+        return builder.toString();
+    }
+
+    /**
+     * A run of rows with the same STACK_NAME
+     */
+    private static class Stack {
+
+        /**
+         * Name of the stack
+         */
+        final String stackName;
+
+        /**
+         * True if every rule has to pass, as RuleSet decides it
+         */
+        final boolean isAnd;
+
+        /**
+         * Our rules, in SEQNO order
+         */
+        final ArrayList<Condition> conditions = new ArrayList<Condition>();
+
+        /**
+         * Queries behind our rules and our score
+         */
+        int queries;
+
+        Stack(String stackName, boolean isAnd, int scoreQueries) {
+            super();
+            this.stackName = stackName;
+            this.isAnd = isAnd;
+            this.queries = scoreQueries;
+        }
+
+        /**
+         * @param c a rule from our next row
+         */
+        void add(Condition c) {
+            conditions.add(c);
+            queries |= c.queries;
+        }
+
+        /**
+         * @param freeFeatures
+         * @return true if we can tell from 'freeFeatures' alone that RuleSet
+         *         won't trip this stack
+         */
+        boolean isRuledOut(HashMap<String, Double> freeFeatures) {
+
+            // RuleSet trips an AND stack if its first rule passes...
+            if (isAnd) {
+                return conditions.get(0).isKnownToFail(freeFeatures);
+            }
+
+            // ...and an OR stack if any rule does
+            for (int i = 0; i < conditions.size(); i++) {
+                if (!conditions.get(i).isKnownToFail(freeFeatures)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * One rule in a stack
+     */
+    private static class Condition {
+
+        /**
+         * Feature we test
+         */
+        final String ruleField;
+
+        /**
+         * One of the operators RuleSet understands
+         */
+        final String operator;
+
+        /**
+         * Fixed threshold, if 'thresholdExpression' is null
+         */
+        final double threshold;
+
+        /**
+         * Feature we compare against, or null
+         */
+        final String thresholdExpression;
+
+        /**
+         * True if we compare strings, which we can't judge ahead of time
+         */
+        final boolean isStringRule;
+
+        /**
+         * Queries we need to judge this rule
+         */
+        final int queries;
+
+        Condition(String ruleField, String operator, double threshold, String thresholdExpression,
+                boolean isStringRule, int queries) {
+            super();
+            this.ruleField = ruleField;
+            this.operator = operator;
+            this.threshold = threshold;
+            this.thresholdExpression = thresholdExpression;
+            this.isStringRule = isStringRule;
+            this.queries = queries;
+        }
+
+        /**
+         * @param freeFeatures
+         * @return true if we can tell from 'freeFeatures' alone that this
+         *         rule fails
+         */
+        boolean isKnownToFail(HashMap<String, Double> freeFeatures) {
+
+            if (isStringRule || queries != 0) {
+                return false;
+            }
+
+            final Double value = freeFeatures.get(ruleField);
+            final Double limit = thresholdExpression == null ? Double.valueOf(threshold)
+                    : freeFeatures.get(thresholdExpression);
+
+            if (value == null || limit == null) {
+                return false;
+            }
+
+            final double v = value.doubleValue();
+            final double l = limit.doubleValue();
+
+            if (operator.equals("=")) {
+                return v != l;
+            } else if (operator.equals("!=")) {
+                return v == l;
+            } else if (operator.equals("<")) {
+                return !(v < l);
+            } else if (operator.equals("<=")) {
+                return !(v <= l);
+            } else if (operator.equals(">")) {
+                return !(v > l);
+            } else if (operator.equals(">=")) {
+                return !(v >= l);
+            }
+
+            return false;
+        }
+    }
+
+}
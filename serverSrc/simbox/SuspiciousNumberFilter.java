@@ -0,0 +1,262 @@
+package simbox;
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * A Bloom filter of phone numbers we think are suspicious.
+ * <p>
+ * It's built in one go by RebuildSuspiciousNumberFilter and
+ * NoteSuspiciousCohort, stored as a single VARBINARY row in the replicated
+ * table 'suspicious_number_filter', and then only ever read. A stored filter
+ * is identified by the unique id of the transaction that wrote it, so sites
+ * that load the same version can share one decoded copy.
+ * <p>
+ * 'mightContain' never gives a false negative. About 1% of good numbers
+ * will test positive.
+ *
+ */
+public class SuspiciousNumberFilter {
+
+    /**
+     * Key of our row in 'suspicious_number_filter'
+     */
+    public static final String FILTER_NAME = "SUSPICIOUS_NUMBERS";
+
+    /**
+     * Bits per expected entry. 10 bits and 7 hashes gives ~1% false positives.
+     */
+    private static final int BITS_PER_ENTRY = 10;
+
+    /**
+     * How many hash functions we use
+     */
+    private static final int HASH_COUNT = 7;
+
+    /**
+     * Smallest filter we'll make, in bits
+     */
+    private static final int MIN_BITS = 1 << 16;
+
+    /**
+     * Largest filter we'll make, in bits. A VARBINARY can't be bigger than 1MB,
+     * so we stop at 512KB.
+     */
+    private static final int MAX_BITS = 1 << 22;
+
+    /**
+     * Header is hash count and word count
+     */
+    private static final int HEADER_BYTES = 8;
+
+    /**
+     * Most recently decoded filter, shared by every site in this JVM.
+     */
+    private static volatile SuspiciousNumberFilter latest = null;
+
+    /**
+     * The bits
+     */
+    private final long[] words;
+
+    /**
+     * words.length * 64 - 1. Bit counts are always a power of 2.
+     */
+    private final long bitMask;
+
+    /**
+     * How many hashes we use
+     */
+    private final int hashCount;
+
+    /**
+     * Version we were stored as, or 0 if we haven't been
+     */
+    private final long version;
+
+    /**
+     * Create an empty filter big enough for 'expectedEntries' numbers
+     * 
+     * @param expectedEntries
+     */
+    public SuspiciousNumberFilter(int expectedEntries) {
+
+        long bitsWanted = Math.max(MIN_BITS, Math.min(MAX_BITS, (long) expectedEntries * BITS_PER_ENTRY));
+        int bits = Integer.highestOneBit((int) bitsWanted);
+
+        if (bits < bitsWanted && bits < MAX_BITS) {
+            bits = bits << 1;
+        }
+
+        this.words = new long[bits / 64];
+        this.bitMask = bits - 1;
+        this.hashCount = HASH_COUNT;
+        this.version = 0;
+    }
+
+    /**
+     * Decode a stored filter.
+     * 
+     * @param version
+     * @param storedBits output of toBytes()
+     */
+    private SuspiciousNumberFilter(long version, byte[] storedBits) {
+
+        ByteBuffer bb = ByteBuffer.wrap(storedBits);
+
+        this.hashCount = bb.getInt();
+        this.words = new long[bb.getInt()];
+        this.bitMask = (words.length * 64L) - 1;
+        this.version = version;
+
+        for (int i = 0; i < words.length; i++) {
+            words[i] = bb.getLong();
+        }
+    }
+
+    /**
+     * Get a decoded filter for a stored version, reusing the one another site
+     * decoded if possible.
+     * 
+     * @param version
+     * @param storedBits
+     * @return a filter
+     */
+    public static SuspiciousNumberFilter decode(long version, byte[] storedBits) {
+
+        SuspiciousNumberFilter shared = latest;
+
+        if (shared != null && shared.version == version) {
+            return shared;
+        }
+
+        shared = new SuspiciousNumberFilter(version, storedBits);
+        latest = shared;
+
+        return shared;
+    }
+
+    /**
+     * Decode a stored filter so more numbers can be added to it. The result
+     * is never shared.
+     * 
+     * @param storedBits output of toBytes()
+     * @return a filter we can add to
+     */
+    public static SuspiciousNumberFilter fromBytes(byte[] storedBits) {
+        return new SuspiciousNumberFilter(0, storedBits);
+    }
+
+    /**
+     * @param version
+     * @return the shared copy of 'version' if some site has already decoded
+     *         it, otherwise null
+     */
+    public static SuspiciousNumberFilter getShared(long version) {
+
+        SuspiciousNumberFilter shared = latest;
+
+        if (shared != null && shared.version == version) {
+            return shared;
+        }
+
+        return null;
+    }
+
+    /**
+     * Add a number. Only used while building a filter.
+     * 
+     * @param number
+     */
+    public void add(long number) {
+
+        if (version != 0) {
+            throw new IllegalStateException("Stored filters are read only");
+        }
+
+        final long hash = NumberHash.mix(number);
+        final long h1 = hash & 0xFFFFFFFFL;
+        final long h2 = (hash >>> 32) | 1;
+
+        for (int i = 0; i < hashCount; i++) {
+            final long bit = (h1 + (i * h2)) & bitMask;
+            words[(int) (bit >>> 6)] |= (1L << bit);
+        }
+    }
+
+    /**
+     * @param number
+     * @return false if 'number' is definitely not suspicious, true if it
+     *         probably is.
+     */
+    public boolean mightContain(long number) {
+
+        final long hash = NumberHash.mix(number);
+        final long h1 = hash & 0xFFFFFFFFL;
+        final long h2 = (hash >>> 32) | 1;
+
+        for (int i = 0; i < hashCount; i++) {
+            final long bit = (h1 + (i * h2)) & bitMask;
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return how many numbers this filter was sized for
+     */
+    public int getCapacity() {
+        return (int) ((bitMask + 1) / BITS_PER_ENTRY);
+    }
+
+    /**
+     * @return the version we were stored as
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return us, as something that can go in a VARBINARY column
+     */
+    public byte[] toBytes() {
+
+        ByteBuffer bb = ByteBuffer.allocate(HEADER_BYTES + (words.length * 8));
+
+        bb.putInt(hashCount);
+        bb.putInt(words.length);
+
+        for (int i = 0; i < words.length; i++) {
+            bb.putLong(words[i]);
+        }
+
+        return bb.array();
+    }
+
+}
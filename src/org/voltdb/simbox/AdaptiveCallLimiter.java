@@ -0,0 +1,466 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2022 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.simbox;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.voltdb.VoltType;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.NoConnectionsException;
+import org.voltdb.client.ProcedureCallback;
+
+/**
+ * Limits how many calls can be outstanding against each partition, adjusting
+ * the limit to hold a target p99 latency.
+ * <p>
+ * Each partition starts with INITIAL_LIMIT permits. Every WINDOW_SAMPLES
+ * responses we work out the window's p99. If it's over target, or the server
+ * told us it was overloaded, the limit is cut by BACKOFF_RATIO. If it's under
+ * target and we actually used most of the limit, the limit goes up by one.
+ * <p>
+ * A phone call that can't get permits for both its legs within 'maxWaitNanos'
+ * is rejected as a whole, so a saturated cluster sheds load instead of building
+ * an unbounded client side queue. Events that change what the server knows
+ * about a device, like registrations and cell moves, wait for as long as it
+ * takes instead.
+ *
+ */
+public class AdaptiveCallLimiter {
+
+    /**
+     * Permits a partition starts with
+     */
+    private static final int INITIAL_LIMIT = 20;
+
+    /**
+     * Fewest permits a partition can have
+     */
+    private static final int MIN_LIMIT = 1;
+
+    /**
+     * Most permits a partition can have
+     */
+    private static final int MAX_LIMIT = 2000;
+
+    /**
+     * Responses per window
+     */
+    private static final int WINDOW_SAMPLES = 100;
+
+    /**
+     * How much the limit shrinks when latency is too high
+     */
+    private static final double BACKOFF_RATIO = 0.9;
+
+    /**
+     * We only grow the limit if in flight calls reached this fraction of it
+     */
+    private static final double GROW_THRESHOLD = 0.8;
+
+    /**
+     * 'maxWaitNanos' value for callers that must not be rejected
+     */
+    private static final long WAIT_FOREVER = -1;
+
+    /**
+     * How long we pause before offering a call the client refused again
+     */
+    private static final long RESUBMIT_PAUSE_NANOS = 1000000;
+
+    /**
+     * Our handle to VoltDB
+     */
+    private final Client voltClient;
+
+    /**
+     * Latency we're aiming for
+     */
+    private final long targetP99Nanos;
+
+    /**
+     * How long a caller waits for a permit
+     */
+    private final long maxWaitNanos;
+
+    /**
+     * Limits by partition id
+     */
+    private final ConcurrentHashMap<Long, PartitionLimit> partitions = new ConcurrentHashMap<Long, PartitionLimit>();
+
+    /**
+     * Calls we refused because no permit came free in time
+     */
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * Responses that told us the server was overloaded
+     */
+    private final LongAdder overloads = new LongAdder();
+
+    /**
+     * @param voltClient
+     * @param targetP99Ms
+     * @param maxWaitMs
+     */
+    public AdaptiveCallLimiter(Client voltClient, int targetP99Ms, int maxWaitMs) {
+        super();
+        this.voltClient = voltClient;
+        this.targetP99Nanos = targetP99Ms * 1000000L;
+        this.maxWaitNanos = maxWaitMs * 1000000L;
+    }
+
+    /**
+     * Call a procedure partitioned on 'partitionKey', waiting as long as it
+     * takes for a permit. Used for events we can't afford to lose.
+     * 
+     * @param callback
+     * @param partitionKey
+     * @param procName
+     * @param params
+     * @throws NoConnectionsException
+     * @throws IOException
+     */
+    public void callProcedureWaiting(ProcedureCallback callback, long partitionKey, String procName,
+            Object... params) throws NoConnectionsException, IOException {
+
+        PartitionLimit partitionLimit = getPartitionLimit(partitionKey);
+        partitionLimit.acquire(1, WAIT_FOREVER);
+        send(partitionLimit, callback, procName, params);
+    }
+
+    /**
+     * Make two calls to the same procedure if we can get permits for both of
+     * them. Either both calls are sent or neither is, so the outgoing and
+     * incoming legs of a phone call always reach the server together.
+     * 
+     * @param callback
+     * @param procName
+     * @param firstPartitionKey
+     * @param firstParams
+     * @param secondPartitionKey
+     * @param secondParams
+     * @return false if the pair was rejected
+     * @throws NoConnectionsException
+     * @throws IOException
+     */
+    public boolean callProcedurePair(ProcedureCallback callback, String procName, long firstPartitionKey,
+            Object[] firstParams, long secondPartitionKey, Object[] secondParams)
+            throws NoConnectionsException, IOException {
+
+        PartitionLimit firstLimit = getPartitionLimit(firstPartitionKey);
+        PartitionLimit secondLimit = getPartitionLimit(secondPartitionKey);
+
+        if (firstLimit == secondLimit) {
+
+            if (!firstLimit.acquire(2, maxWaitNanos)) {
+                rejections.increment();
+                return false;
+            }
+
+        } else {
+
+            if (!firstLimit.acquire(1, maxWaitNanos)) {
+                rejections.increment();
+                return false;
+            }
+
+            if (!secondLimit.acquire(1, maxWaitNanos)) {
+                firstLimit.release();
+                rejections.increment();
+                return false;
+            }
+        }
+
+        try {
+            send(firstLimit, callback, procName, firstParams);
+        } catch (IOException e) {
+            secondLimit.release();
+            throw e;
+        }
+
+        send(secondLimit, callback, procName, secondParams);
+        return true;
+    }
+
+    /**
+     * Send a call we already have a permit for. If the client won't queue it
+     * we keep offering it until it does, as the caller has been told it will be
+     * sent.
+     * 
+     * @param partitionLimit
+     * @param callback
+     * @param procName
+     * @param params
+     * @throws NoConnectionsException
+     * @throws IOException
+     */
+    private void send(PartitionLimit partitionLimit, ProcedureCallback callback, String procName, Object[] params)
+            throws NoConnectionsException, IOException {
+
+        try {
+            while (!voltClient.callProcedure(new LimitedCallback(partitionLimit, callback), procName, params)) {
+                LockSupport.parkNanos(RESUBMIT_PAUSE_NANOS);
+            }
+        } catch (IOException e) {
+            partitionLimit.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @param partitionKey
+     * @return the limit for the partition 'partitionKey' belongs to
+     * @throws NoConnectionsException
+     */
+    private PartitionLimit getPartitionLimit(long partitionKey) throws NoConnectionsException {
+
+        final long partitionId = voltClient.getPartitionForParameter(VoltType.BIGINT.getValue(), partitionKey);
+        PartitionLimit partitionLimit = partitions.get(partitionId);
+
+        if (partitionLimit == null) {
+            partitionLimit = new PartitionLimit();
+            PartitionLimit oldLimit = partitions.putIfAbsent(partitionId, partitionLimit);
+            if (oldLimit != null) {
+                partitionLimit = oldLimit;
+            }
+        }
+
+        return partitionLimit;
+    }
+
+    /**
+     * @return sum of all partition limits
+     */
+    public int getTotalLimit() {
+
+        int total = 0;
+        Iterator<PartitionLimit> it = partitions.values().iterator();
+
+        while (it.hasNext()) {
+            total += it.next().limit;
+        }
+
+        return total;
+    }
+
+    /**
+     * @return calls in flight across all partitions
+     */
+    public int getTotalInFlight() {
+
+        int total = 0;
+        Iterator<PartitionLimit> it = partitions.values().iterator();
+
+        while (it.hasNext()) {
+            total += it.next().inFlight.get();
+        }
+
+        return total;
+    }
+
+    /**
+     * @return rejections since last asked
+     */
+    public long takeRejectionCount() {
+        return rejections.sumThenReset();
+    }
+
+    /**
+     * @return overload responses since last asked
+     */
+    public long takeOverloadCount() {
+        return overloads.sumThenReset();
+    }
+
+    /**
+     * @return each partition's limit and last p99
+     */
+    public String describeLimits() {
+
+        StringBuilder builder = new StringBuilder("AdaptiveCallLimiter [");
+
+        for (java.util.Map.Entry<Long, PartitionLimit> entry : partitions.entrySet()) {
+            builder.append(" p");
+            builder.append(entry.getKey());
+            builder.append("=");
+            builder.append(entry.getValue().limit);
+            builder.append("/");
+            builder.append(entry.getValue().lastP99Nanos / 1000);
+            builder.append("us");
+        }
+
+        builder.append(" ]");
+        return builder.toString();
+    }
+
+    /**
+     * Permits and latency window for one partition
+     */
+    private class PartitionLimit {
+
+        /**
+         * How many calls may be in flight
+         */
+        volatile int limit = INITIAL_LIMIT;
+
+        /**
+         * How many calls are in flight
+         */
+        final AtomicInteger inFlight = new AtomicInteger(0);
+
+        /**
+         * p99 of the last complete window
+         */
+        volatile long lastP99Nanos = 0;
+
+        /**
+         * Latencies in this window
+         */
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        /**
+         * Most calls in flight during this window
+         */
+        int maxInFlight = 0;
+
+        /**
+         * true if we were told the server was overloaded during this window
+         */
+        boolean overloaded = false;
+
+        /**
+         * Take 'permits' permits at once. An idle partition always lets a
+         * caller in, so a pair can get through even when the limit is 1.
+         * 
+         * @param permits
+         * @param maxWaitNanos how long to wait, or WAIT_FOREVER
+         * @return true if we got the permits
+         */
+        boolean acquire(int permits, long maxWaitNanos) {
+
+            long deadline = 0;
+
+            while (true) {
+
+                final int current = inFlight.get();
+
+                if (current == 0 || current + permits <= limit) {
+                    if (inFlight.compareAndSet(current, current + permits)) {
+                        return true;
+                    }
+                    continue;
+                }
+
+                if (maxWaitNanos != WAIT_FOREVER) {
+
+                    final long now = System.nanoTime();
+
+                    if (deadline == 0) {
+                        deadline = now + maxWaitNanos;
+                    } else if (now >= deadline) {
+                        return false;
+                    }
+                }
+
+                LockSupport.parkNanos(50000);
+            }
+        }
+
+        void release() {
+            inFlight.decrementAndGet();
+        }
+
+        /**
+         * Note a response and adjust our limit at the end of a window
+         * 
+         * @param latencyNanos
+         * @param wasOverloaded
+         */
+        synchronized void complete(long latencyNanos, boolean wasOverloaded) {
+
+            maxInFlight = Math.max(maxInFlight, inFlight.getAndDecrement());
+            histogram.record(latencyNanos);
+            overloaded |= wasOverloaded;
+
+            if (histogram.getSampleCount() < WINDOW_SAMPLES && !overloaded) {
+                return;
+            }
+
+            lastP99Nanos = histogram.getPercentileNanos(0.99);
+
+            if (overloaded || lastP99Nanos > targetP99Nanos) {
+                limit = Math.max(MIN_LIMIT, (int) (limit * BACKOFF_RATIO));
+            } else if (maxInFlight >= limit * GROW_THRESHOLD) {
+                limit = Math.min(MAX_LIMIT, limit + 1);
+            }
+
+            histogram.reset();
+            maxInFlight = 0;
+            overloaded = false;
+        }
+    }
+
+    /**
+     * Times a call, gives its permit back and then hands the response to the
+     * real callback.
+     */
+    private class LimitedCallback implements ProcedureCallback {
+
+        final PartitionLimit partitionLimit;
+
+        final ProcedureCallback callback;
+
+        final long startNanos = System.nanoTime();
+
+        LimitedCallback(PartitionLimit partitionLimit, ProcedureCallback callback) {
+            this.partitionLimit = partitionLimit;
+            this.callback = callback;
+        }
+
+        @Override
+        public void clientCallback(ClientResponse arg0) throws Exception {
+
+            final byte status = arg0.getStatus();
+            final boolean wasOverloaded = status == ClientResponse.SERVER_UNAVAILABLE
+                    || status == ClientResponse.CONNECTION_TIMEOUT;
+
+            if (wasOverloaded) {
+                overloads.increment();
+            }
+
+            partitionLimit.complete(System.nanoTime() - startNanos, wasOverloaded);
+
+            if (callback != null) {
+                callback.clientCallback(arg0);
+            }
+        }
+    }
+
+}
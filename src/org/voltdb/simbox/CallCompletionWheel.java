@@ -0,0 +1,261 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2022 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.simbox;
+
+import java.util.ArrayList;
+
+/**
+ * Hierarchical timing wheel that hands devices back to their
+ * {@link IdleDevicePool} when their calls end.
+ * <p>
+ * Level 0 has one slot per tick. Each level above covers WHEEL_SIZE times the
+ * span of the one below, and its slots are cascaded down as time reaches them.
+ * Scheduling and expiring a call are both O(1).
+ *
+ */
+public class CallCompletionWheel {
+
+    /**
+     * Slots per level, as a power of 2
+     */
+    private static final int WHEEL_BITS = 8;
+
+    /**
+     * Slots per level
+     */
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+
+    /**
+     * Used to find a slot
+     */
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    /**
+     * With 10ms ticks 4 levels cover well over a year, which is
+     * far longer than any call.
+     */
+    private static final int LEVELS = 4;
+
+    /**
+     * How many ms each level 0 slot covers.
+     */
+    private final long tickMs;
+
+    /**
+     * The tick we've expired everything up to.
+     */
+    private long currentTick;
+
+    /**
+     * The wheels. A slot list is created the first time something lands in it.
+     */
+    @SuppressWarnings("unchecked")
+    private final ArrayList<UserDevice>[][] wheels = new ArrayList[LEVELS][WHEEL_SIZE];
+
+    /**
+     * How many devices are in a call right now
+     */
+    private int busyCount = 0;
+
+    /**
+     * Create a wheel
+     *
+     * @param tickMs  granularity in milliseconds
+     * @param startMs time to start from
+     */
+    public CallCompletionWheel(long tickMs, long startMs) {
+        super();
+        this.tickMs = tickMs;
+        this.currentTick = startMs / tickMs;
+    }
+
+    /**
+     * Note that a device is in a call until 'callEndTimeMs'. It leaves its
+     * idle pool until the wheel reaches that time.
+     *
+     * @param theDevice
+     * @param callEndTimeMs
+     */
+    public void busyUntil(UserDevice theDevice, long callEndTimeMs) {
+
+        if (theDevice.getHomePool() != null) {
+            theDevice.getHomePool().remove(theDevice);
+        }
+
+        // Already on the wheel - it'll be rescheduled when its old slot expires
+        if (theDevice.onWheel) {
+            return;
+        }
+
+        theDevice.onWheel = true;
+        busyCount++;
+        schedule(theDevice, callEndTimeMs);
+
+    }
+
+    /**
+     * Move the wheel forward to 'nowMs', returning any device whose call has
+     * finished to its idle pool.
+     *
+     * @param nowMs
+     */
+    public void advance(long nowMs) {
+
+        final long targetTick = nowMs / tickMs;
+
+        while (currentTick < targetTick) {
+
+            currentTick++;
+
+            // Cascade higher levels down when the ones below them wrap...
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) == 0) {
+                    cascade(level, (int) ((currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK));
+                }
+            }
+
+            expire((int) (currentTick & WHEEL_MASK));
+        }
+
+    }
+
+    /**
+     * @return how many devices are in a call
+     */
+    public int getBusyCount() {
+        return busyCount;
+    }
+
+    /**
+     * Put a device into the right slot for when it will finish.
+     *
+     * @param theDevice
+     * @param callEndTimeMs
+     */
+    private void schedule(UserDevice theDevice, long callEndTimeMs) {
+
+        final long expiryTick = callEndTimeMs / tickMs;
+        final long delta = expiryTick - currentTick;
+
+        if (delta <= 0) {
+            // Either finished already or due on this tick; the next
+            // advance() will pick it up.
+            addToSlot(0, (int) ((currentTick + 1) & WHEEL_MASK), theDevice);
+            return;
+        }
+
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < (1L << (WHEEL_BITS * (level + 1))) || level == LEVELS - 1) {
+                addToSlot(level, (int) ((expiryTick >>> (WHEEL_BITS * level)) & WHEEL_MASK), theDevice);
+                return;
+            }
+        }
+
+    }
+
+    /**
+     * Redistribute a slot from a higher level into the levels below it.
+     *
+     * @param level
+     * @param slot
+     */
+    private void cascade(int level, int slot) {
+
+        final ArrayList<UserDevice> devices = wheels[level][slot];
+
+        if (devices == null || devices.isEmpty()) {
+            return;
+        }
+
+        wheels[level][slot] = null;
+
+        for (int i = 0; i < devices.size(); i++) {
+            UserDevice ud = devices.get(i);
+            schedule(ud, ud.getCallEndTimeMs());
+        }
+
+    }
+
+    /**
+     * Finish every call in a level 0 slot.
+     *
+     * @param slot
+     */
+    private void expire(int slot) {
+
+        final ArrayList<UserDevice> devices = wheels[0][slot];
+
+        if (devices == null || devices.isEmpty()) {
+            return;
+        }
+
+        wheels[0][slot] = null;
+
+        final long nowMs = currentTick * tickMs;
+
+        for (int i = 0; i < devices.size(); i++) {
+
+            UserDevice ud = devices.get(i);
+
+            // Device was given a longer call after being scheduled...
+            if (ud.getCallEndTimeMs() > nowMs + tickMs) {
+                schedule(ud, ud.getCallEndTimeMs());
+                continue;
+            }
+
+            ud.onWheel = false;
+            busyCount--;
+
+            if (ud.getHomePool() != null) {
+                ud.getHomePool().add(ud);
+            }
+        }
+
+        // Reuse the list to avoid churning the heap
+        devices.clear();
+        if (wheels[0][slot] == null) {
+            wheels[0][slot] = devices;
+        }
+
+    }
+
+    /**
+     * @param level
+     * @param slot
+     * @param theDevice
+     */
+    private void addToSlot(int level, int slot, UserDevice theDevice) {
+
+        ArrayList<UserDevice> devices = wheels[level][slot];
+
+        if (devices == null) {
+            devices = new ArrayList<UserDevice>();
+            wheels[level][slot] = devices;
+        }
+
+        devices.add(theDevice);
+
+    }
+
+}
@@ -0,0 +1,721 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2022 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.simbox;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.voltdb.VoltType;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ProcedureCallback;
+
+/**
+ * Bulk loads historical CDRs from a CSV file for backfills.
+ * <p>
+ * Each line is one of:
+ * <ul>
+ * <li><code>R,deviceId,cellId,createDateMs</code> - a device</li>
+ * <li><code>C,deviceId,cellId,eventTimeMs</code> - a cell change</li>
+ * <li><code>I|O,deviceId,otherNumber,startTimeMs,durationSeconds,status,cellId</code>
+ * - one leg of a call</li>
+ * </ul>
+ * Anything else, such as a header line, is counted and skipped.
+ * <p>
+ * We work in two passes. First the file is cut into newline aligned chunks
+ * that are memory mapped and parsed in parallel straight from the mapped
+ * bytes, and every event is spilled in binary form to a bucket file chosen by
+ * its device id. Then each bucket is read back, sorted by partition, device
+ * and time, and sent to 'BulkLoadDeviceEvents' in batches that each cover a
+ * single partition. A device's events are always in one bucket and go to
+ * VoltDB from one thread in time order, so its cell moves are applied in the
+ * right sequence.
+ *
+ */
+public class CdrBulkImporter {
+
+    /**
+     * How much of the CSV file each parser maps at once
+     */
+    private static final long CHUNK_SIZE = 256L * 1024 * 1024;
+
+    /**
+     * Size of a spilled event
+     */
+    private static final int SPILL_RECORD_SIZE = 40;
+
+    /**
+     * Per bucket write buffer size
+     */
+    private static final int SPILL_BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * Most fields we expect on a line
+     */
+    private static final int MAX_FIELDS = 8;
+
+    /**
+     * Event types, as used by the 'BulkLoadDeviceEvents' procedure
+     */
+    private static final int EVENT_REGISTER = 1;
+    private static final int EVENT_CELL_CHANGE = 2;
+    private static final int EVENT_CALL_IN = 3;
+    private static final int EVENT_CALL_OUT = 4;
+
+    /**
+     * Our handle to VoltDB
+     */
+    private final Client voltClient;
+
+    /**
+     * CSV file to load
+     */
+    private final String csvFileName;
+
+    /**
+     * Where we put bucket files
+     */
+    private final File spillDir;
+
+    /**
+     * Threads used to parse
+     */
+    private final int parserThreads;
+
+    /**
+     * Threads used to sort and load
+     */
+    private final int loaderThreads;
+
+    /**
+     * How many bucket files we spill to. More buckets means less memory per
+     * bucket when we sort.
+     */
+    private final int bucketCount;
+
+    /**
+     * Most events per call to 'BulkLoadDeviceEvents'
+     */
+    private final int batchSize;
+
+    /**
+     * Lines we turned into events
+     */
+    private final AtomicLong linesParsed = new AtomicLong(0);
+
+    /**
+     * Lines we couldn't understand
+     */
+    private final AtomicLong linesRejected = new AtomicLong(0);
+
+    /**
+     * Events VoltDB has accepted
+     */
+    private final AtomicLong eventsLoaded = new AtomicLong(0);
+
+    /**
+     * Events in batches VoltDB rejected
+     */
+    private final AtomicLong eventsFailed = new AtomicLong(0);
+
+    /**
+     * @param voltClient
+     * @param csvFileName
+     * @param spillDir
+     * @param parserThreads
+     * @param loaderThreads
+     * @param bucketCount
+     * @param batchSize
+     */
+    public CdrBulkImporter(Client voltClient, String csvFileName, File spillDir, int parserThreads,
+            int loaderThreads, int bucketCount, int batchSize) {
+        super();
+        this.voltClient = voltClient;
+        this.csvFileName = csvFileName;
+        this.spillDir = spillDir;
+        this.parserThreads = parserThreads;
+        this.loaderThreads = loaderThreads;
+        this.bucketCount = bucketCount;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Load the file
+     * 
+     * @param keepSpillFiles if false bucket files are deleted once loaded
+     * @throws Exception
+     */
+    public void run(boolean keepSpillFiles) throws Exception {
+
+        spillDir.mkdirs();
+
+        final long startMs = System.currentTimeMillis();
+
+        final long[] chunkStarts = findChunks();
+        SimboxDataGenerator.msg("Parsing " + csvFileName + " as " + (chunkStarts.length - 1) + " chunks using "
+                + parserThreads + " threads");
+
+        final AtomicInteger nextChunk = new AtomicInteger(0);
+        Thread[] parsers = new Thread[parserThreads];
+
+        for (int i = 0; i < parserThreads; i++) {
+            parsers[i] = new ParserThread(i, chunkStarts, nextChunk);
+            parsers[i].start();
+        }
+
+        for (int i = 0; i < parserThreads; i++) {
+            parsers[i].join();
+        }
+
+        final long parsedMs = System.currentTimeMillis();
+        SimboxDataGenerator.msg("Parsed " + linesParsed.get() + " lines in " + (parsedMs - startMs) + "ms, rejected "
+                + linesRejected.get());
+
+        final AtomicInteger nextBucket = new AtomicInteger(0);
+        Thread[] loaders = new Thread[loaderThreads];
+
+        for (int i = 0; i < loaderThreads; i++) {
+            loaders[i] = new LoaderThread(i, nextBucket, keepSpillFiles);
+            loaders[i].start();
+        }
+
+        for (int i = 0; i < loaderThreads; i++) {
+            loaders[i].join();
+        }
+
+        voltClient.drain();
+
+        final long loadedMs = Math.max(1, System.currentTimeMillis() - parsedMs);
+        SimboxDataGenerator.msg("Loaded " + eventsLoaded.get() + " events in " + loadedMs + "ms ("
+                + (eventsLoaded.get() * 1000 / loadedMs) + "/sec), " + eventsFailed.get() + " failed");
+
+    }
+
+    /**
+     * Split the file into chunks of about CHUNK_SIZE that start at the
+     * beginning of a line.
+     * 
+     * @return chunk start offsets, with the file length as the last entry
+     * @throws IOException
+     */
+    private long[] findChunks() throws IOException {
+
+        try (RandomAccessFile file = new RandomAccessFile(csvFileName, "r")) {
+
+            final long fileSize = file.length();
+            ArrayList<Long> starts = new ArrayList<Long>();
+            starts.add(0L);
+
+            long nominalStart = CHUNK_SIZE;
+
+            while (nominalStart < fileSize) {
+
+                file.seek(nominalStart);
+                int b;
+
+                while ((b = file.read()) != -1 && b != '\n') {
+                    // Skip rest of line
+                }
+
+                final long lineStart = file.getFilePointer();
+
+                if (lineStart < fileSize) {
+                    starts.add(lineStart);
+                }
+
+                nominalStart = lineStart + CHUNK_SIZE;
+            }
+
+            starts.add(fileSize);
+
+            long[] chunkStarts = new long[starts.size()];
+
+            for (int i = 0; i < chunkStarts.length; i++) {
+                chunkStarts[i] = starts.get(i);
+            }
+
+            return chunkStarts;
+        }
+    }
+
+    /**
+     * @param bucketId
+     * @param parserId
+     * @return name of spill file
+     */
+    private File getSpillFile(int bucketId, int parserId) {
+        return new File(spillDir, "bucket-" + bucketId + "-parser-" + parserId + ".bin");
+    }
+
+    /**
+     * Parses chunks of the CSV file and spills the events it finds to bucket
+     * files.
+     */
+    private class ParserThread extends Thread {
+
+        final int parserId;
+
+        final long[] chunkStarts;
+
+        final AtomicInteger nextChunk;
+
+        /**
+         * One output stream per bucket, created when first needed
+         */
+        final DataOutputStream[] spills = new DataOutputStream[bucketCount];
+
+        /**
+         * Numeric value of each field on the current line
+         */
+        final long[] fieldValues = new long[MAX_FIELDS];
+
+        /**
+         * First byte of each field on the current line
+         */
+        final byte[] fieldFirstBytes = new byte[MAX_FIELDS];
+
+        ParserThread(int parserId, long[] chunkStarts, AtomicInteger nextChunk) {
+            super("CdrBulkImporter-parser-" + parserId);
+            this.parserId = parserId;
+            this.chunkStarts = chunkStarts;
+            this.nextChunk = nextChunk;
+        }
+
+        @Override
+        public void run() {
+
+            try (RandomAccessFile file = new RandomAccessFile(csvFileName, "r")) {
+
+                FileChannel channel = file.getChannel();
+                int chunk;
+
+                while ((chunk = nextChunk.getAndIncrement()) < chunkStarts.length - 1) {
+
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunkStarts[chunk],
+                            chunkStarts[chunk + 1] - chunkStarts[chunk]);
+                    parseChunk(buffer);
+                }
+
+                for (int i = 0; i < spills.length; i++) {
+                    if (spills[i] != null) {
+                        spills[i].close();
+                    }
+                }
+
+            } catch (IOException e) {
+                SimboxDataGenerator.msg(e);
+            }
+        }
+
+        /**
+         * Parse every line in a chunk without creating any objects per line.
+         * 
+         * @param buffer
+         * @throws IOException
+         */
+        private void parseChunk(MappedByteBuffer buffer) throws IOException {
+
+            final int limit = buffer.limit();
+
+            int fieldCount = 0;
+            long value = 0;
+            boolean numeric = true;
+            boolean negative = false;
+            boolean lineOk = true;
+            int fieldLength = 0;
+
+            for (int pos = 0; pos <= limit; pos++) {
+
+                final byte b = pos < limit ? buffer.get(pos) : (byte) '\n';
+
+                if (b == ',' || b == '\n') {
+
+                    if (fieldCount < MAX_FIELDS) {
+                        fieldValues[fieldCount] = (numeric && fieldLength > 0) ? (negative ? -value : value)
+                                : Long.MIN_VALUE;
+                    } else {
+                        lineOk = false;
+                    }
+
+                    fieldCount++;
+
+                    if (b == '\n') {
+
+                        if (fieldCount > 1 || fieldLength > 0) {
+                            if (lineOk && spillLine(fieldCount)) {
+                                linesParsed.incrementAndGet();
+                            } else {
+                                linesRejected.incrementAndGet();
+                            }
+                        }
+
+                        fieldCount = 0;
+                        lineOk = true;
+                    }
+
+                    value = 0;
+                    numeric = true;
+                    negative = false;
+                    fieldLength = 0;
+
+                } else if (b != '\r') {
+
+                    if (fieldLength == 0 && fieldCount < MAX_FIELDS) {
+                        fieldFirstBytes[fieldCount] = b;
+                    }
+
+                    if (b >= '0' && b <= '9') {
+                        value = (value * 10) + (b - '0');
+                    } else if (b == '-' && fieldLength == 0) {
+                        negative = true;
+                    } else {
+                        numeric = false;
+                    }
+
+                    fieldLength++;
+                }
+            }
+        }
+
+        /**
+         * Turn the current line into an event and spill it.
+         * 
+         * @param fieldCount
+         * @return false if the line doesn't make sense
+         * @throws IOException
+         */
+        private boolean spillLine(int fieldCount) throws IOException {
+
+            final byte recordType = fieldFirstBytes[0];
+
+            int eventType;
+            long otherNumber = 0;
+            long cellId;
+            long eventTimeMs;
+            int durationSeconds = 0;
+            byte status = 'E';
+
+            if ((recordType == 'R' || recordType == 'C') && fieldCount == 4) {
+
+                eventType = recordType == 'R' ? EVENT_REGISTER : EVENT_CELL_CHANGE;
+                cellId = fieldValues[2];
+                eventTimeMs = fieldValues[3];
+
+            } else if ((recordType == 'I' || recordType == 'O') && fieldCount == 7) {
+
+                eventType = recordType == 'I' ? EVENT_CALL_IN : EVENT_CALL_OUT;
+                otherNumber = fieldValues[2];
+                eventTimeMs = fieldValues[3];
+                durationSeconds = (int) fieldValues[4];
+                status = fieldFirstBytes[5];
+                cellId = fieldValues[6];
+
+                if (otherNumber == Long.MIN_VALUE || fieldValues[4] == Long.MIN_VALUE) {
+                    return false;
+                }
+
+            } else {
+                return false;
+            }
+
+            final long deviceId = fieldValues[1];
+
+            if (deviceId == Long.MIN_VALUE || cellId == Long.MIN_VALUE || eventTimeMs == Long.MIN_VALUE) {
+                return false;
+            }
+
+            final int bucketId = (int) Math.floorMod(deviceId, (long) bucketCount);
+            DataOutputStream spill = spills[bucketId];
+
+            if (spill == null) {
+                spill = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(getSpillFile(bucketId, parserId)), SPILL_BUFFER_SIZE));
+                spills[bucketId] = spill;
+            }
+
+            spill.writeByte(eventType);
+            spill.writeByte(status);
+            spill.writeShort(0);
+            spill.writeInt(durationSeconds);
+            spill.writeLong(deviceId);
+            spill.writeLong(otherNumber);
+            spill.writeLong(cellId);
+            spill.writeLong(eventTimeMs);
+
+            return true;
+        }
+    }
+
+    /**
+     * Reads back buckets, sorts them and sends them to VoltDB.
+     */
+    private class LoaderThread extends Thread {
+
+        final AtomicInteger nextBucket;
+
+        final boolean keepSpillFiles;
+
+        LoaderThread(int loaderId, AtomicInteger nextBucket, boolean keepSpillFiles) {
+            super("CdrBulkImporter-loader-" + loaderId);
+            this.nextBucket = nextBucket;
+            this.keepSpillFiles = keepSpillFiles;
+        }
+
+        @Override
+        public void run() {
+
+            int bucketId;
+
+            try {
+                while ((bucketId = nextBucket.getAndIncrement()) < bucketCount) {
+                    loadBucket(bucketId);
+                }
+            } catch (Exception e) {
+                SimboxDataGenerator.msg(e);
+            }
+        }
+
+        /**
+         * @param bucketId
+         * @throws IOException
+         */
+        private void loadBucket(int bucketId) throws IOException {
+
+            // Read every parser's spill for this bucket...
+            long totalBytes = 0;
+
+            for (int p = 0; p < parserThreads; p++) {
+                totalBytes += getSpillFile(bucketId, p).length();
+            }
+
+            if (totalBytes == 0) {
+                return;
+            }
+
+            if (totalBytes > Integer.MAX_VALUE) {
+                throw new IOException("Bucket " + bucketId + " is too big to sort; use more buckets");
+            }
+
+            ByteBuffer events = ByteBuffer.allocate((int) totalBytes);
+
+            for (int p = 0; p < parserThreads; p++) {
+
+                File spillFile = getSpillFile(bucketId, p);
+
+                if (spillFile.exists()) {
+                    try (RandomAccessFile file = new RandomAccessFile(spillFile, "r")) {
+                        FileChannel channel = file.getChannel();
+                        while (channel.read(events) > 0) {
+                            // keep reading
+                        }
+                    }
+                }
+            }
+
+            final int eventCount = (int) (totalBytes / SPILL_RECORD_SIZE);
+
+            final int[] types = new int[eventCount];
+            final String[] statuses = new String[eventCount];
+            final int[] durations = new int[eventCount];
+            final long[] deviceIds = new long[eventCount];
+            final long[] otherNumbers = new long[eventCount];
+            final long[] cellIds = new long[eventCount];
+            final long[] timesMs = new long[eventCount];
+            final int[] partitions = new int[eventCount];
+            Integer[] order = new Integer[eventCount];
+
+            events.flip();
+
+            for (int i = 0; i < eventCount; i++) {
+                types[i] = events.get();
+                statuses[i] = String.valueOf((char) events.get());
+                events.getShort();
+                durations[i] = events.getInt();
+                deviceIds[i] = events.getLong();
+                otherNumbers[i] = events.getLong();
+                cellIds[i] = events.getLong();
+                timesMs[i] = events.getLong();
+                partitions[i] = (int) voltClient.getPartitionForParameter(VoltType.BIGINT.getValue(), deviceIds[i]);
+                order[i] = i;
+            }
+
+            events = null;
+
+            // Group by partition, then put each device's events in time order
+            // with its registration first...
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+
+                    final int a = o1.intValue();
+                    final int b = o2.intValue();
+
+                    int result = Integer.compare(partitions[a], partitions[b]);
+
+                    if (result == 0) {
+                        result = Long.compare(deviceIds[a], deviceIds[b]);
+                    }
+
+                    if (result == 0) {
+                        result = Boolean.compare(types[a] != EVENT_REGISTER,
+                                types[b] != EVENT_REGISTER);
+                    }
+
+                    if (result == 0) {
+                        result = Long.compare(timesMs[a], timesMs[b]);
+                    }
+
+                    if (result == 0) {
+                        result = Integer.compare(a, b);
+                    }
+
+                    return result;
+                }
+            });
+
+            int batchStart = 0;
+
+            while (batchStart < eventCount) {
+
+                final int partition = partitions[order[batchStart]];
+                int batchEnd = batchStart + 1;
+
+                while (batchEnd < eventCount && batchEnd - batchStart < batchSize
+                        && partitions[order[batchEnd]] == partition) {
+                    batchEnd++;
+                }
+
+                final int batchLength = batchEnd - batchStart;
+
+                int[] batchTypes = new int[batchLength];
+                long[] batchDeviceIds = new long[batchLength];
+                long[] batchOtherNumbers = new long[batchLength];
+                long[] batchCellIds = new long[batchLength];
+                long[] batchTimesMs = new long[batchLength];
+                int[] batchDurations = new int[batchLength];
+                String[] batchStatuses = new String[batchLength];
+
+                for (int i = 0; i < batchLength; i++) {
+                    final int e = order[batchStart + i];
+                    batchTypes[i] = types[e];
+                    batchDeviceIds[i] = deviceIds[e];
+                    batchOtherNumbers[i] = otherNumbers[e];
+                    batchCellIds[i] = cellIds[e];
+                    batchTimesMs[i] = timesMs[e];
+                    batchDurations[i] = durations[e];
+                    batchStatuses[i] = statuses[e];
+                }
+
+                voltClient.callProcedure(new BatchCallback(batchLength), "BulkLoadDeviceEvents", batchDeviceIds[0],
+                        batchTypes, batchDeviceIds, batchOtherNumbers, batchCellIds, batchTimesMs, batchDurations,
+                        batchStatuses);
+
+                batchStart = batchEnd;
+            }
+
+            if (!keepSpillFiles) {
+                for (int p = 0; p < parserThreads; p++) {
+                    getSpillFile(bucketId, p).delete();
+                }
+            }
+
+            SimboxDataGenerator.msg("Bucket " + bucketId + ": sent " + eventCount + " events, loaded so far="
+                    + eventsLoaded.get());
+        }
+    }
+
+    /**
+     * Counts events VoltDB has dealt with.
+     */
+    private class BatchCallback implements ProcedureCallback {
+
+        final int eventCount;
+
+        BatchCallback(int eventCount) {
+            this.eventCount = eventCount;
+        }
+
+        @Override
+        public void clientCallback(ClientResponse arg0) throws Exception {
+
+            if (arg0.getStatus() == ClientResponse.SUCCESS) {
+                eventsLoaded.addAndGet(eventCount);
+            } else {
+                eventsFailed.addAndGet(eventCount);
+                SimboxDataGenerator.msg("BulkLoadDeviceEvents failed: " + arg0.getStatusString());
+            }
+        }
+    }
+
+    /**
+     * Run from command line
+     * 
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 3) {
+            SimboxDataGenerator.msg(
+                    "Usage: CdrBulkImporter hostnames csvFile spillDir [--parserThreads=n] [--loaderThreads=n] [--buckets=n] [--batchSize=n] [--keepSpillFiles]");
+            System.exit(1);
+        }
+
+        SimboxDataGenerator.msg("[hostnames csvFile spillDir]=" + Arrays.toString(args));
+
+        final int cpus = Runtime.getRuntime().availableProcessors();
+
+        HashMap<String, String> options = SimboxDataGenerator.getOptions(args, 3);
+        int parserThreads = Integer.parseInt(SimboxDataGenerator.getOption(options, "parserThreads", "" + cpus));
+        int loaderThreads = Integer.parseInt(SimboxDataGenerator.getOption(options, "loaderThreads", "" + cpus));
+        int buckets = Integer.parseInt(SimboxDataGenerator.getOption(options, "buckets", "256"));
+        int batchSize = Integer.parseInt(SimboxDataGenerator.getOption(options, "batchSize", "500"));
+        boolean keepSpillFiles = Boolean
+                .parseBoolean(SimboxDataGenerator.getOption(options, "keepSpillFiles", "false"));
+
+        Client voltClient = SimboxDataGenerator.connectVoltDB(args[0]);
+
+        CdrBulkImporter importer = new CdrBulkImporter(voltClient, args[1], new File(args[2]), parserThreads,
+                loaderThreads, buckets, batchSize);
+
+        importer.run(keepSpillFiles);
+
+        voltClient.close();
+
+    }
+
+}
@@ -0,0 +1,676 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2022 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.simbox;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ProcedureCallback;
+import org.voltdb.types.TimestampType;
+
+/**
+ * Reads CDRs from Kafka and feeds them to VoltDB.
+ * <p>
+ * Call records are CSV lines of
+ * <code>deviceId,startTimeMs,durationSeconds,inOrOut,otherNumber,status</code>
+ * and go to 'ReportDeviceActivity'. Cell change records are
+ * <code>deviceId,cellId</code> and go to 'ReportCellChange'.
+ * <p>
+ * Each consumer thread owns its own KafkaConsumer, so topic partitions are
+ * processed in parallel. Offsets are only committed once VoltDB has
+ * answered for every record before them, and consumption pauses whenever
+ * too many calls are outstanding.
+ * <p>
+ * When a record fails because VoltDB couldn't be reached, its partition stops
+ * sending, including whatever is left of the current poll. Once every call
+ * already sent from that partition has been answered, the consumer thread
+ * seeks back to the lowest offset VoltDB hasn't acknowledged and reads on
+ * from there. Records from a Kafka partition therefore reach VoltDB in offset
+ * order again after a failure. Records after the lost one that had already
+ * succeeded are applied a second time, and so is a call that was applied just
+ * before its connection dropped, so delivery is at least once. Records for
+ * the same device in different topics or partitions were never ordered
+ * relative to each other, and still aren't.
+ *
+ */
+public class CdrKafkaIngestor {
+
+    /**
+     * How often we commit offsets and print progress
+     */
+    private static final int COMMIT_INTERVAL_MS = 1000;
+
+    /**
+     * How often we print progress
+     */
+    private static final int STATS_INTERVAL_MS = 10000;
+
+    /**
+     * How long a poll can wait for data
+     */
+    private static final Duration POLL_DURATION = Duration.ofMillis(100);
+
+    /**
+     * Kafka records per poll
+     */
+    private static final int MAX_POLL_RECORDS = 2000;
+
+    /**
+     * Our handle to VoltDB
+     */
+    final Client voltClient;
+
+    /**
+     * Kafka bootstrap servers
+     */
+    final String bootstrapServers;
+
+    /**
+     * Consumer group
+     */
+    final String groupId;
+
+    /**
+     * Topic with call records
+     */
+    final String callTopic;
+
+    /**
+     * Topic with cell change records
+     */
+    final String cellTopic;
+
+    /**
+     * How many consumer threads to run
+     */
+    final int consumerThreads;
+
+    /**
+     * Pause consuming when this many calls are waiting for VoltDB
+     */
+    final int maxInFlight;
+
+    /**
+     * Calls waiting for VoltDB, across all threads
+     */
+    final AtomicInteger inFlight = new AtomicInteger(0);
+
+    /**
+     * Records VoltDB has accepted
+     */
+    final AtomicLong recordsDone = new AtomicLong(0);
+
+    /**
+     * Times a partition was read again from its lowest unacknowledged offset
+     * because VoltDB couldn't be reached
+     */
+    final AtomicLong rewindCount = new AtomicLong(0);
+
+    /**
+     * Records VoltDB has rejected. They're skipped.
+     */
+    final AtomicLong recordsFailed = new AtomicLong(0);
+
+    /**
+     * Records we couldn't parse. They're skipped.
+     */
+    final AtomicLong recordsUnparseable = new AtomicLong(0);
+
+    /**
+     * Worst gap between a record's Kafka timestamp and VoltDB finishing with
+     * it, since we last printed stats.
+     */
+    final AtomicLong maxLagMs = new AtomicLong(0);
+
+    /**
+     * How many times a consumer had to pause
+     */
+    final AtomicLong pauseCount = new AtomicLong(0);
+
+    /**
+     * Set to stop consuming
+     */
+    volatile boolean keepGoing = true;
+
+    /**
+     * Ingest CDRs from Kafka into VoltDB
+     * 
+     * @param voltClient
+     * @param bootstrapServers
+     * @param groupId
+     * @param callTopic
+     * @param cellTopic
+     * @param consumerThreads
+     * @param maxInFlight
+     */
+    public CdrKafkaIngestor(Client voltClient, String bootstrapServers, String groupId, String callTopic,
+            String cellTopic, int consumerThreads, int maxInFlight) {
+        super();
+        this.voltClient = voltClient;
+        this.bootstrapServers = bootstrapServers;
+        this.groupId = groupId;
+        this.callTopic = callTopic;
+        this.cellTopic = cellTopic;
+        this.consumerThreads = consumerThreads;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Consume until 'durationSeconds' have passed, or forever if it's 0
+     * 
+     * @param durationSeconds
+     * @throws InterruptedException
+     */
+    public void run(int durationSeconds) throws InterruptedException {
+
+        final long endMs = durationSeconds == 0 ? Long.MAX_VALUE
+                : System.currentTimeMillis() + (1000L * durationSeconds);
+
+        ConsumerWorker[] workers = new ConsumerWorker[consumerThreads];
+        Thread[] threads = new Thread[consumerThreads];
+
+        for (int i = 0; i < consumerThreads; i++) {
+            workers[i] = new ConsumerWorker(i);
+            threads[i] = new Thread(workers[i], "CdrKafkaIngestor-" + i);
+            threads[i].start();
+        }
+
+        long lastDone = 0;
+        long lastStatsMs = System.currentTimeMillis();
+
+        while (System.currentTimeMillis() < endMs) {
+
+            Thread.sleep(STATS_INTERVAL_MS);
+
+            final long now = System.currentTimeMillis();
+            final long done = recordsDone.get();
+
+            SimboxDataGenerator.msg("records/sec=" + ((done - lastDone) * 1000 / Math.max(1, now - lastStatsMs))
+                    + ", done=" + done + ", rewinds=" + rewindCount.get() + ", failed=" + recordsFailed.get()
+                    + ", unparseable="
+                    + recordsUnparseable.get() + ", inFlight=" + inFlight.get() + ", pauses=" + pauseCount.get()
+                    + ", maxLagMs=" + maxLagMs.getAndSet(0));
+
+            lastDone = done;
+            lastStatsMs = now;
+        }
+
+        keepGoing = false;
+
+        for (int i = 0; i < consumerThreads; i++) {
+            workers[i].wakeup();
+            threads[i].join();
+        }
+
+    }
+
+    /**
+     * Keeps track of which offsets in a partition VoltDB has finished with, so
+     * we never commit past a record it hasn't acknowledged.
+     */
+    static class PartitionProgress {
+
+        /**
+         * Offsets sent to VoltDB but not yet answered
+         */
+        final ConcurrentSkipListSet<Long> pending = new ConcurrentSkipListSet<Long>();
+
+        /**
+         * Highest offset we've sent
+         */
+        volatile long highestSubmitted = -1;
+
+        /**
+         * Calls sent from this partition that VoltDB hasn't answered
+         */
+        final AtomicInteger outstanding = new AtomicInteger(0);
+
+        /**
+         * Set when a call couldn't reach VoltDB. We send nothing more from
+         * this partition until we've rewound it.
+         */
+        volatile boolean lost = false;
+
+        /**
+         * @param offset
+         */
+        void submitted(long offset) {
+            pending.add(offset);
+            highestSubmitted = offset;
+            outstanding.incrementAndGet();
+        }
+
+        /**
+         * @param offset
+         */
+        void acknowledged(long offset) {
+            pending.remove(offset);
+            outstanding.decrementAndGet();
+        }
+
+        /**
+         * Note that a call never got to VoltDB. Its offset stays pending, so
+         * we won't commit past it.
+         * 
+         * @param offset
+         */
+        void connectionLost(long offset) {
+            lost = true;
+            outstanding.decrementAndGet();
+        }
+
+        /**
+         * @return true if a call was lost and every other call we sent has
+         *         been answered
+         */
+        boolean isReadyToRewind() {
+            return lost && outstanding.get() == 0;
+        }
+
+        /**
+         * Forget everything after the lowest unacknowledged offset, so we can
+         * read the partition again from there.
+         * 
+         * @return the offset to seek to
+         */
+        long rewind() {
+
+            final long offset = pending.first();
+
+            pending.clear();
+            highestSubmitted = offset - 1;
+            lost = false;
+
+            return offset;
+        }
+
+        /**
+         * @return lowest offset VoltDB hasn't answered for, or the one after
+         *         the highest we've sent if it's answered for all of them
+         */
+        long getCommittableOffset() {
+
+            try {
+                return pending.first();
+            } catch (java.util.NoSuchElementException e) {
+                return highestSubmitted + 1;
+            }
+        }
+    }
+
+    /**
+     * Callback that marks a record as done once VoltDB has answered.
+     * Connection problems leave the offset pending and make the consumer
+     * thread rewind the partition, other failures are counted and skipped.
+     */
+    class RecordCallback implements ProcedureCallback {
+
+        final PartitionProgress progress;
+        final long offset;
+        final long kafkaTimestamp;
+        final String procName;
+
+        RecordCallback(PartitionProgress progress, long offset, long kafkaTimestamp, String procName) {
+            this.progress = progress;
+            this.offset = offset;
+            this.kafkaTimestamp = kafkaTimestamp;
+            this.procName = procName;
+        }
+
+        @Override
+        public void clientCallback(ClientResponse arg0) throws Exception {
+
+            final byte status = arg0.getStatus();
+
+            if (status == ClientResponse.CONNECTION_LOST || status == ClientResponse.SERVER_UNAVAILABLE) {
+                progress.connectionLost(offset);
+                inFlight.decrementAndGet();
+                return;
+            }
+
+            if (status == ClientResponse.SUCCESS) {
+                recordsDone.incrementAndGet();
+            } else {
+                recordsFailed.incrementAndGet();
+                SimboxDataGenerator.msg(procName + " failed for offset " + offset + ": " + arg0.getStatusString());
+            }
+
+            final long lagMs = System.currentTimeMillis() - kafkaTimestamp;
+            long oldMax = maxLagMs.get();
+
+            while (lagMs > oldMax && !maxLagMs.compareAndSet(oldMax, lagMs)) {
+                oldMax = maxLagMs.get();
+            }
+
+            progress.acknowledged(offset);
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * One consumer thread.
+     */
+    class ConsumerWorker implements Runnable, ConsumerRebalanceListener {
+
+        final KafkaConsumer<String, String> consumer;
+
+        final ConcurrentHashMap<TopicPartition, PartitionProgress> progressMap = new ConcurrentHashMap<TopicPartition, PartitionProgress>();
+
+        /**
+         * Partitions paused until we can rewind them
+         */
+        final HashSet<TopicPartition> rewindPaused = new HashSet<TopicPartition>();
+
+        boolean paused = false;
+
+        ConsumerWorker(int workerId) {
+
+            Properties props = new Properties();
+            props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+            props.put(ConsumerConfig.GROUP_ID_CONFIG, groupId);
+            props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+            props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, "" + MAX_POLL_RECORDS);
+            props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+            props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+            props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+
+            consumer = new KafkaConsumer<String, String>(props);
+        }
+
+        void wakeup() {
+            consumer.wakeup();
+        }
+
+        @Override
+        public void run() {
+
+            long lastCommitMs = System.currentTimeMillis();
+
+            try {
+                consumer.subscribe(Arrays.asList(callTopic, cellTopic), this);
+
+                while (keepGoing) {
+
+                    rewindLostPartitions();
+
+                    ConsumerRecords<String, String> records = consumer.poll(POLL_DURATION);
+
+                    for (ConsumerRecord<String, String> record : records) {
+                        submit(record);
+                    }
+
+                    // Stop fetching if VoltDB can't keep up, start again when it has caught up
+                    if (!paused && inFlight.get() >= maxInFlight) {
+                        consumer.pause(consumer.assignment());
+                        paused = true;
+                        pauseCount.incrementAndGet();
+                    } else if (paused && inFlight.get() < maxInFlight / 2) {
+                        HashSet<TopicPartition> toResume = new HashSet<TopicPartition>(consumer.assignment());
+                        toResume.removeAll(rewindPaused);
+                        consumer.resume(toResume);
+                        paused = false;
+                    }
+
+                    if (lastCommitMs + COMMIT_INTERVAL_MS < System.currentTimeMillis()) {
+                        commitAcknowledged(progressMap.keySet());
+                        lastCommitMs = System.currentTimeMillis();
+                    }
+                }
+
+            } catch (WakeupException e) {
+                // We're shutting down
+            } catch (Exception e) {
+                SimboxDataGenerator.msg(e);
+            } finally {
+                try {
+                    voltClient.drain();
+                    commitAcknowledged(progressMap.keySet());
+                } catch (Exception e) {
+                    SimboxDataGenerator.msg(e);
+                }
+                consumer.close();
+            }
+
+        }
+
+        /**
+         * Pause partitions that lost a call. Once everything they sent has
+         * been answered, seek back to their lowest unacknowledged offset and
+         * resume them, so their records are sent again in order.
+         */
+        private void rewindLostPartitions() {
+
+            for (Map.Entry<TopicPartition, PartitionProgress> entry : progressMap.entrySet()) {
+
+                final TopicPartition tp = entry.getKey();
+                final PartitionProgress progress = entry.getValue();
+
+                if (!progress.lost) {
+                    continue;
+                }
+
+                if (rewindPaused.add(tp)) {
+                    consumer.pause(Collections.singleton(tp));
+                }
+
+                if (progress.isReadyToRewind()) {
+
+                    consumer.seek(tp, progress.rewind());
+                    rewindCount.incrementAndGet();
+                    rewindPaused.remove(tp);
+
+                    if (!paused) {
+                        consumer.resume(Collections.singleton(tp));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Send one record to VoltDB
+         * 
+         * @param record
+         * @throws IOException
+         */
+        private void submit(ConsumerRecord<String, String> record) throws IOException {
+
+            String procName;
+            Object[] params;
+
+            try {
+                if (record.topic().equals(callTopic)) {
+                    procName = "ReportDeviceActivity";
+                    params = parseCall(record.value());
+                } else {
+                    procName = "ReportCellChange";
+                    params = parseCellChange(record.value());
+                }
+            } catch (RuntimeException e) {
+                recordsUnparseable.incrementAndGet();
+                return;
+            }
+
+            TopicPartition tp = new TopicPartition(record.topic(), record.partition());
+            PartitionProgress progress = progressMap.get(tp);
+
+            if (progress == null) {
+                progress = new PartitionProgress();
+                progressMap.put(tp, progress);
+            }
+
+            if (progress.lost) {
+                // We'll read this again once the partition has been rewound
+                return;
+            }
+
+            progress.submitted(record.offset());
+            inFlight.incrementAndGet();
+
+            voltClient.callProcedure(new RecordCallback(progress, record.offset(), record.timestamp(), procName),
+                    procName, params);
+        }
+
+        /**
+         * Commit everything VoltDB has finished with
+         * 
+         * @param partitions
+         */
+        private void commitAcknowledged(Collection<TopicPartition> partitions) {
+
+            Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<TopicPartition, OffsetAndMetadata>();
+
+            for (TopicPartition tp : partitions) {
+
+                PartitionProgress progress = progressMap.get(tp);
+
+                if (progress != null && progress.highestSubmitted >= 0) {
+                    offsets.put(tp, new OffsetAndMetadata(progress.getCommittableOffset()));
+                }
+            }
+
+            if (!offsets.isEmpty()) {
+                consumer.commitSync(offsets);
+            }
+        }
+
+        @Override
+        public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+
+            // Let outstanding work finish so the next owner starts in the right place
+            try {
+                voltClient.drain();
+            } catch (Exception e) {
+                SimboxDataGenerator.msg(e);
+            }
+
+            commitAcknowledged(partitions);
+
+            // The next owner starts from our last commit, which is never past
+            // a lost record
+            for (TopicPartition tp : partitions) {
+                progressMap.remove(tp);
+                rewindPaused.remove(tp);
+            }
+        }
+
+        @Override
+        public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+
+            if (paused) {
+                consumer.pause(partitions);
+            }
+        }
+
+    }
+
+    /**
+     * @param csv deviceId,startTimeMs,durationSeconds,inOrOut,otherNumber,status
+     * @return parameters for 'ReportDeviceActivity'
+     */
+    static Object[] parseCall(String csv) {
+
+        String[] fields = csv.split(",");
+
+        if (fields.length != 6) {
+            throw new IllegalArgumentException("Expected 6 fields, got " + fields.length);
+        }
+
+        Object[] params = { Long.parseLong(fields[0].trim()),
+                new TimestampType(Long.parseLong(fields[1].trim()) * 1000), Integer.parseInt(fields[2].trim()),
+                fields[3].trim(), Long.parseLong(fields[4].trim()), fields[5].trim() };
+
+        return params;
+    }
+
+    /**
+     * @param csv deviceId,cellId
+     * @return parameters for 'ReportCellChange'
+     */
+    static Object[] parseCellChange(String csv) {
+
+        String[] fields = csv.split(",");
+
+        if (fields.length != 2) {
+            throw new IllegalArgumentException("Expected 2 fields, got " + fields.length);
+        }
+
+        Object[] params = { Long.parseLong(fields[0].trim()), Long.parseLong(fields[1].trim()) };
+
+        return params;
+    }
+
+    /**
+     * Run from command line
+     * 
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+
+        if (args.length != 8) {
+            SimboxDataGenerator.msg(
+                    "Usage: CdrKafkaIngestor hostnames kafkaBootstrapServers groupId callTopic cellTopic consumerThreads maxInFlight durationSeconds");
+            System.exit(1);
+        }
+
+        SimboxDataGenerator.msg("[hostnames kafkaBootstrapServers groupId callTopic cellTopic consumerThreads maxInFlight durationSeconds]="
+                + Arrays.toString(args));
+
+        Client voltClient = SimboxDataGenerator.connectVoltDB(args[0]);
+
+        CdrKafkaIngestor ingestor = new CdrKafkaIngestor(voltClient, args[1], args[2], args[3], args[4],
+                Integer.parseInt(args[5]), Integer.parseInt(args[6]));
+
+        ingestor.run(Integer.parseInt(args[7]));
+
+        voltClient.drain();
+        voltClient.close();
+
+        SimboxDataGenerator.msg("done...");
+
+    }
+
+}
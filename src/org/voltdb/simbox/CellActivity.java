@@ -0,0 +1,209 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2022 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.simbox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import org.voltdb.VoltTable;
+
+/**
+ * One cell's recent traffic, added up from the per partition answers of
+ * 'GetAnomalousCells'. Each partition only sees its share of a cell's
+ * traffic, and the score isn't additive, so every partition's counts are
+ * summed before the cell is scored.
+ *
+ */
+public class CellActivity {
+
+    /**
+     * The cell
+     */
+    private final long cellId;
+
+    /**
+     * Calls in the recent window
+     */
+    private long recentCalls = 0;
+
+    /**
+     * Seconds of calls in the recent window
+     */
+    private long recentDuration = 0;
+
+    /**
+     * Active devices in the recent window
+     */
+    private long recentDevices = 0;
+
+    /**
+     * Devices that moved in during the recent window
+     */
+    private long recentArrivals = 0;
+
+    /**
+     * Calls in the baseline window
+     */
+    private long baselineCalls = 0;
+
+    /**
+     * Arrivals in the baseline window
+     */
+    private long baselineArrivals = 0;
+
+    /**
+     * Score once every partition has been added
+     */
+    private double score = 0;
+
+    /**
+     * @param cellId
+     */
+    public CellActivity(long cellId) {
+        super();
+        this.cellId = cellId;
+    }
+
+    /**
+     * Merge the rows one partition returned into 'cells'.
+     *
+     * @param cells
+     * @param resultsTable
+     */
+    public static void addAll(HashMap<Long, CellActivity> cells, VoltTable resultsTable) {
+
+        while (resultsTable.advanceRow()) {
+
+            final long cellId = resultsTable.getLong("cell_id");
+            CellActivity cell = cells.get(cellId);
+
+            if (cell == null) {
+                cell = new CellActivity(cellId);
+                cells.put(cellId, cell);
+            }
+
+            cell.recentCalls += resultsTable.getLong("recent_call_count");
+            cell.recentDuration += resultsTable.getLong("recent_call_duration");
+            cell.recentDevices += resultsTable.getLong("recent_active_devices");
+            cell.recentArrivals += resultsTable.getLong("recent_arrivals");
+            cell.baselineCalls += resultsTable.getLong("baseline_call_count");
+            cell.baselineArrivals += resultsTable.getLong("baseline_arrivals");
+        }
+    }
+
+    /**
+     * Score every cell and sort them, most anomalous first.
+     *
+     * @param cells
+     * @param recentMinutes
+     * @param baselineMinutes
+     * @return cells in score order
+     */
+    public static ArrayList<CellActivity> rank(HashMap<Long, CellActivity> cells, int recentMinutes,
+            int baselineMinutes) {
+
+        ArrayList<CellActivity> ranked = new ArrayList<CellActivity>(cells.values());
+
+        for (int i = 0; i < ranked.size(); i++) {
+            ranked.get(i).score(recentMinutes, baselineMinutes);
+        }
+
+        Collections.sort(ranked, new Comparator<CellActivity>() {
+            @Override
+            public int compare(CellActivity o1, CellActivity o2) {
+                return Double.compare(o2.score, o1.score);
+            }
+        });
+
+        return ranked;
+    }
+
+    /**
+     * Work out how many standard deviations our calls and arrivals are above
+     * what the baseline predicts. Counts are treated as Poisson, and a quiet
+     * baseline counts as one event so a brand new cell isn't infinitely
+     * suspicious.
+     *
+     * @param recentMinutes
+     * @param baselineMinutes
+     */
+    private void score(int recentMinutes, int baselineMinutes) {
+        score = getExcess(recentCalls, baselineCalls, recentMinutes, baselineMinutes)
+                + getExcess(recentArrivals, baselineArrivals, recentMinutes, baselineMinutes);
+    }
+
+    /**
+     * @param recent
+     * @param baseline
+     * @param recentMinutes
+     * @param baselineMinutes
+     * @return standard deviations 'recent' is above what 'baseline' predicts
+     */
+    private static double getExcess(long recent, long baseline, int recentMinutes, int baselineMinutes) {
+
+        final double expected = Math.max(1, (double) baseline * recentMinutes / baselineMinutes);
+
+        return (recent - expected) / Math.sqrt(expected);
+    }
+
+    /**
+     * @return the cellId
+     */
+    public long getCellId() {
+        return cellId;
+    }
+
+    /**
+     * @return the score
+     */
+    public double getScore() {
+        return score;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("CellActivity [cellId=");
+        builder.append(cellId);
+        builder.append(", score=");
+        builder.append(String.format("%.1f", score));
+        builder.append(", recentCalls=");
+        builder.append(recentCalls);
+        builder.append(", recentDuration=");
+        builder.append(recentDuration);
+        builder.append(", recentDevices=");
+        builder.append(recentDevices);
+        builder.append(", recentArrivals=");
+        builder.append(recentArrivals);
+        builder.append(", baselineCalls=");
+        builder.append(baselineCalls);
+        builder.append(", baselineArrivals=");
+        builder.append(baselineArrivals);
+        builder.append("]");
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,218 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2022 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.simbox;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+import org.voltdb.client.Client2;
+import org.voltdb.client.Client2Config;
+import org.voltdb.client.ClientFactory;
+import org.voltdb.client.ClientResponse;
+
+/**
+ * Sends procedure calls through the {@link Client2} API, which gives us
+ * CompletableFutures, a client side request limit and partition aware routing
+ * without any extra work on our part.
+ * <p>
+ * Every call's round trip is recorded, and failures are counted and logged the
+ * way {@link ComplainOnErrorCallback} does for the legacy client.
+ *
+ */
+public class Client2Transport {
+
+    /**
+     * Default for how many requests can be queued or in flight before calls
+     * start failing
+     */
+    public static final int DEFAULT_REQUEST_LIMIT = 10000;
+
+    /**
+     * Our handle to VoltDB
+     */
+    private final Client2 client;
+
+    /**
+     * Round trip times. Synchronize on it before use.
+     */
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    /**
+     * Calls that didn't succeed
+     */
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * Records latency and complains about failures
+     */
+    private final BiConsumer<ClientResponse, Throwable> outcomeRecorder = new BiConsumer<ClientResponse, Throwable>() {
+        @Override
+        public void accept(ClientResponse cr, Throwable t) {
+
+            if (t != null) {
+                failures.increment();
+                SimboxDataGenerator.msg("Call failed: " + t.getMessage());
+                return;
+            }
+
+            synchronized (latencies) {
+                latencies.record(cr.getClientRoundtripNanos());
+            }
+
+            if (cr.getStatus() != ClientResponse.SUCCESS) {
+                failures.increment();
+                SimboxDataGenerator.msg("Error Code " + cr.getStatusString());
+            }
+        }
+    };
+
+    /**
+     * Turns the two legs of a call into a single outcome
+     */
+    private static final BiFunction<ClientResponse, ClientResponse, Boolean> BOTH_SUCCEEDED = new BiFunction<ClientResponse, ClientResponse, Boolean>() {
+        @Override
+        public Boolean apply(ClientResponse first, ClientResponse second) {
+            return first.getStatus() == ClientResponse.SUCCESS && second.getStatus() == ClientResponse.SUCCESS;
+        }
+    };
+
+    /**
+     * @param client
+     */
+    public Client2Transport(Client2 client) {
+        super();
+        this.client = client;
+    }
+
+    /**
+     * Connect to VoltDB using the Client2 API
+     * 
+     * @param commaDelimitedHostnames
+     * @param requestLimit
+     * @return a transport
+     * @throws Exception
+     */
+    public static Client2Transport connect(String commaDelimitedHostnames, int requestLimit) throws Exception {
+
+        SimboxDataGenerator.msg("Logging into VoltDB using Client2, requestLimit=" + requestLimit);
+
+        Client2Config config = new Client2Config().clientRequestLimit(requestLimit);
+        Client2 client = ClientFactory.createClient(config);
+
+        try {
+            client.connectSync(commaDelimitedHostnames);
+        } catch (IOException e) {
+            client.close();
+            throw new Exception("VoltDB connection failed.." + e.getMessage(), e);
+        }
+
+        SimboxDataGenerator.msg("Connected to VoltDB");
+
+        return new Client2Transport(client);
+    }
+
+    /**
+     * Call a procedure
+     * 
+     * @param procName
+     * @param params
+     * @return the response, once it arrives
+     */
+    public CompletableFuture<ClientResponse> call(String procName, Object... params) {
+        return client.callProcedureAsync(procName, params).whenComplete(outcomeRecorder);
+    }
+
+    /**
+     * Make two calls at once and combine their outcomes. Used for the
+     * outgoing and incoming legs of a phone call.
+     * 
+     * @param procName
+     * @param firstParams
+     * @param secondParams
+     * @return true once both calls have succeeded; false if either didn't
+     */
+    public CompletableFuture<Boolean> callPair(String procName, Object[] firstParams, Object[] secondParams) {
+        return call(procName, firstParams).thenCombine(call(procName, secondParams), BOTH_SUCCEEDED);
+    }
+
+    /**
+     * @return calls that haven't finished yet
+     */
+    public int getOutstandingRequestCount() {
+        return client.outstandingRequestCount();
+    }
+
+    /**
+     * @return calls that failed since last asked
+     */
+    public long takeFailureCount() {
+        return failures.sumThenReset();
+    }
+
+    /**
+     * @return round trip times since last asked, as a string
+     */
+    public String takeLatencySummary() {
+
+        synchronized (latencies) {
+            String summary = latencies.toString();
+            latencies.reset();
+            return summary;
+        }
+    }
+
+    /**
+     * @param percentile
+     * @return round trip percentile in ns since the last reset
+     */
+    public long getLatencyPercentileNanos(double percentile) {
+
+        synchronized (latencies) {
+            return latencies.getPercentileNanos(percentile);
+        }
+    }
+
+    /**
+     * Wait for everything we've sent to finish
+     * 
+     * @throws InterruptedException
+     */
+    public void drain() throws InterruptedException {
+        client.drain();
+    }
+
+    /**
+     * Finish and disconnect
+     * 
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        client.drain();
+        client.close();
+    }
+
+}
@@ -0,0 +1,364 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2022 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.simbox;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ProcedureCallback;
+import org.voltdb.types.TimestampType;
+
+/**
+ * Runs the same call workload through the legacy client and then through
+ * {@link Client2Transport}, at the same tpMs, and prints CPU per transaction
+ * and round trip percentiles for each.
+ * <p>
+ * Each call is two ReportDeviceActivity transactions, one per leg, between
+ * random devices. Devices 0 to deviceCount-1 are registered first, so run it
+ * against a database you don't mind adding devices to.
+ * <p>
+ * With a fixed '--seed' and '--transport=legacy' it also compares two versions
+ * of the stored procedures: load one, run, load the other and run again, and
+ * both runs send exactly the same calls. See
+ * scripts/benchmark_report_device_activity.sh.
+ *
+ */
+public class ClientTransportBenchmark {
+
+    /**
+     * Our legacy handle to VoltDB, used for setup and the legacy run
+     */
+    private final Client voltClient;
+
+    /**
+     * Comma delimited hosts
+     */
+    private final String hostnames;
+
+    /**
+     * How many devices to call between
+     */
+    private final int deviceCount;
+
+    /**
+     * Calls per millisecond. Each call is 2 transactions.
+     */
+    private final int tpMs;
+
+    /**
+     * How long each run lasts
+     */
+    private final int durationSeconds;
+
+    /**
+     * Client2 request limit
+     */
+    private final int requestLimit;
+
+    /**
+     * Same seed for both runs, so they send the same calls
+     */
+    private final long seed;
+
+    /**
+     * Which clients to run: "legacy", "client2" or "both"
+     */
+    private final String transport;
+
+    /**
+     * @param voltClient
+     * @param hostnames
+     * @param deviceCount
+     * @param tpMs
+     * @param durationSeconds
+     * @param requestLimit
+     * @param seed
+     * @param transport       "legacy", "client2" or "both"
+     */
+    public ClientTransportBenchmark(Client voltClient, String hostnames, int deviceCount, int tpMs,
+            int durationSeconds, int requestLimit, long seed, String transport) {
+        super();
+        this.voltClient = voltClient;
+        this.hostnames = hostnames;
+        this.deviceCount = deviceCount;
+        this.tpMs = tpMs;
+        this.durationSeconds = durationSeconds;
+        this.requestLimit = requestLimit;
+        this.seed = seed;
+        this.transport = transport;
+    }
+
+    /**
+     * Set up, then run the clients we were asked for in turn
+     * 
+     * @throws Exception
+     */
+    public void run() throws Exception {
+
+        SimboxDataGenerator.msg("Registering " + deviceCount + " devices");
+
+        ComplainOnErrorCallback coec = new ComplainOnErrorCallback();
+        voltClient.callProcedure("cell_table.UPSERT", 0);
+
+        for (long i = 0; i < deviceCount; i++) {
+            voltClient.callProcedure(coec, "RegisterDevice", i, 0, new Date());
+        }
+
+        voltClient.drain();
+
+        if (!transport.equals("client2")) {
+            SimboxDataGenerator.msg("Legacy:  " + runLegacy());
+        }
+
+        if (!transport.equals("legacy")) {
+            SimboxDataGenerator.msg("Client2: " + runClient2());
+        }
+    }
+
+    /**
+     * Send our workload through the legacy callback API
+     * 
+     * @return what happened
+     * @throws Exception
+     */
+    private BenchmarkResult runLegacy() throws Exception {
+
+        SimboxDataGenerator.msg("Running legacy client for " + durationSeconds + " seconds at tpMs=" + tpMs);
+
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final LongAdder failures = new LongAdder();
+
+        ProcedureCallback timingCallback = new ProcedureCallback() {
+            @Override
+            public void clientCallback(ClientResponse cr) throws Exception {
+
+                synchronized (latencies) {
+                    latencies.record(cr.getClientRoundtripNanos());
+                }
+
+                if (cr.getStatus() != ClientResponse.SUCCESS) {
+                    failures.increment();
+                }
+            }
+        };
+
+        final Random r = new Random(seed);
+        final long startCpuNanos = getProcessCpuNanos();
+        final long startMs = System.currentTimeMillis();
+        final long endMs = startMs + (1000L * durationSeconds);
+        long callCount = 0;
+
+        while (System.currentTimeMillis() < endMs) {
+
+            final long currentMs = System.currentTimeMillis();
+
+            for (int i = 0; i < tpMs; i++) {
+
+                final long callingNumber = r.nextInt(deviceCount);
+                final long calledNumber = r.nextInt(deviceCount);
+                final TimestampType startTime = new TimestampType(currentMs * 1000);
+
+                voltClient.callProcedure(timingCallback, "ReportDeviceActivity", callingNumber, startTime, 1, "O",
+                        calledNumber, "E");
+                voltClient.callProcedure(timingCallback, "ReportDeviceActivity", calledNumber, startTime, 1, "I",
+                        callingNumber, "E");
+                callCount++;
+            }
+
+            waitForNextMs(currentMs);
+        }
+
+        voltClient.drain();
+
+        synchronized (latencies) {
+            return new BenchmarkResult(callCount * 2, System.currentTimeMillis() - startMs,
+                    getProcessCpuNanos() - startCpuNanos, failures.sum(), latencies.toString());
+        }
+    }
+
+    /**
+     * Send our workload through Client2, combining the legs of each call
+     * 
+     * @return what happened
+     * @throws Exception
+     */
+    private BenchmarkResult runClient2() throws Exception {
+
+        SimboxDataGenerator.msg("Running Client2 for " + durationSeconds + " seconds at tpMs=" + tpMs);
+
+        Client2Transport transport = Client2Transport.connect(hostnames, requestLimit);
+
+        // Discard anything from connecting...
+        transport.takeLatencySummary();
+        transport.takeFailureCount();
+
+        final Random r = new Random(seed);
+        final long startCpuNanos = getProcessCpuNanos();
+        final long startMs = System.currentTimeMillis();
+        final long endMs = startMs + (1000L * durationSeconds);
+        long callCount = 0;
+
+        while (System.currentTimeMillis() < endMs) {
+
+            final long currentMs = System.currentTimeMillis();
+
+            for (int i = 0; i < tpMs; i++) {
+
+                final long callingNumber = r.nextInt(deviceCount);
+                final long calledNumber = r.nextInt(deviceCount);
+                final TimestampType startTime = new TimestampType(currentMs * 1000);
+
+                Object[] outgoingParams = { callingNumber, startTime, 1, "O", calledNumber, "E" };
+                Object[] incomingParams = { calledNumber, startTime, 1, "I", callingNumber, "E" };
+
+                transport.callPair("ReportDeviceActivity", outgoingParams, incomingParams);
+                callCount++;
+            }
+
+            waitForNextMs(currentMs);
+        }
+
+        transport.drain();
+
+        BenchmarkResult result = new BenchmarkResult(callCount * 2, System.currentTimeMillis() - startMs,
+                getProcessCpuNanos() - startCpuNanos, transport.takeFailureCount(), transport.takeLatencySummary());
+
+        transport.close();
+
+        return result;
+    }
+
+    /**
+     * Spin until the clock moves past 'currentMs'
+     * 
+     * @param currentMs
+     * @throws InterruptedException
+     */
+    private static void waitForNextMs(long currentMs) throws InterruptedException {
+
+        while (currentMs == System.currentTimeMillis()) {
+            Thread.sleep(0, 50000);
+        }
+    }
+
+    /**
+     * @return CPU used by this JVM so far, or 0 if the JVM won't tell us
+     */
+    private static long getProcessCpuNanos() {
+
+        OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+
+        if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) osBean).getProcessCpuTime();
+        }
+
+        return 0;
+    }
+
+    /**
+     * Outcome of one run
+     */
+    private static class BenchmarkResult {
+
+        final long transactions;
+
+        final long elapsedMs;
+
+        final long cpuNanos;
+
+        final long failures;
+
+        final String latencySummary;
+
+        BenchmarkResult(long transactions, long elapsedMs, long cpuNanos, long failures, String latencySummary) {
+            this.transactions = transactions;
+            this.elapsedMs = elapsedMs;
+            this.cpuNanos = cpuNanos;
+            this.failures = failures;
+            this.latencySummary = latencySummary;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("transactions=");
+            builder.append(transactions);
+            builder.append(", tps=");
+            builder.append(elapsedMs == 0 ? 0 : (transactions * 1000) / elapsedMs);
+            builder.append(", cpuNanosPerTxn=");
+            builder.append(transactions == 0 ? 0 : cpuNanos / transactions);
+            builder.append(", failures=");
+            builder.append(failures);
+            builder.append(", ");
+            builder.append(latencySummary);
+            return builder.toString();
+        }
+    }
+
+    /**
+     * Run from command line
+     * 
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 4) {
+            SimboxDataGenerator
+                    .msg("Usage: ClientTransportBenchmark hostnames deviceCount tpMs durationSeconds [--requestLimit=n] [--seed=n] [--transport=legacy|client2|both]");
+            System.exit(1);
+        }
+
+        SimboxDataGenerator.msg("[hostnames deviceCount tpMs durationSeconds]=" + Arrays.toString(args));
+
+        HashMap<String, String> options = SimboxDataGenerator.getOptions(args, 4);
+        int requestLimit = Integer.parseInt(
+                SimboxDataGenerator.getOption(options, "requestLimit", "" + Client2Transport.DEFAULT_REQUEST_LIMIT));
+        long seed = Long.parseLong(SimboxDataGenerator.getOption(options, "seed", "" + System.currentTimeMillis()));
+        String transport = SimboxDataGenerator.getOption(options, "transport", "both");
+
+        if (!transport.equals("legacy") && !transport.equals("client2") && !transport.equals("both")) {
+            throw new IllegalArgumentException("--transport must be legacy, client2 or both");
+        }
+
+        Client voltClient = SimboxDataGenerator.connectVoltDB(args[0]);
+
+        ClientTransportBenchmark benchmark = new ClientTransportBenchmark(voltClient, args[0],
+                Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), requestLimit, seed,
+                transport);
+
+        benchmark.run();
+
+        voltClient.close();
+
+    }
+
+}
@@ -0,0 +1,274 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2022 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.simbox;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters the generator's event loop writes and the control plane reads.
+ * <p>
+ * Everything here is either a lock free counter or a value the event loop
+ * publishes with a single volatile write, so reading stats never makes the
+ * event loop wait.
+ *
+ */
+public class DataPlaneStats {
+
+    /**
+     * An event loop iteration slower than this counts as a stall
+     */
+    public static final long STALL_NANOS = 10L * 1000 * 1000;
+
+    /**
+     * How often the event loop publishes a fresh copy of the fleet's state
+     */
+    public static final long FLEET_PUBLISH_INTERVAL_MS = 1000;
+
+    /**
+     * Times we couldn't find two idle devices
+     */
+    private final LongAdder busyCount = new LongAdder();
+
+    /**
+     * Calls routed through a simbox
+     */
+    private final LongAdder evilCount = new LongAdder();
+
+    /**
+     * Normal calls
+     */
+    private final LongAdder goodCallCount = new LongAdder();
+
+    /**
+     * Normal cell changes
+     */
+    private final LongAdder goodCellMoves = new LongAdder();
+
+    /**
+     * Simbox sims moving
+     */
+    private final LongAdder evilCellMoves = new LongAdder();
+
+    /**
+     * Slowest event loop iteration since the control plane last looked
+     */
+    private final AtomicLong maxIterationNanos = new AtomicLong(0);
+
+    /**
+     * Event loop iterations slower than STALL_NANOS
+     */
+    private final LongAdder stallCount = new LongAdder();
+
+    /**
+     * Devices in a call when the fleet was last published
+     */
+    private volatile int devicesInCall = 0;
+
+    /**
+     * Fleet fraudulent calls when it was last published
+     */
+    private volatile long fleetEvilCallCount = 0;
+
+    /**
+     * Fleet fake calls when it was last published
+     */
+    private volatile long fleetFakeCallCount = 0;
+
+    /**
+     * Fleet projected profit when it was last published
+     */
+    private volatile long fleetProfitCents = 0;
+
+    /**
+     * Fleet description when it was last published
+     */
+    private volatile String fleetDescription = "";
+
+    /**
+     * When the fleet was last published
+     */
+    private long lastFleetPublishMs = 0;
+
+    /**
+     * Note that we couldn't find two idle devices
+     */
+    public void noteBusy() {
+        busyCount.increment();
+    }
+
+    /**
+     * Note a call routed through a simbox
+     */
+    public void noteEvilCall() {
+        evilCount.increment();
+    }
+
+    /**
+     * Note a normal call
+     */
+    public void noteGoodCall() {
+        goodCallCount.increment();
+    }
+
+    /**
+     * @param moves normal cell moves
+     */
+    public void noteGoodCellMoves(int moves) {
+        goodCellMoves.add(moves);
+    }
+
+    /**
+     * @param moves simbox sims moving cell
+     */
+    public void noteEvilCellMoves(int moves) {
+        evilCellMoves.add(moves);
+    }
+
+    /**
+     * Record how long an event loop iteration took, not counting any time we
+     * deliberately slept.
+     * 
+     * @param nanos
+     */
+    public void noteIteration(long nanos) {
+
+        if (nanos > STALL_NANOS) {
+            stallCount.increment();
+        }
+
+        long oldMax = maxIterationNanos.get();
+
+        while (nanos > oldMax && !maxIterationNanos.compareAndSet(oldMax, nanos)) {
+            oldMax = maxIterationNanos.get();
+        }
+    }
+
+    /**
+     * Called by the event loop. Publishes the state of the fleet and the call
+     * wheel at most once every FLEET_PUBLISH_INTERVAL_MS.
+     * 
+     * @param nowMs
+     * @param simboxFleet
+     * @param callWheel
+     */
+    public void publishFleetIfDue(long nowMs, SimboxFleet simboxFleet, CallCompletionWheel callWheel) {
+
+        if (lastFleetPublishMs + FLEET_PUBLISH_INTERVAL_MS > nowMs) {
+            return;
+        }
+
+        lastFleetPublishMs = nowMs;
+        devicesInCall = callWheel.getBusyCount();
+        fleetEvilCallCount = simboxFleet.getEvilCallCount();
+        fleetFakeCallCount = simboxFleet.getFakeCallCount();
+        fleetProfitCents = (long) (simboxFleet.getProjectedProfit() * 100);
+        fleetDescription = simboxFleet.toString();
+    }
+
+    /**
+     * @return busy count since last asked
+     */
+    public long takeBusyCount() {
+        return busyCount.sumThenReset();
+    }
+
+    /**
+     * @return simbox calls since last asked
+     */
+    public long takeEvilCount() {
+        return evilCount.sumThenReset();
+    }
+
+    /**
+     * @return normal calls since last asked
+     */
+    public long takeGoodCallCount() {
+        return goodCallCount.sumThenReset();
+    }
+
+    /**
+     * @return normal cell moves since last asked
+     */
+    public long takeGoodCellMoves() {
+        return goodCellMoves.sumThenReset();
+    }
+
+    /**
+     * @return simbox cell moves since last asked
+     */
+    public long takeEvilCellMoves() {
+        return evilCellMoves.sumThenReset();
+    }
+
+    /**
+     * @return slowest iteration since last asked, in ns
+     */
+    public long takeMaxIterationNanos() {
+        return maxIterationNanos.getAndSet(0);
+    }
+
+    /**
+     * @return stalls since last asked
+     */
+    public long takeStallCount() {
+        return stallCount.sumThenReset();
+    }
+
+    /**
+     * @return the devicesInCall
+     */
+    public int getDevicesInCall() {
+        return devicesInCall;
+    }
+
+    /**
+     * @return the fleet's fraudulent call count
+     */
+    public long getFleetEvilCallCount() {
+        return fleetEvilCallCount;
+    }
+
+    /**
+     * @return the fleet's fake call count
+     */
+    public long getFleetFakeCallCount() {
+        return fleetFakeCallCount;
+    }
+
+    /**
+     * @return the fleet's projected profit in cents
+     */
+    public long getFleetProfitCents() {
+        return fleetProfitCents;
+    }
+
+    /**
+     * @return the fleetDescription
+     */
+    public String getFleetDescription() {
+        return fleetDescription;
+    }
+
+}
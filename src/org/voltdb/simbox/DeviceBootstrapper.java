@@ -0,0 +1,230 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2022 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.simbox;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.voltdb.VoltType;
+import org.voltdb.client.Client;
+import org.voltdb.client.NoConnectionsException;
+
+/**
+ * Creates devices in bulk at startup. Devices are grouped by partition and
+ * sent to 'BootstrapDevices' BATCH_SIZE at a time along with the cells they've
+ * already moved through.
+ *
+ */
+public class DeviceBootstrapper {
+
+    /**
+     * Devices per call to 'BootstrapDevices'
+     */
+    private static final int BATCH_SIZE = 200;
+
+    /**
+     * Our handle to VoltDB
+     */
+    private final Client voltClient;
+
+    /**
+     * Where we record events for replay. May be null.
+     */
+    private final EventLogWriter eventLog;
+
+    /**
+     * How many moves each device has made before it's created
+     */
+    private final int moveCount;
+
+    /**
+     * Devices waiting to be sent, by partition
+     */
+    private final HashMap<Long, Batch> batches = new HashMap<Long, Batch>();
+
+    /**
+     * Used by async DB calls
+     */
+    private final ComplainOnErrorCallback coec = new ComplainOnErrorCallback();
+
+    /**
+     * How many devices we've sent
+     */
+    private long deviceCount = 0;
+
+    /**
+     * @param voltClient
+     * @param eventLog   null if we aren't recording
+     * @param moveCount
+     */
+    public DeviceBootstrapper(Client voltClient, EventLogWriter eventLog, int moveCount) {
+        super();
+        this.voltClient = voltClient;
+        this.eventLog = eventLog;
+        this.moveCount = moveCount;
+    }
+
+    /**
+     * Remove any existing devices and create our cells. Must be called before
+     * 'addDevice'.
+     * 
+     * @param cellCount
+     * @throws Exception
+     */
+    public void reset(int cellCount) throws Exception {
+        voltClient.callProcedure("ResetForBootstrap", cellCount);
+    }
+
+    /**
+     * Queue a device for creation. 'theDevice' has already moved to the last
+     * cell in 'cellPath'.
+     * 
+     * @param theDevice
+     * @param createDate
+     * @param cellPath   the cell it started in, followed by moveCount cells it
+     *                   moved to
+     * @throws NoConnectionsException
+     * @throws IOException
+     */
+    public void addDevice(UserDevice theDevice, Date createDate, long[] cellPath)
+            throws NoConnectionsException, IOException {
+
+        final long deviceId = theDevice.getDeviceId();
+
+        if (eventLog != null) {
+            final long nowMs = System.currentTimeMillis();
+            eventLog.recordRegister(deviceId, cellPath[0], createDate.getTime());
+
+            for (int j = 1; j < cellPath.length; j++) {
+                eventLog.recordCellChange(deviceId, cellPath[j], nowMs);
+            }
+        }
+
+        final long partitionId = voltClient.getPartitionForParameter(VoltType.BIGINT.getValue(), deviceId);
+        Batch batch = batches.get(partitionId);
+
+        if (batch == null) {
+            batch = new Batch();
+            batches.put(partitionId, batch);
+        }
+
+        batch.add(deviceId, createDate.getTime(), cellPath);
+
+        if (batch.size == BATCH_SIZE) {
+            send(batch);
+        }
+
+    }
+
+    /**
+     * Send anything we haven't sent yet and wait for it to finish
+     * 
+     * @throws Exception
+     */
+    public void finish() throws Exception {
+
+        Iterator<Batch> it = batches.values().iterator();
+
+        while (it.hasNext()) {
+            send(it.next());
+        }
+
+        batches.clear();
+        voltClient.drain();
+
+    }
+
+    /**
+     * @return how many devices we've created
+     */
+    public long getDeviceCount() {
+        return deviceCount;
+    }
+
+    /**
+     * Send a batch and empty it
+     * 
+     * @param batch
+     * @throws NoConnectionsException
+     * @throws IOException
+     */
+    private void send(Batch batch) throws NoConnectionsException, IOException {
+
+        if (batch.size == 0) {
+            return;
+        }
+
+        long[] deviceIds = batch.deviceIds;
+        long[] createDatesMs = batch.createDatesMs;
+        long[] cellPaths = batch.cellPaths;
+
+        if (batch.size < BATCH_SIZE) {
+            deviceIds = Arrays.copyOf(deviceIds, batch.size);
+            createDatesMs = Arrays.copyOf(createDatesMs, batch.size);
+            cellPaths = Arrays.copyOf(cellPaths, batch.size * (moveCount + 1));
+        }
+
+        voltClient.callProcedure(coec, "BootstrapDevices", deviceIds[0], deviceIds, createDatesMs, cellPaths,
+                moveCount);
+
+        deviceCount += batch.size;
+        batch.clear();
+    }
+
+    /**
+     * Devices waiting to be sent to one partition
+     */
+    private class Batch {
+
+        long[] deviceIds = new long[BATCH_SIZE];
+
+        long[] createDatesMs = new long[BATCH_SIZE];
+
+        long[] cellPaths = new long[BATCH_SIZE * (moveCount + 1)];
+
+        int size = 0;
+
+        void add(long deviceId, long createDateMs, long[] cellPath) {
+            deviceIds[size] = deviceId;
+            createDatesMs[size] = createDateMs;
+            System.arraycopy(cellPath, 0, cellPaths, size * (moveCount + 1), moveCount + 1);
+            size++;
+        }
+
+        /**
+         * Start a new set of arrays - the old ones belong to the call we just
+         * made.
+         */
+        void clear() {
+            deviceIds = new long[BATCH_SIZE];
+            createDatesMs = new long[BATCH_SIZE];
+            cellPaths = new long[BATCH_SIZE * (moveCount + 1)];
+            size = 0;
+        }
+    }
+
+}
@@ -0,0 +1,233 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2022 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.simbox;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import org.voltdb.client.NoConnectionsException;
+import org.voltdb.types.TimestampType;
+
+/**
+ * Every device event the generator produces goes through here, so it can be
+ * sent to VoltDB and, if we were asked to, written to an
+ * {@link EventLogWriter} for later replay.
+ * <p>
+ * Calls go either through an {@link AdaptiveCallLimiter} on the legacy client,
+ * or through a {@link Client2Transport}. Registrations and cell moves wait
+ * for the limiter rather than being lost. A phone call whose two legs the
+ * limiter won't take is dropped as a whole, counted, and left out of the event
+ * log, so a replay sends what the server actually received.
+ *
+ */
+public class DeviceEventSink {
+
+    /**
+     * Sends our calls to VoltDB. Null if we're using 'transport'.
+     */
+    private final AdaptiveCallLimiter limiter;
+
+    /**
+     * Sends our calls to VoltDB using Client2. Null if we're using 'limiter'.
+     */
+    private final Client2Transport transport;
+
+    /**
+     * Where we record events. May be null.
+     */
+    private final EventLogWriter eventLog;
+
+    /**
+     * Used by async DB calls
+     */
+    private final ComplainOnErrorCallback coec = new ComplainOnErrorCallback();
+
+    /**
+     * Phone calls the limiter wouldn't let us send
+     */
+    private final LongAdder droppedCalls = new LongAdder();
+
+    /**
+     * Calls where at least one leg failed
+     */
+    private final LongAdder failedCalls = new LongAdder();
+
+    /**
+     * Counts calls where at least one leg failed
+     */
+    private final BiConsumer<Boolean, Throwable> callOutcomeRecorder = new BiConsumer<Boolean, Throwable>() {
+        @Override
+        public void accept(Boolean bothSucceeded, Throwable t) {
+            if (t != null || !bothSucceeded.booleanValue()) {
+                failedCalls.increment();
+            }
+        }
+    };
+
+    /**
+     * @param limiter
+     * @param eventLog null if we aren't recording
+     */
+    public DeviceEventSink(AdaptiveCallLimiter limiter, EventLogWriter eventLog) {
+        super();
+        this.limiter = limiter;
+        this.transport = null;
+        this.eventLog = eventLog;
+    }
+
+    /**
+     * @param transport
+     * @param eventLog  null if we aren't recording
+     */
+    public DeviceEventSink(Client2Transport transport, EventLogWriter eventLog) {
+        super();
+        this.limiter = null;
+        this.transport = transport;
+        this.eventLog = eventLog;
+    }
+
+    /**
+     * Register a device with VoltDB
+     * 
+     * @param theDevice
+     * @throws NoConnectionsException
+     * @throws IOException
+     */
+    public void registerDevice(UserDevice theDevice) throws NoConnectionsException, IOException {
+
+        Object[] params = theDevice.getParamsForRegisterProcedure();
+
+        send(theDevice.getDeviceId(), "RegisterDevice", params);
+
+        if (eventLog != null) {
+            eventLog.recordRegister(theDevice.getDeviceId(), theDevice.getCellId(),
+                    ((Date) params[2]).getTime());
+        }
+    }
+
+    /**
+     * Move a device to a new cell and tell VoltDB
+     * 
+     * @param theDevice
+     * @param newCellId
+     * @throws NoConnectionsException
+     * @throws IOException
+     */
+    public void changeCell(UserDevice theDevice, long newCellId) throws NoConnectionsException, IOException {
+
+        Object[] params = theDevice.changeCellid(newCellId);
+
+        send(theDevice.getDeviceId(), "ReportCellChange", params);
+
+        if (eventLog != null) {
+            eventLog.recordCellChange(theDevice.getDeviceId(), newCellId, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Tell VoltDB about both legs of a call. Both legs are sent, or if the
+     * limiter won't take them, neither is.
+     * 
+     * @param callingNumber
+     * @param calledNumber
+     * @param startMs
+     * @param durationSeconds
+     * @throws NoConnectionsException
+     * @throws IOException
+     */
+    public void reportCall(long callingNumber, long calledNumber, long startMs, int durationSeconds)
+            throws NoConnectionsException, IOException {
+
+        TimestampType startTime = new TimestampType(startMs * 1000);
+        String status = "E";
+
+        Object[] outgoingParams = { callingNumber, startTime, durationSeconds, "O", calledNumber, status };
+        Object[] incomingParams = { calledNumber, startTime, durationSeconds, "I", callingNumber, status };
+
+        if (transport != null) {
+            CompletableFuture<Boolean> bothLegs = transport.callPair("ReportDeviceActivity", outgoingParams,
+                    incomingParams);
+            bothLegs.whenComplete(callOutcomeRecorder);
+        } else if (!limiter.callProcedurePair(coec, "ReportDeviceActivity", callingNumber, outgoingParams,
+                calledNumber, incomingParams)) {
+            droppedCalls.increment();
+            return;
+        }
+
+        if (eventLog != null) {
+            eventLog.recordCallLeg(callingNumber, 'O', calledNumber, startMs, durationSeconds);
+            eventLog.recordCallLeg(calledNumber, 'I', callingNumber, startMs, durationSeconds);
+        }
+    }
+
+    /**
+     * Wait for everything sent through 'transport' to finish. Legacy client
+     * callers drain their own Client.
+     * 
+     * @throws InterruptedException
+     */
+    public void drain() throws InterruptedException {
+
+        if (transport != null) {
+            transport.drain();
+        }
+    }
+
+    /**
+     * @return calls where at least one leg failed since last asked
+     */
+    public long takeFailedCallCount() {
+        return failedCalls.sumThenReset();
+    }
+
+    /**
+     * @return phone calls dropped since last asked
+     */
+    public long takeDroppedCallCount() {
+        return droppedCalls.sumThenReset();
+    }
+
+    /**
+     * Send a device event, waiting for the limiter if we have to.
+     * 
+     * @param deviceId
+     * @param procName
+     * @param params
+     * @throws NoConnectionsException
+     * @throws IOException
+     */
+    private void send(long deviceId, String procName, Object... params) throws NoConnectionsException, IOException {
+
+        if (transport != null) {
+            transport.call(procName, params);
+            return;
+        }
+
+        limiter.callProcedureWaiting(coec, deviceId, procName, params);
+    }
+
+}
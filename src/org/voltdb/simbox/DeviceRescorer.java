@@ -0,0 +1,291 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2022 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.simbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.voltdb.VoltTable;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ProcedureCallback;
+
+/**
+ * Runs 'RescoreDevices' over every partition at once, so a rule or parameter
+ * change reaches devices that haven't made a call since.
+ * <p>
+ * Each partition has its own cursor and never has more than one call in
+ * flight, and we can wait between chunks. A partition that finishes early
+ * doesn't wait for the others, and ingest never has more than one short
+ * rescoring transaction per partition ahead of it.
+ *
+ */
+public class DeviceRescorer {
+
+    /**
+     * How often we print progress
+     */
+    private static final int STATS_INTERVAL_MS = 10000;
+
+    /**
+     * How long we wait before trying a chunk again after a failure
+     */
+    private static final int RETRY_DELAY_MS = 1000;
+
+    /**
+     * Our handle to VoltDB
+     */
+    private final Client voltClient;
+
+    /**
+     * Most device rows each call reads. This bounds the work in a call, not
+     * the number of young devices it rescores.
+     */
+    private final int chunkSize;
+
+    /**
+     * How long each partition waits between chunks
+     */
+    private final int pauseMs;
+
+    /**
+     * Used to start the next chunk after 'pauseMs'
+     */
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Device rows read so far, across all partitions
+     */
+    private final AtomicLong rowsRead = new AtomicLong(0);
+
+    /**
+     * Young devices rescored so far, across all partitions
+     */
+    private final AtomicLong devicesChecked = new AtomicLong(0);
+
+    /**
+     * Devices whose verdict or score changed
+     */
+    private final AtomicLong devicesChanged = new AtomicLong(0);
+
+    /**
+     * Calls that failed and were retried
+     */
+    private final AtomicLong failedCalls = new AtomicLong(0);
+
+    /**
+     * Partitions we haven't finished
+     */
+    private final AtomicInteger partitionsLeft = new AtomicInteger(0);
+
+    /**
+     * @param voltClient
+     * @param chunkSize
+     * @param pauseMs
+     */
+    public DeviceRescorer(Client voltClient, int chunkSize, int pauseMs) {
+        super();
+        this.voltClient = voltClient;
+        this.chunkSize = chunkSize;
+        this.pauseMs = pauseMs;
+    }
+
+    /**
+     * Rescore every partition and wait until they're all done.
+     *
+     * @throws Exception
+     */
+    public void run() throws Exception {
+
+        ArrayList<PartitionCursor> cursors = new ArrayList<PartitionCursor>();
+
+        VoltTable keys = voltClient.callProcedure("@GetPartitionKeys", "INTEGER").getResults()[0];
+
+        while (keys.advanceRow()) {
+            cursors.add(new PartitionCursor(keys.getLong("PARTITION_ID"), keys.getLong("PARTITION_KEY")));
+        }
+
+        SimboxDataGenerator.msg("Rescoring " + cursors.size() + " partitions, chunkSize=" + chunkSize + ", pauseMs="
+                + pauseMs);
+
+        final long startMs = System.currentTimeMillis();
+        partitionsLeft.set(cursors.size());
+
+        for (int i = 0; i < cursors.size(); i++) {
+            cursors.get(i).callNextChunk();
+        }
+
+        long lastChecked = 0;
+        long lastStatsMs = startMs;
+
+        while (partitionsLeft.get() > 0) {
+
+            Thread.sleep(100);
+
+            final long nowMs = System.currentTimeMillis();
+
+            if (nowMs - lastStatsMs >= STATS_INTERVAL_MS) {
+
+                final long checked = devicesChecked.get();
+
+                SimboxDataGenerator.msg("Read " + rowsRead.get() + " rows, checked " + checked + " devices, changed "
+                        + devicesChanged.get() + ", " + ((checked - lastChecked) * 1000 / (nowMs - lastStatsMs))
+                        + " devices/sec, "
+                        + (cursors.size() - partitionsLeft.get()) + "/" + cursors.size()
+                        + " partitions finished, failedCalls=" + failedCalls.get());
+
+                lastChecked = checked;
+                lastStatsMs = nowMs;
+            }
+        }
+
+        scheduler.shutdown();
+
+        final long elapsedMs = Math.max(1, System.currentTimeMillis() - startMs);
+
+        SimboxDataGenerator.msg("Finished. Read " + rowsRead.get() + " rows and checked " + devicesChecked.get()
+                + " devices in " + elapsedMs + "ms ("
+                + (devicesChecked.get() * 1000 / elapsedMs) + " devices/sec), changed " + devicesChanged.get()
+                + ", failedCalls=" + failedCalls.get());
+    }
+
+    /**
+     * Where one partition has got to. Only one chunk per partition is ever in
+     * flight.
+     */
+    private class PartitionCursor implements ProcedureCallback, Runnable {
+
+        /**
+         * Partition we're walking
+         */
+        private final long partitionId;
+
+        /**
+         * A key that hashes to 'partitionId'
+         */
+        private final long partitionKey;
+
+        /**
+         * Last device id the previous chunk looked at
+         */
+        private long afterDeviceId = Long.MIN_VALUE;
+
+        /**
+         * @param partitionId
+         * @param partitionKey
+         */
+        PartitionCursor(long partitionId, long partitionKey) {
+            super();
+            this.partitionId = partitionId;
+            this.partitionKey = partitionKey;
+        }
+
+        /**
+         * Ask for the next chunk. If it can't be queued we try again later.
+         */
+        void callNextChunk() {
+
+            try {
+                voltClient.callProcedure(this, "RescoreDevices", partitionKey, afterDeviceId, chunkSize);
+            } catch (Exception e) {
+                SimboxDataGenerator.msg("Partition " + partitionId + ": " + e.getMessage());
+                retryLater();
+            }
+        }
+
+        @Override
+        public void run() {
+            callNextChunk();
+        }
+
+        @Override
+        public void clientCallback(ClientResponse response) throws Exception {
+
+            if (response.getStatus() != ClientResponse.SUCCESS) {
+                SimboxDataGenerator.msg("Partition " + partitionId + ": " + response.getStatusString());
+                retryLater();
+                return;
+            }
+
+            VoltTable progress = response.getResults()[0];
+            progress.advanceRow();
+
+            afterDeviceId = progress.getLong("last_device_id");
+            rowsRead.addAndGet(progress.getLong("rows_read"));
+            devicesChecked.addAndGet(progress.getLong("devices_checked"));
+            devicesChanged.addAndGet(progress.getLong("devices_changed"));
+
+            if (progress.getLong("finished") == 1) {
+                partitionsLeft.decrementAndGet();
+            } else if (pauseMs > 0) {
+                scheduler.schedule(this, pauseMs, TimeUnit.MILLISECONDS);
+            } else {
+                callNextChunk();
+            }
+        }
+
+        /**
+         * Try the same chunk again after a pause
+         */
+        private void retryLater() {
+            failedCalls.incrementAndGet();
+            scheduler.schedule(this, Math.max(pauseMs, RETRY_DELAY_MS), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Run from command line
+     *
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 1) {
+            SimboxDataGenerator.msg("Usage: DeviceRescorer hostnames [--chunkSize=n] [--pauseMs=n]");
+            System.exit(1);
+        }
+
+        SimboxDataGenerator.msg("[hostnames]=" + Arrays.toString(args));
+
+        HashMap<String, String> options = SimboxDataGenerator.getOptions(args, 1);
+        int chunkSize = Integer.parseInt(SimboxDataGenerator.getOption(options, "chunkSize", "200"));
+        int pauseMs = Integer.parseInt(SimboxDataGenerator.getOption(options, "pauseMs", "10"));
+
+        Client voltClient = SimboxDataGenerator.connectVoltDB(args[0]);
+
+        DeviceRescorer rescorer = new DeviceRescorer(voltClient, chunkSize, pauseMs);
+        rescorer.run();
+
+        voltClient.drain();
+        voltClient.close();
+    }
+
+}
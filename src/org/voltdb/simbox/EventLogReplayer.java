@@ -0,0 +1,399 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2022 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.simbox;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.voltdb.VoltType;
+import org.voltdb.client.Client;
+import org.voltdb.types.TimestampType;
+
+/**
+ * Replays a file written by {@link EventLogWriter} into VoltDB, either as
+ * fast as possible or at the pace it was recorded.
+ * <p>
+ * The file is memory mapped and read by several threads. Each thread only
+ * sends events for the partitions it owns, so events for a device are always
+ * sent in the order they were recorded.
+ *
+ */
+public class EventLogReplayer {
+
+    /**
+     * How many records we map at once. Keeps windows well under 2GB.
+     */
+    private static final long RECORDS_PER_WINDOW = 32 * 1024 * 1024;
+
+    /**
+     * How often we print progress
+     */
+    private static final int STATS_INTERVAL_MS = 10000;
+
+    /**
+     * Our handle to VoltDB
+     */
+    private final Client voltClient;
+
+    /**
+     * Name of file we're replaying
+     */
+    private final String fileName;
+
+    /**
+     * How many threads to use
+     */
+    private final int threadCount;
+
+    /**
+     * If true we replay at the recorded pace, otherwise as fast as we can
+     */
+    private final boolean originalTiming;
+
+    /**
+     * How much faster than recorded to go when 'originalTiming' is true
+     */
+    private final double speedup;
+
+    /**
+     * When the recorded run started, from the file header
+     */
+    private long recordedStartMs;
+
+    /**
+     * How many records are in the file
+     */
+    private long recordCount;
+
+    /**
+     * When we started replaying
+     */
+    private long replayStartMs;
+
+    /**
+     * Events sent so far, across all threads
+     */
+    private final AtomicLong eventsSent = new AtomicLong(0);
+
+    /**
+     * @param voltClient
+     * @param fileName
+     * @param threadCount
+     * @param originalTiming
+     * @param speedup
+     */
+    public EventLogReplayer(Client voltClient, String fileName, int threadCount, boolean originalTiming,
+            double speedup) {
+        super();
+        this.voltClient = voltClient;
+        this.fileName = fileName;
+        this.threadCount = threadCount;
+        this.originalTiming = originalTiming;
+        this.speedup = speedup;
+    }
+
+    /**
+     * Replay the whole file
+     * 
+     * @throws Exception
+     */
+    public void run() throws Exception {
+
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+
+            FileChannel channel = file.getChannel();
+            readHeader(channel);
+
+            createCells(channel);
+
+            SimboxDataGenerator.msg("Replaying " + recordCount + " events using " + threadCount + " threads"
+                    + (originalTiming ? " at " + speedup + "x recorded speed" : " at maximum rate"));
+
+            ReplayThread[] workers = new ReplayThread[threadCount];
+            replayStartMs = System.currentTimeMillis();
+
+            for (int i = 0; i < threadCount; i++) {
+                workers[i] = new ReplayThread(channel, i);
+                workers[i].start();
+            }
+
+            long lastSent = 0;
+            long lastStatsMs = replayStartMs;
+
+            for (int i = 0; i < threadCount; i++) {
+
+                while (workers[i].isAlive()) {
+
+                    workers[i].join(STATS_INTERVAL_MS);
+
+                    final long now = System.currentTimeMillis();
+
+                    if (lastStatsMs + STATS_INTERVAL_MS <= now) {
+                        final long sent = eventsSent.get();
+                        SimboxDataGenerator.msg("events/sec=" + ((sent - lastSent) * 1000 / Math.max(1, now - lastStatsMs))
+                                + ", sent=" + sent + " of " + recordCount);
+                        lastSent = sent;
+                        lastStatsMs = now;
+                    }
+                }
+
+                if (workers[i].failure != null) {
+                    throw workers[i].failure;
+                }
+            }
+
+            voltClient.drain();
+
+            final long elapsedMs = Math.max(1, System.currentTimeMillis() - replayStartMs);
+            SimboxDataGenerator.msg("Replayed " + eventsSent.get() + " events in " + elapsedMs + "ms, "
+                    + (eventsSent.get() * 1000 / elapsedMs) + " events/sec");
+        }
+
+    }
+
+    /**
+     * Check the header and find out how many records there are
+     * 
+     * @param channel
+     * @throws IOException
+     */
+    private void readHeader(FileChannel channel) throws IOException {
+
+        if (channel.size() < EventLogWriter.HEADER_SIZE) {
+            throw new IOException(fileName + " is too short to be an event log");
+        }
+
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, EventLogWriter.HEADER_SIZE);
+
+        final int magic = header.getInt();
+        final int version = header.getInt();
+        final int recordSize = header.getInt();
+        header.getInt();
+        recordedStartMs = header.getLong();
+
+        if (magic != EventLogWriter.MAGIC || version != EventLogWriter.FORMAT_VERSION
+                || recordSize != EventLogWriter.RECORD_SIZE) {
+            throw new IOException(fileName + " is not a version " + EventLogWriter.FORMAT_VERSION + " event log");
+        }
+
+        recordCount = (channel.size() - EventLogWriter.HEADER_SIZE) / EventLogWriter.RECORD_SIZE;
+
+    }
+
+    /**
+     * Make sure every cell mentioned in the file exists
+     * 
+     * @param channel
+     * @throws Exception
+     */
+    private void createCells(FileChannel channel) throws Exception {
+
+        long maxCellId = -1;
+
+        for (long first = 0; first < recordCount; first += RECORDS_PER_WINDOW) {
+
+            MappedByteBuffer window = mapWindow(channel, first);
+
+            while (window.hasRemaining()) {
+
+                final int recordStart = window.position();
+                final byte type = window.get(recordStart);
+
+                if (type == EventLogWriter.TYPE_REGISTER || type == EventLogWriter.TYPE_CELL_CHANGE) {
+                    maxCellId = Math.max(maxCellId, window.getLong(recordStart + 16));
+                }
+
+                window.position(recordStart + EventLogWriter.RECORD_SIZE);
+            }
+        }
+
+        SimboxDataGenerator.msg("Creating " + (maxCellId + 1) + " cells");
+
+        ComplainOnErrorCallback coec = new ComplainOnErrorCallback();
+
+        for (long i = 0; i <= maxCellId; i++) {
+            voltClient.callProcedure(coec, "cell_table.UPSERT", i);
+        }
+
+        voltClient.drain();
+
+    }
+
+    /**
+     * @param channel
+     * @param firstRecord
+     * @return a read only map of up to RECORDS_PER_WINDOW records
+     * @throws IOException
+     */
+    private MappedByteBuffer mapWindow(FileChannel channel, long firstRecord) throws IOException {
+
+        final long records = Math.min(RECORDS_PER_WINDOW, recordCount - firstRecord);
+
+        return channel.map(FileChannel.MapMode.READ_ONLY,
+                EventLogWriter.HEADER_SIZE + (firstRecord * EventLogWriter.RECORD_SIZE),
+                records * EventLogWriter.RECORD_SIZE);
+    }
+
+    /**
+     * Sends the events for partitions where partitionId % threadCount ==
+     * threadId.
+     */
+    private class ReplayThread extends Thread {
+
+        final FileChannel channel;
+
+        final int threadId;
+
+        final ComplainOnErrorCallback coec = new ComplainOnErrorCallback();
+
+        Exception failure = null;
+
+        ReplayThread(FileChannel channel, int threadId) {
+            super("EventLogReplayer-" + threadId);
+            this.channel = channel;
+            this.threadId = threadId;
+        }
+
+        @Override
+        public void run() {
+
+            try {
+                for (long first = 0; first < recordCount; first += RECORDS_PER_WINDOW) {
+
+                    MappedByteBuffer window = mapWindow(channel, first);
+
+                    while (window.hasRemaining()) {
+
+                        final byte type = window.get();
+                        final char inOrOut = (char) window.get();
+                        window.getShort();
+                        final int durationSeconds = window.getInt();
+                        final long deviceId = window.getLong();
+                        final long otherNumberOrCell = window.getLong();
+                        final long timeMs = window.getLong();
+
+                        if (!isOurs(deviceId)) {
+                            continue;
+                        }
+
+                        switch (type) {
+                        case EventLogWriter.TYPE_REGISTER:
+                            voltClient.callProcedure(coec, "RegisterDevice", deviceId, otherNumberOrCell,
+                                    new Date(timeMs));
+                            break;
+                        case EventLogWriter.TYPE_CELL_CHANGE:
+                            waitUntilDue(timeMs);
+                            voltClient.callProcedure(coec, "ReportCellChange", deviceId, otherNumberOrCell);
+                            break;
+                        case EventLogWriter.TYPE_CALL_LEG:
+                            waitUntilDue(timeMs);
+                            voltClient.callProcedure(coec, "ReportDeviceActivity", deviceId,
+                                    new TimestampType(timeMs * 1000), durationSeconds, String.valueOf(inOrOut),
+                                    otherNumberOrCell, "E");
+                            break;
+                        default:
+                            throw new IOException("Unknown event type " + type);
+                        }
+
+                        eventsSent.incrementAndGet();
+                    }
+                }
+
+            } catch (Exception e) {
+                SimboxDataGenerator.msg(e);
+                failure = e;
+            }
+
+        }
+
+        /**
+         * @param deviceId
+         * @return true if this thread handles 'deviceId'
+         */
+        private boolean isOurs(long deviceId) {
+
+            final long partitionId = voltClient.getPartitionForParameter(VoltType.BIGINT.getValue(), deviceId);
+
+            return Math.floorMod(partitionId, (long) threadCount) == threadId;
+        }
+
+        /**
+         * If we're replaying at the original pace, sleep until 'eventMs' is due.
+         * 
+         * @param eventMs
+         * @throws InterruptedException
+         */
+        private void waitUntilDue(long eventMs) throws InterruptedException {
+
+            if (!originalTiming) {
+                return;
+            }
+
+            final long dueMs = replayStartMs + (long) ((eventMs - recordedStartMs) / speedup);
+            final long waitMs = dueMs - System.currentTimeMillis();
+
+            if (waitMs > 0) {
+                Thread.sleep(waitMs);
+            }
+        }
+    }
+
+    /**
+     * Run from command line
+     * 
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 3) {
+            SimboxDataGenerator.msg(
+                    "Usage: EventLogReplayer hostnames eventLogFile threadCount [--originalTiming] [--speedup=n]");
+            System.exit(1);
+        }
+
+        SimboxDataGenerator.msg("[hostnames eventLogFile threadCount]=" + Arrays.toString(args));
+
+        HashMap<String, String> options = SimboxDataGenerator.getOptions(args, 3);
+        boolean originalTiming = Boolean.parseBoolean(SimboxDataGenerator.getOption(options, "originalTiming", "false"));
+        double speedup = Double.parseDouble(SimboxDataGenerator.getOption(options, "speedup", "1"));
+
+        Client voltClient = SimboxDataGenerator.connectVoltDB(args[0]);
+
+        EventLogReplayer replayer = new EventLogReplayer(voltClient, args[1], Integer.parseInt(args[2]),
+                originalTiming, speedup);
+
+        replayer.run();
+
+        voltClient.close();
+
+    }
+
+}
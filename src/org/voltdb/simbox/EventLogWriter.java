@@ -0,0 +1,257 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2022 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.simbox;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes generator events to a compact binary log so a run can be replayed
+ * later by {@link EventLogReplayer}.
+ * <p>
+ * The file starts with a HEADER_SIZE byte header followed by fixed width
+ * RECORD_SIZE byte records:
+ * <ul>
+ * <li>byte - event type</li>
+ * <li>byte - 'I' or 'O' for call legs, otherwise 0</li>
+ * <li>short - unused</li>
+ * <li>int - call duration in seconds</li>
+ * <li>long - device id</li>
+ * <li>long - other number for call legs, cell id otherwise</li>
+ * <li>long - when the event happened in ms. For registrations this is the
+ * device's create date instead</li>
+ * </ul>
+ * The file is written through a memory mapped window that is moved along as
+ * it fills, and trimmed to its real length when we close.
+ *
+ */
+public class EventLogWriter {
+
+    /**
+     * Identifies our files
+     */
+    public static final int MAGIC = 0x53424f58;
+
+    /**
+     * Format version
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    /**
+     * Size of file header
+     */
+    public static final int HEADER_SIZE = 32;
+
+    /**
+     * Size of each record
+     */
+    public static final int RECORD_SIZE = 32;
+
+    /**
+     * A call to 'RegisterDevice'
+     */
+    public static final byte TYPE_REGISTER = 1;
+
+    /**
+     * A call to 'ReportCellChange'
+     */
+    public static final byte TYPE_CELL_CHANGE = 2;
+
+    /**
+     * One leg of a call, sent to 'ReportDeviceActivity'
+     */
+    public static final byte TYPE_CALL_LEG = 3;
+
+    /**
+     * How much of the file we map at once. Must be a multiple of RECORD_SIZE.
+     */
+    private static final int WINDOW_SIZE = RECORD_SIZE * 1024 * 1024;
+
+    /**
+     * The file we're writing
+     */
+    private final RandomAccessFile file;
+
+    /**
+     * Channel for 'file'
+     */
+    private final FileChannel channel;
+
+    /**
+     * Currently mapped part of 'file'
+     */
+    private MappedByteBuffer window;
+
+    /**
+     * File offset 'window' starts at
+     */
+    private long windowStart;
+
+    /**
+     * How many records we've written
+     */
+    private long recordCount = 0;
+
+    /**
+     * Create a new log, replacing any file that's already there.
+     * 
+     * @param fileName
+     * @param startMs  when the run started
+     * @throws IOException
+     */
+    public EventLogWriter(String fileName, long startMs) throws IOException {
+
+        super();
+
+        file = new RandomAccessFile(fileName, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(FORMAT_VERSION);
+        header.putInt(RECORD_SIZE);
+        header.putInt(0);
+        header.putLong(startMs);
+        header.putLong(0);
+        header.flip();
+        channel.write(header, 0);
+
+        mapWindow(HEADER_SIZE);
+
+    }
+
+    /**
+     * Note a device being registered
+     * 
+     * @param deviceId
+     * @param cellId
+     * @param createDateMs
+     * @throws IOException
+     */
+    public synchronized void recordRegister(long deviceId, long cellId, long createDateMs) throws IOException {
+        write(TYPE_REGISTER, (byte) 0, 0, deviceId, cellId, createDateMs);
+    }
+
+    /**
+     * Note a device changing cell
+     * 
+     * @param deviceId
+     * @param cellId
+     * @param eventMs
+     * @throws IOException
+     */
+    public synchronized void recordCellChange(long deviceId, long cellId, long eventMs) throws IOException {
+        write(TYPE_CELL_CHANGE, (byte) 0, 0, deviceId, cellId, eventMs);
+    }
+
+    /**
+     * Note one leg of a call
+     * 
+     * @param deviceId
+     * @param inOrOut         'I' or 'O'
+     * @param otherNumber
+     * @param startMs
+     * @param durationSeconds
+     * @throws IOException
+     */
+    public synchronized void recordCallLeg(long deviceId, char inOrOut, long otherNumber, long startMs,
+            int durationSeconds) throws IOException {
+        write(TYPE_CALL_LEG, (byte) inOrOut, durationSeconds, deviceId, otherNumber, startMs);
+    }
+
+    /**
+     * @return how many records we've written
+     */
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Flush and trim the file to the records we actually wrote.
+     * 
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+
+        window.force();
+        window = null;
+
+        file.setLength(HEADER_SIZE + (recordCount * RECORD_SIZE));
+        channel.close();
+        file.close();
+
+    }
+
+    /**
+     * Add a record, moving our window along if it's full.
+     * 
+     * @param type
+     * @param inOrOut
+     * @param durationSeconds
+     * @param deviceId
+     * @param otherNumberOrCell
+     * @param timeMs
+     * @throws IOException
+     */
+    private void write(byte type, byte inOrOut, int durationSeconds, long deviceId, long otherNumberOrCell,
+            long timeMs) throws IOException {
+
+        if (!window.hasRemaining()) {
+            mapWindow(windowStart + WINDOW_SIZE);
+        }
+
+        window.put(type);
+        window.put(inOrOut);
+        window.putShort((short) 0);
+        window.putInt(durationSeconds);
+        window.putLong(deviceId);
+        window.putLong(otherNumberOrCell);
+        window.putLong(timeMs);
+
+        recordCount++;
+
+    }
+
+    /**
+     * Map the next WINDOW_SIZE bytes of the file
+     * 
+     * @param start
+     * @throws IOException
+     */
+    private void mapWindow(long start) throws IOException {
+
+        if (window != null) {
+            window.force();
+        }
+
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, WINDOW_SIZE);
+
+    }
+
+}
@@ -0,0 +1,356 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2022 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.simbox;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lets several generator processes share one run without treading on each
+ * other.
+ * <p>
+ * Every instance owns a disjoint range of device ids and a share of the
+ * global tpMs. Instance 0 is the leader: it clears out old state, creates the
+ * cells and then writes a 'ready' file. The others wait for that file before
+ * creating their devices. Start instance 0 first, or give each run an empty
+ * directory, so nobody sees a 'ready' file left over from an earlier run.
+ * <p>
+ * Instances write their stats to their own file in a shared directory, which
+ * can be local or on a shared filesystem. The leader adds them up and is the
+ * only one that publishes stats to VoltDB.
+ *
+ */
+public class GeneratorCoordinator {
+
+    /**
+     * Written by the leader once the database is ready for devices
+     */
+    private static final String READY_FILE_NAME = "ready";
+
+    /**
+     * Stat that says an instance has finished its run
+     */
+    private static final String FINISHED_PROPERTY = "instance_finished";
+
+    /**
+     * How often followers check for the 'ready' file
+     */
+    private static final int POLL_INTERVAL_MS = 500;
+
+    /**
+     * Stats that are combined by taking the biggest value, not by adding
+     */
+    private static final HashSet<String> MAX_STATS = new HashSet<String>(
+            Arrays.asList("event_loop_max_pause_us", "bootstrap_ms", "snapshot_save_ms"));
+
+    /**
+     * Where our files live
+     */
+    private final File coordinationDir;
+
+    /**
+     * Which instance we are, from 0
+     */
+    private final int instanceId;
+
+    /**
+     * How many instances there are
+     */
+    private final int instances;
+
+    /**
+     * Our latest stats
+     */
+    private final ConcurrentHashMap<String, Long> localStats = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * @param coordinationDir
+     * @param instanceId
+     * @param instances
+     * @throws IOException if the directory can't be created
+     */
+    public GeneratorCoordinator(String coordinationDir, int instanceId, int instances) throws IOException {
+
+        super();
+
+        if (instanceId < 0 || instanceId >= instances) {
+            throw new IllegalArgumentException("instanceId must be between 0 and " + (instances - 1));
+        }
+
+        this.coordinationDir = new File(coordinationDir);
+        this.instanceId = instanceId;
+        this.instances = instances;
+
+        if (!this.coordinationDir.isDirectory() && !this.coordinationDir.mkdirs()) {
+            throw new IOException("Can't create coordination directory " + coordinationDir);
+        }
+
+    }
+
+    /**
+     * @param total
+     * @param instanceId
+     * @param instances
+     * @return where 'instanceId's share of 'total' starts
+     */
+    public static long getShareStart(long total, int instanceId, int instances) {
+        return (total * instanceId) / instances;
+    }
+
+    /**
+     * @param total
+     * @param instanceId
+     * @param instances
+     * @return 'instanceId's share of 'total'. Shares differ by at most 1.
+     */
+    public static long getShare(long total, int instanceId, int instances) {
+        return getShareStart(total, instanceId + 1, instances) - getShareStart(total, instanceId, instances);
+    }
+
+    /**
+     * @return true if we're instance 0
+     */
+    public boolean isLeader() {
+        return instanceId == 0;
+    }
+
+    /**
+     * Remove the 'ready' file and everyone's stats from a previous run. Only
+     * the leader does this, before it touches the database.
+     */
+    public void clearPreviousRun() {
+
+        new File(coordinationDir, READY_FILE_NAME).delete();
+
+        for (int i = 0; i < instances; i++) {
+            getStatsFile(i).delete();
+        }
+    }
+
+    /**
+     * Tell the other instances they can create their devices
+     * 
+     * @throws IOException
+     */
+    public void markReady() throws IOException {
+
+        File readyFile = new File(coordinationDir, READY_FILE_NAME);
+        Files.write(readyFile.toPath(), ("" + System.currentTimeMillis()).getBytes());
+
+    }
+
+    /**
+     * Wait for the leader to say the database is ready.
+     * 
+     * @throws InterruptedException
+     */
+    public void awaitReady() throws InterruptedException {
+
+        File readyFile = new File(coordinationDir, READY_FILE_NAME);
+        long lastMessageMs = 0;
+
+        while (!readyFile.exists()) {
+
+            if (lastMessageMs + 10000 < System.currentTimeMillis()) {
+                SimboxDataGenerator.msg("Instance " + instanceId + " waiting for instance 0 to create "
+                        + readyFile.getAbsolutePath());
+                lastMessageMs = System.currentTimeMillis();
+            }
+
+            Thread.sleep(POLL_INTERVAL_MS);
+        }
+
+    }
+
+    /**
+     * Store one of our stats. It's written out by the next publish.
+     * 
+     * @param statName
+     * @param statValue
+     */
+    public void reportStat(String statName, long statValue) {
+        localStats.put(statName, statValue);
+    }
+
+    /**
+     * Write our stats to our file, replacing what was there.
+     * 
+     * @param finished true if our run is over
+     * @throws IOException
+     */
+    public void publish(boolean finished) throws IOException {
+
+        Properties props = new Properties();
+
+        for (Map.Entry<String, Long> entry : localStats.entrySet()) {
+            props.setProperty(entry.getKey(), entry.getValue().toString());
+        }
+
+        props.setProperty(FINISHED_PROPERTY, finished ? "1" : "0");
+
+        File target = getStatsFile(instanceId);
+        File tempFile = new File(target.getPath() + ".tmp");
+
+        try (OutputStream out = new FileOutputStream(tempFile)) {
+            props.store(out, "Generator instance " + instanceId);
+        }
+
+        Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Add up the latest stats from every instance that has published.
+     * 
+     * @return combined stats
+     */
+    public HashMap<String, Long> collect() {
+
+        HashMap<String, Long> totals = new HashMap<String, Long>();
+        int reporting = 0;
+
+        for (int i = 0; i < instances; i++) {
+
+            Properties props = readStats(i);
+
+            if (props == null) {
+                continue;
+            }
+
+            reporting++;
+
+            for (String statName : props.stringPropertyNames()) {
+
+                final long value = Long.parseLong(props.getProperty(statName));
+                final Long oldValue = totals.get(statName);
+
+                if (oldValue == null) {
+                    totals.put(statName, value);
+                } else if (MAX_STATS.contains(statName)) {
+                    totals.put(statName, Math.max(oldValue.longValue(), value));
+                } else {
+                    totals.put(statName, oldValue.longValue() + value);
+                }
+            }
+        }
+
+        totals.put("generator_instances_reporting", (long) reporting);
+
+        return totals;
+    }
+
+    /**
+     * Wait until every instance has published its final stats, or we run out
+     * of time.
+     * 
+     * @param timeoutMs
+     * @return true if they all finished
+     * @throws InterruptedException
+     */
+    public boolean awaitFinished(long timeoutMs) throws InterruptedException {
+
+        final long giveUpMs = System.currentTimeMillis() + timeoutMs;
+
+        while (System.currentTimeMillis() < giveUpMs) {
+
+            int finishedCount = 0;
+
+            for (int i = 0; i < instances; i++) {
+
+                Properties props = readStats(i);
+
+                if (props != null && "1".equals(props.getProperty(FINISHED_PROPERTY))) {
+                    finishedCount++;
+                }
+            }
+
+            if (finishedCount == instances) {
+                return true;
+            }
+
+            Thread.sleep(POLL_INTERVAL_MS);
+        }
+
+        return false;
+    }
+
+    /**
+     * @param otherInstanceId
+     * @return stats published by 'otherInstanceId', or null if it hasn't
+     */
+    private Properties readStats(int otherInstanceId) {
+
+        File statsFile = getStatsFile(otherInstanceId);
+
+        if (!statsFile.exists()) {
+            return null;
+        }
+
+        Properties props = new Properties();
+
+        try (InputStream in = new FileInputStream(statsFile)) {
+            props.load(in);
+        } catch (IOException e) {
+            SimboxDataGenerator.msg("Can't read " + statsFile + ": " + e.getMessage());
+            return null;
+        }
+
+        return props;
+    }
+
+    /**
+     * @param otherInstanceId
+     * @return file 'otherInstanceId' writes its stats to
+     */
+    private File getStatsFile(int otherInstanceId) {
+        return new File(coordinationDir, "instance-" + otherInstanceId + ".stats");
+    }
+
+    /**
+     * @return which instance we are
+     */
+    public int getInstanceId() {
+        return instanceId;
+    }
+
+    /**
+     * @return how many instances there are
+     */
+    public int getInstances() {
+        return instances;
+    }
+
+}
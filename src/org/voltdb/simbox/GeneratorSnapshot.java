@@ -0,0 +1,370 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2022 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.simbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Saves and restores the generator's view of its devices, so a restarted
+ * generator can carry on against a database that is already populated.
+ * <p>
+ * The file is a HEADER_SIZE byte header, one int per simbox holding the cell
+ * it's in, then one DEVICE_RECORD_SIZE byte record per device:
+ * <ul>
+ * <li>long - device id</li>
+ * <li>long - cell id</li>
+ * <li>long - create date in ms</li>
+ * <li>int - simbox id, or -1 if the device isn't in a simbox</li>
+ * <li>int - how many popular numbers follow</li>
+ * <li>long[MAX_POPULAR_NUMBERS] - popular numbers</li>
+ * </ul>
+ * Snapshots are written to a temporary file through a memory map and then
+ * renamed, so a crash part way through leaves the last good one in place.
+ * <p>
+ * Writing and syncing the file takes far too long for the event loop, so it's
+ * split in two. {@link #capture} runs on the event loop and copies the state
+ * that changes during a run, which is each device's cell, any popular numbers
+ * added since the last capture and each simbox's cell, into arrays we keep
+ * between snapshots. {@link #write} then writes those arrays from another
+ * thread. Create dates and simbox membership don't change once the run has
+ * started, so they're read from the devices when the file is written.
+ *
+ */
+public class GeneratorSnapshot {
+
+    /**
+     * Identifies our files
+     */
+    private static final int MAGIC = 0x534e4150;
+
+    /**
+     * Format version
+     */
+    private static final int FORMAT_VERSION = 2;
+
+    /**
+     * Size of file header
+     */
+    private static final int HEADER_SIZE = 40;
+
+    /**
+     * Most popular numbers we store per device
+     */
+    private static final int MAX_POPULAR_NUMBERS = 10;
+
+    /**
+     * Size of each device record
+     */
+    private static final int DEVICE_RECORD_SIZE = 32 + (8 * MAX_POPULAR_NUMBERS);
+
+    /**
+     * File we save to
+     */
+    private final String fileName;
+
+    /**
+     * First device we save
+     */
+    private final long firstDeviceId;
+
+    /**
+     * How many devices we save
+     */
+    private final int userCount;
+
+    /**
+     * Cells in the simulation
+     */
+    private final int cellCount;
+
+    /**
+     * Simboxes whose cells we save
+     */
+    private final SimboxFleet simboxFleet;
+
+    /**
+     * Devices in id order. Filled in by the first capture.
+     */
+    private UserDevice[] devices = null;
+
+    /**
+     * Each device's cell as of the last capture
+     */
+    private final long[] cellIds;
+
+    /**
+     * How many of each device's popular numbers we've copied
+     */
+    private final int[] popularCounts;
+
+    /**
+     * Each device's popular numbers, MAX_POPULAR_NUMBERS per device. A
+     * device's list only ever grows, so a capture only copies new entries.
+     */
+    private final long[] popularNumbers;
+
+    /**
+     * Each simbox's cell as of the last capture
+     */
+    private final int[] boxCellIds;
+
+    /**
+     * true from a successful capture until its write finishes. The arrays
+     * above belong to the writer while it's set.
+     */
+    private final AtomicBoolean writing = new AtomicBoolean(false);
+
+    /**
+     * @param fileName
+     * @param firstDeviceId
+     * @param userCount     devices firstDeviceId to firstDeviceId + userCount
+     *                      - 1 are saved
+     * @param cellCount
+     * @param simboxFleet
+     * @throws IOException if the snapshot would be too big
+     */
+    public GeneratorSnapshot(String fileName, long firstDeviceId, int userCount, int cellCount,
+            SimboxFleet simboxFleet) throws IOException {
+        super();
+
+        if (getFileSize(userCount, simboxFleet.getBoxes().size()) > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot of " + userCount + " devices is too big");
+        }
+
+        this.fileName = fileName;
+        this.firstDeviceId = firstDeviceId;
+        this.userCount = userCount;
+        this.cellCount = cellCount;
+        this.simboxFleet = simboxFleet;
+        this.cellIds = new long[userCount];
+        this.popularCounts = new int[userCount];
+        this.popularNumbers = new long[userCount * MAX_POPULAR_NUMBERS];
+        this.boxCellIds = new int[simboxFleet.getBoxes().size()];
+    }
+
+    /**
+     * Copy the state that changes during a run. Must be called from the
+     * thread that changes it.
+     * 
+     * @param sessionMap
+     * @return false if the last capture hasn't been written yet, in which case
+     *         nothing was copied and there's nothing to write
+     */
+    public boolean capture(HashMap<Long, UserDevice> sessionMap) {
+
+        if (writing.get()) {
+            return false;
+        }
+
+        if (devices == null) {
+            devices = new UserDevice[userCount];
+
+            for (int d = 0; d < userCount; d++) {
+                devices[d] = sessionMap.get(firstDeviceId + d);
+            }
+        }
+
+        for (int d = 0; d < userCount; d++) {
+
+            cellIds[d] = devices[d].getCellId();
+
+            ArrayList<Long> numbers = devices[d].getPopularNumbers();
+            final int popularCount = Math.min(MAX_POPULAR_NUMBERS, numbers.size());
+
+            while (popularCounts[d] < popularCount) {
+                popularNumbers[(d * MAX_POPULAR_NUMBERS) + popularCounts[d]] = numbers.get(popularCounts[d]);
+                popularCounts[d]++;
+            }
+        }
+
+        final ArrayList<Simbox> boxes = simboxFleet.getBoxes();
+
+        for (int i = 0; i < boxCellIds.length; i++) {
+            boxCellIds[i] = boxes.get(i).getCellId();
+        }
+
+        writing.set(true);
+        return true;
+    }
+
+    /**
+     * Write what the last successful {@link #capture} copied. Can be called
+     * from any thread.
+     * 
+     * @throws IOException
+     */
+    public void write() throws IOException {
+
+        try {
+            final long fileSize = getFileSize(userCount, boxCellIds.length);
+
+            File target = new File(fileName);
+            File tempFile = new File(fileName + ".tmp");
+
+            try (RandomAccessFile file = new RandomAccessFile(tempFile, "rw")) {
+
+                file.setLength(fileSize);
+                MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+
+                buffer.putInt(MAGIC);
+                buffer.putInt(FORMAT_VERSION);
+                buffer.putInt(userCount);
+                buffer.putInt(cellCount);
+                buffer.putInt(boxCellIds.length);
+                buffer.putInt(simboxFleet.getCapacity());
+                buffer.putLong(System.currentTimeMillis());
+                buffer.putLong(firstDeviceId);
+
+                for (int i = 0; i < boxCellIds.length; i++) {
+                    buffer.putInt(boxCellIds[i]);
+                }
+
+                for (int d = 0; d < userCount; d++) {
+
+                    final long deviceId = firstDeviceId + d;
+                    Simbox theBox = simboxFleet.getSimboxFor(deviceId);
+
+                    buffer.putLong(deviceId);
+                    buffer.putLong(cellIds[d]);
+                    buffer.putLong(devices[d].getCreateDate().getTime());
+                    buffer.putInt(theBox == null ? -1 : theBox.getSimboxId());
+                    buffer.putInt(popularCounts[d]);
+
+                    for (int i = 0; i < MAX_POPULAR_NUMBERS; i++) {
+                        buffer.putLong(popularNumbers[(d * MAX_POPULAR_NUMBERS) + i]);
+                    }
+                }
+
+                buffer.force();
+            }
+
+            Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+
+        } finally {
+            writing.set(false);
+        }
+    }
+
+    /**
+     * @param userCount
+     * @param boxCount
+     * @return how big a snapshot file is
+     */
+    private static long getFileSize(int userCount, int boxCount) {
+        return HEADER_SIZE + (4L * boxCount) + ((long) DEVICE_RECORD_SIZE * userCount);
+    }
+
+    /**
+     * Read a snapshot back into 'sessionMap' and 'simboxFleet'. The fleet must
+     * have been built from the same spec as when the snapshot was saved.
+     * 
+     * @param fileName
+     * @param firstDeviceId
+     * @param userCount
+     * @param cellCount
+     * @param sessionMap
+     * @param simboxFleet
+     * @return when the snapshot was taken
+     * @throws IOException if the snapshot doesn't match what we've been asked
+     *                     to do
+     */
+    public static Date load(String fileName, long firstDeviceId, int userCount, int cellCount,
+            HashMap<Long, UserDevice> sessionMap, SimboxFleet simboxFleet) throws IOException {
+
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+
+            final int magic = buffer.getInt();
+            final int version = buffer.getInt();
+            final int savedUserCount = buffer.getInt();
+            final int savedCellCount = buffer.getInt();
+            final int savedBoxCount = buffer.getInt();
+            final int savedCapacity = buffer.getInt();
+            final Date savedDate = new Date(buffer.getLong());
+            final long savedFirstDeviceId = buffer.getLong();
+
+            if (magic != MAGIC || version != FORMAT_VERSION) {
+                throw new IOException(fileName + " is not a version " + FORMAT_VERSION + " generator snapshot");
+            }
+
+            if (savedUserCount != userCount || savedCellCount != cellCount || savedFirstDeviceId != firstDeviceId) {
+                throw new IOException(fileName + " has " + savedUserCount + " devices from " + savedFirstDeviceId
+                        + " and " + savedCellCount + " cells, expected " + userCount + " from " + firstDeviceId
+                        + " and " + cellCount);
+            }
+
+            final ArrayList<Simbox> boxes = simboxFleet.getBoxes();
+
+            if (savedBoxCount != boxes.size() || savedCapacity != simboxFleet.getCapacity()) {
+                throw new IOException(fileName + " was saved with a different simbox fleet");
+            }
+
+            for (int i = 0; i < savedBoxCount; i++) {
+                boxes.get(i).restoreCellId(buffer.getInt());
+            }
+
+            for (int d = 0; d < userCount; d++) {
+
+                final long deviceId = buffer.getLong();
+                final long cellId = buffer.getLong();
+                final long createDateMs = buffer.getLong();
+                final int simboxId = buffer.getInt();
+                final int popularCount = buffer.getInt();
+
+                UserDevice ud = new UserDevice(deviceId, cellId);
+                ud.setCreateDate(new Date(createDateMs));
+
+                for (int i = 0; i < MAX_POPULAR_NUMBERS; i++) {
+
+                    final long popularNumber = buffer.getLong();
+
+                    if (i < popularCount) {
+                        ud.getPopularNumbers().add(popularNumber);
+                    }
+                }
+
+                if (simboxId >= 0) {
+                    simboxFleet.restoreSim(ud, simboxId);
+                }
+
+                sessionMap.put(deviceId, ud);
+            }
+
+            return savedDate;
+        }
+    }
+
+}
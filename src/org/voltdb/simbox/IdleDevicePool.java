@@ -0,0 +1,160 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2022 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.simbox;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A set of devices that are not currently in a call.
+ * <p>
+ * Devices are kept in a dense array. Each device remembers its own slot, so
+ * add, remove, membership tests and picking a random idle device are all O(1)
+ * no matter how busy the network is. Devices leave the pool when a call starts
+ * and are put back by {@link CallCompletionWheel} when the call ends.
+ *
+ */
+public class IdleDevicePool {
+
+    /**
+     * Idle devices. Only the first 'idleCount' entries are valid.
+     */
+    private UserDevice[] idle;
+
+    /**
+     * How many devices are idle
+     */
+    private int idleCount = 0;
+
+    /**
+     * Create an empty pool
+     *
+     * @param initialCapacity
+     */
+    public IdleDevicePool(int initialCapacity) {
+        super();
+        idle = new UserDevice[Math.max(16, initialCapacity)];
+    }
+
+    /**
+     * Put a device into the pool. Does nothing if it's already there.
+     *
+     * @param theDevice
+     */
+    public void add(UserDevice theDevice) {
+
+        if (theDevice.idleSlot >= 0) {
+            return;
+        }
+
+        if (idleCount == idle.length) {
+            idle = Arrays.copyOf(idle, idle.length * 2);
+        }
+
+        idle[idleCount] = theDevice;
+        theDevice.idleSlot = idleCount++;
+
+    }
+
+    /**
+     * Take a device out of the pool. Does nothing if it isn't there.
+     *
+     * @param theDevice
+     */
+    public void remove(UserDevice theDevice) {
+
+        final int slot = theDevice.idleSlot;
+
+        if (slot < 0) {
+            return;
+        }
+
+        // Move the last entry into the hole we just made...
+        final UserDevice last = idle[--idleCount];
+        idle[slot] = last;
+        last.idleSlot = slot;
+
+        idle[idleCount] = null;
+        theDevice.idleSlot = -1;
+
+    }
+
+    /**
+     * @param theDevice
+     * @return true if 'theDevice' is idle
+     */
+    public boolean contains(UserDevice theDevice) {
+        return theDevice.idleSlot >= 0 && theDevice.idleSlot < idleCount && idle[theDevice.idleSlot] == theDevice;
+    }
+
+    /**
+     * Pick a random idle device without taking it out of the pool.
+     *
+     * @param r
+     * @return an idle device, or null if every device is busy
+     */
+    public UserDevice peekRandom(Random r) {
+
+        if (idleCount == 0) {
+            return null;
+        }
+
+        return idle[r.nextInt(idleCount)];
+    }
+
+    /**
+     * Pick a random idle device that isn't 'notThisOne'.
+     *
+     * @param r
+     * @param notThisOne
+     * @return an idle device, or null if there isn't one
+     */
+    public UserDevice peekRandomExcluding(Random r, UserDevice notThisOne) {
+
+        if (notThisOne == null || !contains(notThisOne)) {
+            return peekRandom(r);
+        }
+
+        if (idleCount < 2) {
+            return null;
+        }
+
+        // Pick from every slot except the one 'notThisOne' is in...
+        int slot = r.nextInt(idleCount - 1);
+
+        if (slot >= notThisOne.idleSlot) {
+            slot++;
+        }
+
+        return idle[slot];
+    }
+
+    /**
+     * @return how many devices are idle
+     */
+    public int size() {
+        return idleCount;
+    }
+
+}
@@ -0,0 +1,163 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2022 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.simbox;
+
+import java.util.Arrays;
+
+/**
+ * Log bucketed latency histogram with 4 buckets for each power of 2
+ * microseconds, so percentiles are accurate to within 25%.
+ * <p>
+ * Not thread safe; callers that share one need to synchronize on it.
+ *
+ */
+public class LatencyHistogram {
+
+    /**
+     * Buckets per power of 2
+     */
+    private static final int SUB_BUCKETS = 4;
+
+    /**
+     * Enough buckets for well over a day
+     */
+    private static final int BUCKETS = SUB_BUCKETS * 40;
+
+    /**
+     * Counts by bucket
+     */
+    private final long[] counts = new long[BUCKETS];
+
+    /**
+     * How many latencies we've seen
+     */
+    private long sampleCount = 0;
+
+    /**
+     * Biggest latency we've seen
+     */
+    private long maxNanos = 0;
+
+    /**
+     * @param latencyNanos
+     */
+    public void record(long latencyNanos) {
+        counts[getBucket(latencyNanos)]++;
+        sampleCount++;
+        maxNanos = Math.max(maxNanos, latencyNanos);
+    }
+
+    /**
+     * @param percentile e.g. 0.99
+     * @return upper bound of the bucket holding 'percentile', in ns
+     */
+    public long getPercentileNanos(double percentile) {
+
+        if (sampleCount == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(sampleCount * percentile));
+        long seen = 0;
+
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return Math.min(maxNanos, getBucketLimitNanos(bucket));
+            }
+        }
+
+        return maxNanos;
+    }
+
+    /**
+     * @return how many latencies we've seen
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return biggest latency we've seen, in ns
+     */
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * Start again
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        sampleCount = 0;
+        maxNanos = 0;
+    }
+
+    /**
+     * @param latencyNanos
+     * @return bucket for 'latencyNanos'
+     */
+    private static int getBucket(long latencyNanos) {
+
+        final long micros = Math.max(1, latencyNanos / 1000);
+        final int highBit = 63 - Long.numberOfLeadingZeros(micros);
+        final int subBucket = highBit < 2 ? 0 : (int) ((micros >>> (highBit - 2)) & (SUB_BUCKETS - 1));
+
+        return Math.min(BUCKETS - 1, (highBit * SUB_BUCKETS) + subBucket);
+    }
+
+    /**
+     * @param bucket
+     * @return upper bound of 'bucket' in ns
+     */
+    private static long getBucketLimitNanos(int bucket) {
+
+        final int highBit = bucket / SUB_BUCKETS;
+        final long subBucket = bucket % SUB_BUCKETS;
+
+        if (highBit < 2) {
+            return (2L << highBit) * 1000;
+        }
+
+        return ((SUB_BUCKETS + subBucket + 1) << (highBit - 2)) * 1000;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("LatencyHistogram [samples=");
+        builder.append(sampleCount);
+        builder.append(", p50Us=");
+        builder.append(getPercentileNanos(0.5) / 1000);
+        builder.append(", p99Us=");
+        builder.append(getPercentileNanos(0.99) / 1000);
+        builder.append(", p999Us=");
+        builder.append(getPercentileNanos(0.999) / 1000);
+        builder.append(", maxUs=");
+        builder.append(maxNanos / 1000);
+        builder.append("]");
+        return builder.toString();
+    }
+
+}
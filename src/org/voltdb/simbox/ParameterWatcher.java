@@ -0,0 +1,201 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2022 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.simbox;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.voltdb.VoltTable;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ProcedureCallback;
+
+/**
+ * Keeps a local copy of 'simbox_parameters'.
+ * <p>
+ * Meant to be run periodically on a scheduler thread. Each run loads every
+ * parameter with one asynchronous 'GetParameters' call and swaps in a new
+ * immutable map, so readers never lock and never talk to VoltDB. Listeners
+ * are told when a parameter they care about changes.
+ *
+ */
+public class ParameterWatcher implements Runnable {
+
+    /**
+     * Something that wants to know when a parameter changes.
+     */
+    public interface Listener {
+
+        /**
+         * @param parameterName
+         * @param newValue
+         */
+        void parameterChanged(String parameterName, long newValue);
+    }
+
+    /**
+     * A listener and what it's listening for
+     */
+    private static class Registration {
+
+        final String parameterName;
+        final long defaultValue;
+        final Listener listener;
+
+        Registration(String parameterName, long defaultValue, Listener listener) {
+            this.parameterName = parameterName;
+            this.defaultValue = defaultValue;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Our handle to VoltDB
+     */
+    private final Client voltClient;
+
+    /**
+     * Latest parameters. Never modified, only replaced.
+     */
+    private final AtomicReference<Map<String, Long>> snapshot = new AtomicReference<Map<String, Long>>(
+            Collections.<String, Long>emptyMap());
+
+    /**
+     * Who to tell about changes
+     */
+    private final CopyOnWriteArrayList<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+
+    /**
+     * Callback for 'GetParameters'
+     */
+    private final ProcedureCallback loadCallback = new ProcedureCallback() {
+        @Override
+        public void clientCallback(ClientResponse arg0) throws Exception {
+            if (arg0.getStatus() == ClientResponse.SUCCESS) {
+                load(arg0.getResults()[0]);
+            } else {
+                SimboxDataGenerator.msg("GetParameters failed: " + arg0.getStatusString());
+            }
+        }
+    };
+
+    /**
+     * @param voltClient
+     */
+    public ParameterWatcher(Client voltClient) {
+        super();
+        this.voltClient = voltClient;
+    }
+
+    /**
+     * @param parameterName
+     * @param defaultValue
+     * @return parameter value or 'defaultValue' if not set
+     */
+    public long getParameter(String parameterName, long defaultValue) {
+
+        Long value = snapshot.get().get(parameterName);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        return value.longValue();
+    }
+
+    /**
+     * Ask to be told when a parameter changes. 'theListener' is called straight
+     * away with the current value.
+     * 
+     * @param parameterName
+     * @param defaultValue  value to use when the parameter isn't set
+     * @param theListener
+     */
+    public void addListener(String parameterName, long defaultValue, Listener theListener) {
+
+        registrations.add(new Registration(parameterName, defaultValue, theListener));
+        theListener.parameterChanged(parameterName, getParameter(parameterName, defaultValue));
+    }
+
+    @Override
+    public void run() {
+
+        try {
+            voltClient.callProcedure(loadCallback, "GetParameters");
+        } catch (IOException e) {
+            SimboxDataGenerator.msg(e);
+        }
+    }
+
+    /**
+     * Load parameters synchronously. Used at startup so we don't begin with
+     * an empty snapshot.
+     * 
+     * @throws Exception
+     */
+    public void loadNow() throws Exception {
+
+        ClientResponse cr = voltClient.callProcedure("GetParameters");
+
+        if (cr.getStatus() == ClientResponse.SUCCESS) {
+            load(cr.getResults()[0]);
+        }
+    }
+
+    /**
+     * Swap in a new snapshot and tell listeners what changed.
+     * 
+     * @param parameterTable
+     */
+    private void load(VoltTable parameterTable) {
+
+        HashMap<String, Long> newParameters = new HashMap<String, Long>();
+
+        while (parameterTable.advanceRow()) {
+            newParameters.put(parameterTable.getString("parameter_name"),
+                    parameterTable.getLong("parameter_value"));
+        }
+
+        final Map<String, Long> oldParameters = snapshot.getAndSet(Collections.unmodifiableMap(newParameters));
+
+        for (Registration reg : registrations) {
+
+            final Long oldValue = oldParameters.get(reg.parameterName);
+            final Long newValue = newParameters.get(reg.parameterName);
+
+            final long oldOrDefault = oldValue == null ? reg.defaultValue : oldValue.longValue();
+            final long newOrDefault = newValue == null ? reg.defaultValue : newValue.longValue();
+
+            if (oldOrDefault != newOrDefault) {
+                reg.listener.parameterChanged(reg.parameterName, newOrDefault);
+            }
+        }
+
+    }
+
+}
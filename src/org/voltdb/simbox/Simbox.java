@@ -27,7 +27,6 @@ package org.voltdb.simbox;
 
 import java.io.IOException;
 
-import org.voltdb.client.Client;
 import org.voltdb.client.NoConnectionsException;
 
 import java.util.Date;
@@ -48,11 +47,51 @@ public class Simbox {
      */
     public final static int SIMBOX_SIZE = 128;
 
+    /**
+     * Default number of minutes we stay in a cell
+     */
+    public final static int DEFAULT_MOVE_MINUTES = 2;
+
+    /**
+     * Default percent of time we fake a call
+     */
+    public final static int DEFAULT_FAKE_CALL_PCT = 15;
+
+    /**
+     * Which simbox in the fleet we are
+     */
+    private final int simboxId;
+
+    /**
+     * Where we are in our fleet's list of boxes, or -1 if we aren't in one
+     */
+    private int fleetIndex = -1;
+
+    /**
+     * How many sims fit into this box
+     */
+    private final int capacity;
+
+    /**
+     * How many minutes we stay in a cell before moving on
+     */
+    private final int moveMinutes;
+
     /**
      * HashMap containing sims
      */
     private HashMap<Long, UserDevice> sims = new HashMap<Long, UserDevice>();
 
+    /**
+     * Sims that aren't in a call right now
+     */
+    private IdleDevicePool idleSims = new IdleDevicePool(SIMBOX_SIZE);
+
+    /**
+     * Hands our sims back to 'idleSims' when their calls end
+     */
+    private CallCompletionWheel wheel;
+
     /**
      * Network cell we are currently in
      */
@@ -77,27 +116,28 @@ public class Simbox {
     /**
      * Percent of time we will fake a call between our sims instead of earning revenue
      */
-    private final int fakeCallPct = 15;
+    private final int fakeCallPct;
 
     /**
      * Allow calls made to other sims in this box
      */
-    private boolean selfCalls = false;
+    private volatile boolean selfCalls = false;
 
     /**
-     * How many seconds have been spent on fraudulent calls
+     * If true 'selfCalls' was set when we were built and isn't changed by
+     * the SIMBOX_CALLS_ITSELF parameter.
      */
-    private long totalSimcallSeconds = 0;
+    private final boolean selfCallsPinned;
 
     /**
-     * Shared Random instance
+     * How many seconds have been spent on fraudulent calls
      */
-    private Random r = new Random();
+    private long totalSimcallSeconds = 0;
 
     /**
-     * Callback to make DB interaction run faster
+     * Shared Random instance
      */
-    private ComplainOnErrorCallback coec = new ComplainOnErrorCallback();
+    private final Random r;
 
     /**
      * Last time we moved cells.
@@ -109,9 +149,39 @@ public class Simbox {
      */
     private final float projectedProfitPerMinute = 0.16f;
 
-    public Simbox(int cellId) {
+    public Simbox(int cellId, CallCompletionWheel wheel) {
+        this(0, cellId, SIMBOX_SIZE, DEFAULT_MOVE_MINUTES, DEFAULT_FAKE_CALL_PCT, null, wheel, new Random());
+    }
+
+    /**
+     * Create a simbox as part of a fleet.
+     * 
+     * @param simboxId
+     * @param cellId      cell we start in
+     * @param capacity    how many sims we hold
+     * @param moveMinutes how long we stay in a cell
+     * @param fakeCallPct percent of time we fake a call when self calls are on
+     * @param selfCalls   null to follow SIMBOX_CALLS_ITSELF, otherwise fixed value
+     * @param wheel
+     * @param r           source of our random decisions
+     */
+    public Simbox(int simboxId, int cellId, int capacity, int moveMinutes, int fakeCallPct, Boolean selfCalls,
+            CallCompletionWheel wheel, Random r) {
         super();
+        this.simboxId = simboxId;
         this.cellId = cellId;
+        this.capacity = capacity;
+        this.moveMinutes = moveMinutes;
+        this.fakeCallPct = fakeCallPct;
+        this.wheel = wheel;
+        this.r = r;
+
+        if (selfCalls == null) {
+            this.selfCallsPinned = false;
+        } else {
+            this.selfCallsPinned = true;
+            this.selfCalls = selfCalls.booleanValue();
+        }
 
     }
 
@@ -122,10 +192,25 @@ public class Simbox {
     public void addSim(UserDevice theDevice) {
 
         theDevice.setCellId(cellId);
+        theDevice.trackIdleState(idleSims, wheel);
         sims.put(theDevice.getDeviceId(), theDevice);
 
     }
 
+    /**
+     * @return true if there's room for another sim
+     */
+    public boolean isFull() {
+        return sims.size() >= capacity;
+    }
+
+    /**
+     * @return when we're next due to move, in ms
+     */
+    public long getNextMoveTimeMs() {
+        return lastCellMove.getTime() + (60 * 1000 * moveMinutes);
+    }
+
     /**
      * 
      * @param mins
@@ -143,39 +228,48 @@ public class Simbox {
     /**
      * Move all sims in this simbox to a new cell. This simulates the simbox being physically moved.
      * @param newCell
-     * @param c
+     * @param sink
      * @throws NoConnectionsException
      * @throws IOException
      */
-    public void moveCell(int newCell, Client c) throws NoConnectionsException, IOException {
+    public void moveCell(int newCell, DeviceEventSink sink) throws NoConnectionsException, IOException {
 
-        SimboxDataGenerator.msg("Moving " + sims.size() + " sims from cell " + cellId + " to " + newCell);
+        SimboxDataGenerator
+                .msg("Simbox " + simboxId + ": moving " + sims.size() + " sims from cell " + cellId + " to " + newCell);
 
         cellId = newCell;
 
-        ComplainOnErrorCallback coec = new ComplainOnErrorCallback();
-
         Iterator<Map.Entry<Long, UserDevice>> iterator = sims.entrySet().iterator();
 
         while (iterator.hasNext()) {
             Map.Entry<Long, UserDevice> entry = iterator.next();
-            c.callProcedure(coec, "ReportCellChange", entry.getValue().changeCellid(newCell));
+            sink.changeCell(entry.getValue(), newCell);
         }
 
         lastCellMove = new Date();
 
     }
 
+    /**
+     * Put the box back in the cell it was in when a snapshot was taken. Must
+     * be called before any sims are added.
+     * 
+     * @param cellId
+     */
+    void restoreCellId(int cellId) {
+        this.cellId = cellId;
+    }
+
     /**
      * Make a call from a captive sim to a local number, while in fact connecting an 
      * incoming international connection.
      * @param calledNumber
-     * @param client
+     * @param sink
      * @return 'true' if we made a call
      * @throws NoConnectionsException
      * @throws IOException
      */
-    public boolean routeInternationalCall(UserDevice calledNumber, Client client, int durationSeconds)
+    public boolean routeInternationalCall(UserDevice calledNumber, DeviceEventSink sink, int durationSeconds)
             throws NoConnectionsException, IOException {
 
         if (selfCalls) {
@@ -183,7 +277,7 @@ public class Simbox {
             int fakeCallProbability = r.nextInt(100);
 
             if (fakeCallProbability <= fakeCallPct) {
-                return makeFakeCall(client);
+                return makeFakeCall(sink);
             }
         }
 
@@ -197,7 +291,7 @@ public class Simbox {
         evilCallCount++;
         totalSimcallSeconds += durationSeconds;
 
-        ud.makeCall(r, calledNumber, durationSeconds, client);
+        ud.makeCall(r, calledNumber, durationSeconds, sink);
 
         return true;
 
@@ -205,18 +299,18 @@ public class Simbox {
 
     /**
      * Setup a fake call between two of our sims, so the sims don't look quite so suspicious.
-     * @param client
+     * @param sink
      * @return true if we able to make a call
      * @throws NoConnectionsException
      * @throws IOException
      */
-    private boolean makeFakeCall(Client client) throws NoConnectionsException, IOException {
+    private boolean makeFakeCall(DeviceEventSink sink) throws NoConnectionsException, IOException {
 
         
         UserDevice ud = getUnusedDevice();
-        UserDevice fakeCaller = getUnusedDevice();
+        UserDevice fakeCaller = idleSims.peekRandomExcluding(r, ud);
 
-        if (ud == null || fakeCaller == null || ud.getDeviceId() == fakeCaller.getDeviceId()) {
+        if (ud == null || fakeCaller == null) {
             busyCount++;
             return false;
         }
@@ -224,7 +318,7 @@ public class Simbox {
         fakeCallCount++;
 
         // make a 10 second fake call
-        fakeCaller.makeCall(r, ud, 10, client);
+        fakeCaller.makeCall(r, ud, 10, sink);
 
         return true;
 
@@ -233,23 +327,11 @@ public class Simbox {
     /**
      * Find a sim that isn't in use.
      * 
-     * @return Sim that isn't in use or null, if none can be found quickly
+     * @return Sim that isn't in use or null, if they are all busy
      */
     private UserDevice getUnusedDevice() {
 
-        Object[] values = sims.values().toArray();
-
-        // we use 'values.length * 2' as we need to search randomly but can't
-        // spend forever doing so...
-        for (int i = 0; i < (values.length * 2); i++) {
-            UserDevice randomDevice = (UserDevice) values[r.nextInt(values.length)];
-
-            if (!randomDevice.isBusy()) {
-                return randomDevice;
-            }
-        }
-
-        return null;
+        return idleSims.peekRandom(r);
     }
 
     /**
@@ -291,10 +373,47 @@ public class Simbox {
     }
 
     /**
-     * @param selfCalls the selfCalls to set
+     * @param selfCalls the selfCalls to set. Ignored if selfCalls was fixed when we were built.
      */
     public void setSelfCalls(boolean selfCalls) {
-        this.selfCalls = selfCalls;
+        if (!selfCallsPinned) {
+            this.selfCalls = selfCalls;
+        }
+    }
+
+    /**
+     * @return the simboxId
+     */
+    public int getSimboxId() {
+        return simboxId;
+    }
+
+    /**
+     * @return where we are in our fleet's list of boxes, or -1
+     */
+    public int getFleetIndex() {
+        return fleetIndex;
+    }
+
+    /**
+     * @param fleetIndex where we are in our fleet's list of boxes
+     */
+    void setFleetIndex(int fleetIndex) {
+        this.fleetIndex = fleetIndex;
+    }
+
+    /**
+     * @return how many sims fit into this box
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return how many minutes we stay in a cell
+     */
+    public int getMoveMinutes() {
+        return moveMinutes;
     }
 
     public float getProjectedProfit() {
@@ -320,10 +439,16 @@ public class Simbox {
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
-        builder.append("Simbox [cellId=");
+        builder.append("Simbox [simboxId=");
+        builder.append(simboxId);
+        builder.append(", cellId=");
         builder.append(cellId);
         builder.append(", size=");
         builder.append(sims.size());
+        builder.append(", capacity=");
+        builder.append(capacity);
+        builder.append(", moveMinutes=");
+        builder.append(moveMinutes);
         builder.append(", evilCallCount=");
         builder.append(evilCallCount);
         builder.append(", fakeCallCount=");
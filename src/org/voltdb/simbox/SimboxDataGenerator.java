@@ -32,6 +32,10 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.voltdb.VoltTable;
 import org.voltdb.client.Client;
@@ -41,6 +45,7 @@ import org.voltdb.client.ClientResponse;
 import org.voltdb.client.ClientResponseWithPartitionKey;
 import org.voltdb.client.NoConnectionsException;
 import org.voltdb.client.ProcCallException;
+import org.voltdb.client.ProcedureCallback;
 
 /**
  * 
@@ -49,14 +54,55 @@ import org.voltdb.client.ProcCallException;
 public class SimboxDataGenerator {
 
     /**
-     * How many times we check a random device in our hashmap to see if it is busy.
-     * If the map is 95% busy 30 attempts will have a 79% chance of finding a
-     * non-busy device.
-     * 
-     * Making this number bigger will slow the generator down as the system gets
-     * busy.
+     * Granularity of the wheel that tells us when calls have ended, in ms.
+     */
+    private static final int CALL_WHEEL_TICK_MS = 10;
+
+    /**
+     * How often we write stats to VoltDB.
+     */
+    private static final int STATS_PUBLISH_INTERVAL_SECONDS = 5;
+
+    /**
+     * Default for how often we reload 'simbox_parameters'.
+     */
+    private static final int DEFAULT_PARAM_REFRESH_SECONDS = 10;
+
+    /**
+     * Default p99 latency the call limiter aims for
+     */
+    private static final int DEFAULT_TARGET_P99_MS = 20;
+
+    /**
+     * Default time an event will wait for a permit before being dropped
      */
-    private static final int RANDOM_SEARCH_ATTEMPTS = 30;
+    private static final int DEFAULT_MAX_WAIT_MS = 50;
+
+    /**
+     * Default directory generator instances share when there's more than one
+     */
+    private static final String DEFAULT_COORDINATION_DIR = "simbox_coordination";
+
+    /**
+     * How often the control plane reports stats and looks for cohorts.
+     */
+    private static final int CONTROL_PLANE_INTERVAL_SECONDS = 60;
+
+    /**
+     * Threads running control plane jobs, so a slow one doesn't hold up stats
+     * publishing.
+     */
+    private static final int CONTROL_PLANE_THREADS = 2;
+
+    /**
+     * How often we rebuild the suspicious number filter from scratch.
+     */
+    private static final int FILTER_REBUILD_INTERVAL_SECONDS = 60;
+
+    /**
+     * How many times each device moves cell before the run starts
+     */
+    private static final int WARM_UP_MOVES = 6;
 
     /**
      * One day in milliseconds
@@ -78,19 +124,76 @@ public class SimboxDataGenerator {
      */
     Client voltClient = null;
 
+    /**
+     * Separate handle to VoltDB for stats, parameters and detection, so they
+     * don't queue behind the event stream
+     */
+    Client controlClient = null;
+
+    /**
+     * Counters shared between the event loop and the control plane
+     */
+    DataPlaneStats dataPlaneStats = new DataPlaneStats();
+
+    /**
+     * A device that isn't in a simbox, for printing
+     */
+    long knownGoodDeviceId = -1;
+
+    /**
+     * A device that is in a simbox, for printing
+     */
+    long knownBadDeviceId = -1;
+
+    /**
+     * Every sim in 'simboxFleet'
+     */
+    long[] simBoxIds = new long[0];
+
+    /**
+     * Writes our stats to VoltDB in the background
+     */
+    StatsPublisher statsPublisher;
+
+    /**
+     * Local copy of 'simbox_parameters', refreshed in the background
+     */
+    ParameterWatcher parameterWatcher;
+
+    /**
+     * How often 'parameterWatcher' reloads
+     */
+    int paramRefreshSeconds;
+
+    /**
+     * Runs background jobs so the main loop doesn't have to
+     */
+    ScheduledExecutorService scheduler;
+
     /**
      * Comma delimited list of hosts *without* port numbers.
      */
     String hostnames;
 
     /**
-     * How many sessions / users to create. You can create more than 1 session per
-     * user by running multiple instances and using the 'offset' parameter
+     * How many sessions / users this instance creates. When several instances
+     * share a run each gets a slice of the total. See
+     * {@link GeneratorCoordinator}.
      */
     int userCount;
 
     /**
-     * Target transactions per millisecond
+     * Id of our first device
+     */
+    long firstDeviceId = 0;
+
+    /**
+     * Shares out work between generator instances. Null if we're on our own.
+     */
+    GeneratorCoordinator coordinator = null;
+
+    /**
+     * Target transactions per millisecond for this instance
      */
     int tpMs;
 
@@ -110,14 +213,76 @@ public class SimboxDataGenerator {
     HashMap<Long, UserDevice> sessionMap;
 
     /**
-     * A representation of a simbox
+     * Legal devices that aren't in a call right now
+     */
+    IdleDevicePool idleDevices;
+
+    /**
+     * Returns devices to their idle pools when their calls end
      */
-    Simbox evilSimBox;
+    CallCompletionWheel callWheel;
+
+    /**
+     * The simboxes we're trying to catch
+     */
+    SimboxFleet simboxFleet;
+
+    /**
+     * If true devices are created in bulk at startup. See
+     * {@link DeviceBootstrapper}.
+     */
+    boolean bootstrap;
+
+    /**
+     * Where we save our device state, or null
+     */
+    String snapshotFile;
+
+    /**
+     * If true we start from 'snapshotFile' instead of creating devices
+     */
+    boolean resume;
+
+    /**
+     * Writes our device state to 'snapshotFile'. Null if we don't have one.
+     */
+    GeneratorSnapshot snapshot = null;
+
+    /**
+     * Writes the last capture of 'snapshot' on a control plane thread
+     */
+    final Runnable snapshotWriter = new Runnable() {
+        @Override
+        public void run() {
+            writeSnapshot();
+        }
+    };
 
     /**
      * Shared Random instance.
      */
-    Random r = new Random();
+    Random r;
+
+    /**
+     * Everything we tell VoltDB about devices goes through here
+     */
+    DeviceEventSink eventSink;
+
+    /**
+     * Sits in front of every data plane call to VoltDB. Null if we're using
+     * 'client2Transport'.
+     */
+    AdaptiveCallLimiter callLimiter = null;
+
+    /**
+     * Carries data plane calls if we were asked to use Client2. May be null.
+     */
+    Client2Transport client2Transport = null;
+
+    /**
+     * Where we record events for replay. May be null.
+     */
+    EventLogWriter eventLog = null;
 
     /**
      * UTC time we started running
@@ -135,6 +300,12 @@ public class SimboxDataGenerator {
      */
     public static final int COHORT_DETECTION_SIZE = 60;
 
+    /**
+     * How many of the most anomalous cells we print, once every partition's
+     * totals have been added up and ranked
+     */
+    public static final int ANOMALOUS_CELL_COUNT = 5;
+
     /**
      * Run a simuation of a phone system where we aim to detect a simbox.
      * 
@@ -144,27 +315,117 @@ public class SimboxDataGenerator {
      * @param durationSeconds
      * @param cellCount
      * @param maxRandomCallLengthSeconds
+     * @param fleetSpec                  see {@link SimboxFleet}
+     * @param paramRefreshSeconds        how often to reload 'simbox_parameters'
+     * @param seed                       seed for our random decisions, or null
+     * @param eventLogFile               file to record events to, or null
+     * @param bootstrap                  true to create devices in bulk
+     * @param snapshotFile               file to save device state to, or null
+     * @param resume                     true to restore devices from
+     *                                   'snapshotFile' instead of creating them
+     * @param targetP99Ms                p99 latency the call limiter aims for
+     * @param maxWaitMs                  how long a phone call waits for
+     *                                   permits before it's dropped
+     * @param client2RequestLimit        if > 0 send device events using Client2
+     *                                   with this request limit, instead of the
+     *                                   limiter
+     * @param coordinator                null unless we're one of several
+     *                                   instances, in which case 'userCount'
+     *                                   and 'tpMs' are totals for all of them
      * @throws Exception
      */
     public SimboxDataGenerator(String hostnames, int userCount, int tpMs, int durationSeconds, int cellCount,
-            int maxRandomCallLengthSeconds) throws Exception {
+            int maxRandomCallLengthSeconds, String fleetSpec, int paramRefreshSeconds, Long seed,
+            String eventLogFile, boolean bootstrap, String snapshotFile, boolean resume, int targetP99Ms,
+            int maxWaitMs, int client2RequestLimit, GeneratorCoordinator coordinator) throws Exception {
 
         this.hostnames = hostnames;
         this.userCount = userCount;
         this.tpMs = tpMs;
+        this.coordinator = coordinator;
         this.durationSeconds = durationSeconds;
         this.cellCount = cellCount;
         this.maxRandomCallLengthSeconds = maxRandomCallLengthSeconds;
+        this.paramRefreshSeconds = paramRefreshSeconds;
+        this.bootstrap = bootstrap;
+        this.snapshotFile = snapshotFile;
+        this.resume = resume;
+
+        if (resume && snapshotFile == null) {
+            throw new IllegalArgumentException("--resume needs --snapshot");
+        }
+
+        int instanceId = 0;
+        int instances = 1;
+
+        if (coordinator != null) {
 
-        evilSimBox = new Simbox(0);
-        sessionMap = new HashMap<Long, UserDevice>(userCount);
+            instanceId = coordinator.getInstanceId();
+            instances = coordinator.getInstances();
+
+            if (tpMs < instances) {
+                throw new IllegalArgumentException("tpMs must be at least the number of instances");
+            }
+
+            // Take our slice of the devices and the workload...
+            this.firstDeviceId = GeneratorCoordinator.getShareStart(userCount, instanceId, instances);
+            this.userCount = (int) GeneratorCoordinator.getShare(userCount, instanceId, instances);
+            this.tpMs = (int) GeneratorCoordinator.getShare(tpMs, instanceId, instances);
+
+            // ...and our own files
+            if (snapshotFile != null) {
+                this.snapshotFile = snapshotFile + "." + instanceId;
+            }
+
+            if (eventLogFile != null) {
+                eventLogFile = eventLogFile + "." + instanceId;
+            }
+
+            if (coordinator.isLeader()) {
+                coordinator.clearPreviousRun();
+            }
+
+            SimboxDataGenerator.msg("Instance " + instanceId + " of " + instances + " owns devices "
+                    + firstDeviceId + " to " + (firstDeviceId + this.userCount - 1) + " at tpMs=" + this.tpMs);
+        }
+
+        if (seed == null) {
+            r = new Random();
+        } else {
+            r = new Random(seed.longValue() + instanceId);
+        }
+
+        callWheel = new CallCompletionWheel(CALL_WHEEL_TICK_MS, System.currentTimeMillis());
+        simboxFleet = new SimboxFleet(fleetSpec, cellCount, callWheel, r, instanceId, instances);
+        sessionMap = new HashMap<Long, UserDevice>(this.userCount);
+        idleDevices = new IdleDevicePool(this.userCount);
 
         SimboxDataGenerator.msg("hostnames=" + hostnames + ", users=" + userCount + ", tpMs=" + tpMs
-                + ",durationSeconds=" + durationSeconds + ", cellCount=" + cellCount);
+                + ",durationSeconds=" + durationSeconds + ", cellCount=" + cellCount + ", fleet=" + fleetSpec);
 
         SimboxDataGenerator.msg("Log into VoltDB");
         voltClient = connectVoltDB(hostnames);
 
+        if (eventLogFile != null) {
+            SimboxDataGenerator.msg("Recording events to " + eventLogFile);
+            eventLog = new EventLogWriter(eventLogFile, System.currentTimeMillis());
+        }
+
+        if (client2RequestLimit > 0) {
+            client2Transport = Client2Transport.connect(hostnames, client2RequestLimit);
+            eventSink = new DeviceEventSink(client2Transport, eventLog);
+        } else {
+            SimboxDataGenerator.msg("Call limiter targets p99 of " + targetP99Ms + "ms, waiting up to " + maxWaitMs
+                    + "ms for a phone call's permits");
+            callLimiter = new AdaptiveCallLimiter(voltClient, targetP99Ms, maxWaitMs);
+            eventSink = new DeviceEventSink(callLimiter, eventLog);
+        }
+
+        controlClient = connectVoltDB(hostnames);
+        statsPublisher = new StatsPublisher(controlClient);
+        parameterWatcher = new ParameterWatcher(controlClient);
+        scheduler = Executors.newScheduledThreadPool(CONTROL_PLANE_THREADS);
+
     }
 
     /**
@@ -173,107 +434,238 @@ public class SimboxDataGenerator {
     public void run() {
 
         try {
-            long laststatstime = System.currentTimeMillis();
-
             long currentMs = System.currentTimeMillis();
             int tpThisMs = 0;
 
-            int skipCount = 0;
-            int busyCount = 0;
-            int evilCount = 0;
-            int goodCallCount = 0;
-            int goodCellMoves = 0;
-            int evilCellMoves = 0;
+            final long bootstrapStartMs = System.currentTimeMillis();
 
-            long knownGoodDeviceId = -1;
-            long knownBadDeviceId = -1;
+            ComplainOnErrorCallback coec = new ComplainOnErrorCallback();
 
-            SimboxDataGenerator.msg("Creating cells");
+            if (resume) {
 
-            ComplainOnErrorCallback coec = new ComplainOnErrorCallback();
+                SimboxDataGenerator.msg("Restoring " + userCount + " devices from " + snapshotFile);
+                Date snapshotDate = GeneratorSnapshot.load(snapshotFile, firstDeviceId, userCount, cellCount,
+                        sessionMap, simboxFleet);
 
-            voltClient.callProcedure("@AdHoc", "DELETE FROM cell_suspicious_cohort_members;");
-            voltClient.callProcedure("@AdHoc", "DELETE FROM cell_suspicious_cohorts;");
+                for (long i = firstDeviceId; i < firstDeviceId + userCount; i++) {
 
-            // Create cells
-            for (int i = 0; i < cellCount; i++) {
-                voltClient.callProcedure(coec, "cell_table.UPSERT", i);
-            }
+                    UserDevice ud = sessionMap.get(i);
 
-            voltClient.drain();
+                    if (simboxFleet.isEvil(i)) {
+                        knownBadDeviceId = i;
+                    } else {
+                        ud.trackIdleState(idleDevices, callWheel);
+                        knownGoodDeviceId = i;
+                    }
+                }
 
-            // Create devices...
-            SimboxDataGenerator.msg("Creating " + userCount + " devices");
+                SimboxDataGenerator.msg("Restored devices as they were at " + snapshotDate);
+
+            } else {
+
+                DeviceBootstrapper bootstrapper = null;
+
+                if (bootstrap) {
+                    bootstrapper = new DeviceBootstrapper(voltClient, eventLog, WARM_UP_MOVES);
+                }
 
-            for (int i = 0; i < userCount; i++) {
+                if (isLeader()) {
 
-                UserDevice ud = new UserDevice(i, i % cellCount);
+                    voltClient.callProcedure("@AdHoc", "DELETE FROM cell_suspicious_cohort_members;");
+                    voltClient.callProcedure("@AdHoc", "DELETE FROM cell_suspicious_cohorts;");
 
-                int createDateInPastMs = r.nextInt(ONE_YEAR_IN_MS);
+                    if (bootstrapper != null) {
+
+                        SimboxDataGenerator.msg("Removing old devices and creating cells");
+                        bootstrapper.reset(cellCount);
+
+                    } else {
+
+                        SimboxDataGenerator.msg("Creating cells");
+
+                        // Create cells
+                        for (int i = 0; i < cellCount; i++) {
+                            voltClient.callProcedure(coec, "cell_table.UPSERT", i);
+                        }
+
+                        voltClient.drain();
+                    }
+
+                    if (coordinator != null) {
+                        coordinator.markReady();
+                    }
 
-                // Add 1 in 100 newly created sims to the simbox until it's full
-                if (evilSimBox.getSimCount() < Simbox.SIMBOX_SIZE && r.nextInt(100) == 0) {
-                    createDateInPastMs = r.nextInt(ONE_DAY_IN_MS);
-                    evilSimBox.addSim(ud);
-                    knownBadDeviceId = ud.getDeviceId();
                 } else {
-                    knownGoodDeviceId = ud.getDeviceId();
+                    coordinator.awaitReady();
                 }
 
-                Date createDate = new Date(System.currentTimeMillis() - createDateInPastMs);
-                ud.setCreateDate(createDate);
+                // Create devices...
+                SimboxDataGenerator.msg("Creating " + userCount + " devices");
 
-                voltClient.callProcedure(coec, "RegisterDevice", ud.getParamsForRegisterProcedure());
-                sessionMap.put(ud.getDeviceId(), ud);
+                // Normally 1 in 100 new sims go into a simbox, but big fleets need more
+                final int simboxOdds = (int) Math.max(1,
+                        Math.min(100, userCount / (2L * Math.max(1, simboxFleet.getCapacity()))));
 
-            }
+                for (int i = 0; i < userCount; i++) {
 
-            final long[] simBoxIds = evilSimBox.getSimList();
+                    final long deviceId = firstDeviceId + i;
+                    UserDevice ud = new UserDevice(deviceId, deviceId % cellCount);
 
-            // Move devices around a bit...
-            int moveCount = 6;
-            SimboxDataGenerator.msg("Moving " + userCount + " devices " + moveCount + " times...");
+                    int createDateInPastMs = r.nextInt(ONE_YEAR_IN_MS);
 
-            for (int j = 0; j < moveCount; j++) {
+                    // Add 1 in 'simboxOdds' newly created sims to the fleet until it's full
+                    if (!simboxFleet.isFull() && r.nextInt(simboxOdds) == 0 && simboxFleet.addSimIfRoom(ud)) {
+                        createDateInPastMs = r.nextInt(ONE_DAY_IN_MS);
+                        knownBadDeviceId = ud.getDeviceId();
+                    } else {
+                        ud.trackIdleState(idleDevices, callWheel);
+                        knownGoodDeviceId = ud.getDeviceId();
+                    }
 
-                SimboxDataGenerator.msg("Move " + (j + 1));
+                    Date createDate = new Date(System.currentTimeMillis() - createDateInPastMs);
+                    ud.setCreateDate(createDate);
 
-                for (int i = 0; i < userCount; i++) {
+                    if (bootstrapper != null) {
+
+                        // Work out where it's been and create it there in one go
+                        long[] cellPath = new long[WARM_UP_MOVES + 1];
+                        cellPath[0] = ud.getCellId();
+
+                        for (int j = 1; j < cellPath.length; j++) {
+                            cellPath[j] = r.nextInt(cellCount);
+                        }
 
-                    UserDevice ourSession = sessionMap.get((long) i);
-                    voltClient.callProcedure(coec, "ReportCellChange", ourSession.changeCellid(r.nextInt(cellCount)));
-                    goodCellMoves++;
+                        ud.setCellId(cellPath[WARM_UP_MOVES]);
+                        bootstrapper.addDevice(ud, createDate, cellPath);
+                        dataPlaneStats.noteGoodCellMoves(WARM_UP_MOVES);
+
+                    } else {
+                        eventSink.registerDevice(ud);
+                    }
+
+                    sessionMap.put(ud.getDeviceId(), ud);
+
+                }
+
+                if (bootstrapper != null) {
+
+                    bootstrapper.finish();
+
+                } else {
+
+                    // Move devices around a bit...
+                    SimboxDataGenerator.msg("Moving " + userCount + " devices " + WARM_UP_MOVES + " times...");
+
+                    for (int j = 0; j < WARM_UP_MOVES; j++) {
+
+                        SimboxDataGenerator.msg("Move " + (j + 1));
+
+                        for (int i = 0; i < userCount; i++) {
+
+                            UserDevice ourSession = sessionMap.get(firstDeviceId + i);
+                            eventSink.changeCell(ourSession, r.nextInt(cellCount));
+                            dataPlaneStats.noteGoodCellMoves(1);
+                        }
+
+                    }
+
+                    voltClient.drain();
+                    eventSink.drain();
                 }
 
             }
 
-            voltClient.drain();
+            simBoxIds = simboxFleet.getSimList();
+
+            final long bootstrapMs = System.currentTimeMillis() - bootstrapStartMs;
 
             SimboxDataGenerator
-                    .msg("Created " + userCount + " devices, " + evilSimBox.getSimCount() + " are in a sim box");
+                    .msg("Created " + userCount + " devices, " + simboxFleet.getSimCount() + " are in "
+                            + simboxFleet.getBoxes().size() + " sim boxes. Took " + bootstrapMs + "ms"
+                            + (resume ? " by resuming" : bootstrap ? " using bootstrap mode" : ""));
+            reportStat("bootstrap_ms", bootstrapMs);
+
+            if (snapshotFile != null) {
+                snapshot = new GeneratorSnapshot(snapshotFile, firstDeviceId, userCount, cellCount, simboxFleet);
+
+                if (!resume) {
+                    saveSnapshot();
+                }
+            }
+
+            if (isLeader()) {
+                scheduler.scheduleAtFixedRate(statsPublisher, STATS_PUBLISH_INTERVAL_SECONDS,
+                        STATS_PUBLISH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+            }
+
+            parameterWatcher.loadNow();
+            parameterWatcher.addListener("SIMBOX_CALLS_ITSELF", 0, new ParameterWatcher.Listener() {
+                @Override
+                public void parameterChanged(String parameterName, long newValue) {
+                    SimboxDataGenerator.msg(parameterName + " is now " + newValue);
+                    simboxFleet.setSelfCalls(newValue == 1);
+                }
+            });
+            scheduler.scheduleAtFixedRate(parameterWatcher, paramRefreshSeconds, paramRefreshSeconds,
+                    TimeUnit.SECONDS);
+
+            // Numbers in cohorts are added to the filter as they're found, but
+            // flagged devices only get in when we rebuild it
+            if (isLeader()) {
+                scheduler.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            controlClient.callProcedure(coec, "RebuildSuspiciousNumberFilter");
+                        } catch (IOException e) {
+                            SimboxDataGenerator.msg(e);
+                        }
+                    }
+                }, 0, FILTER_REBUILD_INTERVAL_SECONDS, TimeUnit.SECONDS);
+            }
 
             SimboxDataGenerator.msg("Run started");
             startMs = System.currentTimeMillis();
-            laststatstime = System.currentTimeMillis();
+
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        reportControlPlaneStats();
+                    } catch (Exception e) {
+                        SimboxDataGenerator.msg(e);
+                    }
+                }
+            }, CONTROL_PLANE_INTERVAL_SECONDS, CONTROL_PLANE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+            long lastSnapshotMs = System.currentTimeMillis();
 
             while (System.currentTimeMillis() < (startMs + (1000 * durationSeconds))) {
 
+                final long iterationStartNanos = System.nanoTime();
+                long sleptNanos = 0;
+
+                // Return devices whose calls have ended to their pools
+                callWheel.advance(System.currentTimeMillis());
+
                 // See if the simbox has capacity to make a call...
                 UserDevice callingNumber = getNonbusyLegalNumber(null);
                 UserDevice calledNumber = getNonbusyLegalNumber(callingNumber);
 
                 if (callingNumber == null || calledNumber == null) {
                     // Can't find a free number
-                    busyCount++;
+                    dataPlaneStats.noteBusy();
                 } else {
 
                     int callLength = r.nextInt(maxRandomCallLengthSeconds);
 
                     // Try making a simbox call
-                    boolean simboxCallMade = evilSimBox.routeInternationalCall(calledNumber, voltClient, callLength);
+                    Simbox pickedBox = simboxFleet.pickBox(r);
+                    boolean simboxCallMade = pickedBox != null
+                            && pickedBox.routeInternationalCall(calledNumber, eventSink, callLength);
 
                     if (simboxCallMade) {
-                        evilCount++;
+                        dataPlaneStats.noteEvilCall();
                     } else {
 
                         // Do 'normal' activity.
@@ -288,156 +680,320 @@ public class SimboxDataGenerator {
                             // Move to an adjacent cell...
                             getNextCellId(cellId);
 
-                            voltClient.callProcedure(coec, "ReportCellChange",
-                                    callingNumber.changeCellid(r.nextInt(cellCount)));
-                            goodCellMoves++;
+                            eventSink.changeCell(callingNumber, r.nextInt(cellCount));
+                            dataPlaneStats.noteGoodCellMoves(1);
                             tpThisMs++;
 
                         } else {
 
                             // make a normal call
 
-                            callingNumber.makeCall(r, calledNumber, callLength, voltClient);
+                            callingNumber.makeCall(r, calledNumber, callLength, eventSink);
 
                             tpThisMs += 2;
-                            goodCallCount++;
+                            dataPlaneStats.noteGoodCall();
 
                         }
                     }
+                }
 
-                    // Our evil simbox is in the back of a truck and moves around...
-                    if (evilSimBox.haventMovedInXMinutes(2)) {
-
-                        int nextEvilCellId = (evilSimBox.getCellId() + 1) % cellCount;
+                // Our evil simboxes are in the backs of trucks and move around...
+                int simsMoved = simboxFleet.moveBoxesThatAreDue(System.currentTimeMillis(), eventSink);
+                tpThisMs += simsMoved;
+                dataPlaneStats.noteEvilCellMoves(simsMoved);
 
-                        evilSimBox.moveCell(nextEvilCellId, voltClient);
-                        tpThisMs += evilSimBox.getSimCount();
-                        evilCellMoves += evilSimBox.getSimCount();
+                dataPlaneStats.publishFleetIfDue(System.currentTimeMillis(), simboxFleet, callWheel);
 
+                // Device state can only be read safely from this thread, so we
+                // copy it here and write it on a control plane thread...
+                if (snapshot != null
+                        && lastSnapshotMs + (1000 * CONTROL_PLANE_INTERVAL_SECONDS) < System.currentTimeMillis()) {
+                    if (snapshot.capture(sessionMap)) {
+                        scheduler.execute(snapshotWriter);
                     }
+                    lastSnapshotMs = System.currentTimeMillis();
+                }
 
-                    // control number of calls per millisecond
-                    if (tpThisMs > tpMs) {
+                // control number of calls per millisecond
+                if (tpThisMs > tpMs) {
 
-                        // but sleep if we're moving too fast...
-                        while (currentMs == System.currentTimeMillis()) {
-                            try {
-                                Thread.sleep(0, 50000);
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
-                        }
+                    final long sleepStartNanos = System.nanoTime();
 
-                        currentMs = System.currentTimeMillis();
-                        tpThisMs = 0;
+                    // but sleep if we're moving too fast...
+                    while (currentMs == System.currentTimeMillis()) {
+                        try {
+                            Thread.sleep(0, 50000);
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                        }
                     }
 
-                    // Every 60 seconds dump stats to console and
-                    // check for suspicious cohorts
-                    if (laststatstime + 60000 < System.currentTimeMillis()) {
+                    sleptNanos = System.nanoTime() - sleepStartNanos;
+                    currentMs = System.currentTimeMillis();
+                    tpThisMs = 0;
+                }
 
-                        zeroStats(voltClient);
+                dataPlaneStats.noteIteration(System.nanoTime() - iterationStartNanos - sleptNanos);
 
-                        if (getParam("ENABLE_SUSPICOUS_COHORT_DETECTION", 0, voltClient) == 1) {
+            }
 
-                            String[] cohort = getSuspiciousCohort();
-                            Object[] cohortWrapper = { cohort };
-                            if (cohort.length > 0) {
-                                voltClient.callProcedure("NoteSuspiciousCohort", cohortWrapper);
-                            }
-                        }
+            SimboxDataGenerator.msg("Run finished; ending sessions");
 
-                        if (getParam("SIMBOX_CALLS_ITSELF", 0, voltClient) == 1) {
-                            evilSimBox.setSelfCalls(true);
-                        } else {
-                            evilSimBox.setSelfCalls(false);
-                        }
+            saveSnapshot();
+
+            try {
+                voltClient.drain();
+                eventSink.drain();
+                scheduler.shutdown();
+                scheduler.awaitTermination(STATS_PUBLISH_INTERVAL_SECONDS, TimeUnit.SECONDS);
 
-                        printDeviceStats("Good Device", knownGoodDeviceId, voltClient);
-                        printDeviceStats("Bad Device", knownBadDeviceId, voltClient);
-
-                        SimboxDataGenerator.msg("Active Sessions: " + sessionMap.size());
-                        SimboxDataGenerator.msg("skipCount = " + skipCount);
-                        SimboxDataGenerator.msg("busyCount = " + busyCount);
-                        SimboxDataGenerator.msg("evilCount = " + evilCount);
-                        SimboxDataGenerator.msg("goodCallCount = " + goodCallCount);
-                        SimboxDataGenerator.msg("goodCellMoves = " + goodCellMoves);
-                        SimboxDataGenerator.msg("evilCellMoves = " + evilCellMoves);
-                        SimboxDataGenerator.msg(evilSimBox.toString());
-
-                        reportStat("sessions", sessionMap.size(), voltClient);
-                        reportStat("goodCallCount", goodCallCount, voltClient);
-                        reportStat("fakeCallCount", evilSimBox.getFakeCallCount(), voltClient);
-                        reportStat("evilCount", evilSimBox.getEvilCallCount(), voltClient);
-                        reportStat("busyCount", busyCount, voltClient);
-                        reportStat("goodCellMoves", goodCellMoves, voltClient);
-                        reportStat("evilCellMoves", evilCellMoves, voltClient);
-                        reportStat("evilRevenueCents", (long) (evilSimBox.getProjectedProfit() * 100), voltClient);
-
-                        // See whether suspicious activity has been detected
-                        ClientResponse cr = voltClient.callProcedure("getSuspectedDeviceSummary");
-                        if (cr.getStatus() == ClientResponse.SUCCESS) {
-                            VoltTable resultsTable = cr.getResults()[0];
-
-                            while (resultsTable.advanceRow()) {
-                                String suspiciousBecause = resultsTable.getString("suspicious_because");
-                                long suspiciousCount = resultsTable.getLong("how_many");
-
-                                reportStat("suspicious_because_" + suspiciousBecause, suspiciousCount, voltClient);
-
-                            }
+                if (coordinator != null) {
+                    coordinator.publish(true);
+
+                    if (coordinator.isLeader()) {
+                        SimboxDataGenerator.msg("Waiting for other instances to finish");
+                        if (!coordinator.awaitFinished(2000L * CONTROL_PLANE_INTERVAL_SECONDS)) {
+                            SimboxDataGenerator.msg("Not every instance finished; publishing what we have");
                         }
+                        publishCoordinatedStats();
+                    }
+                }
 
-                        // See if our sims have been noticed
-                        cr = voltClient.callProcedure("getSimboxDeviceStatus", simBoxIds);
-                        if (cr.getStatus() == ClientResponse.SUCCESS) {
-                            VoltTable resultsTable = cr.getResults()[0];
+                statsPublisher.publish();
+                controlClient.drain();
+                controlClient.close();
 
-                            while (resultsTable.advanceRow()) {
-                                String suspiciousBecause = resultsTable.getString("suspicious_because");
-                                if (suspiciousBecause == null) {
-                                    suspiciousBecause = "not_suspected";
-                                }
+                if (client2Transport != null) {
+                    client2Transport.close();
+                }
 
-                                long suspiciousCount = resultsTable.getLong("how_many");
+                if (eventLog != null) {
+                    SimboxDataGenerator.msg("Recorded " + eventLog.getRecordCount() + " events");
+                    eventLog.close();
+                }
+            } catch (Exception e) {
+                SimboxDataGenerator.msg(e);
+            }
 
-                                reportStat("simboxstatus_" + suspiciousBecause, suspiciousCount, voltClient);
+            SimboxDataGenerator.msg("done...");
 
-                            }
-                        }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
 
-                        laststatstime = System.currentTimeMillis();
-                        skipCount = 0;
-                        busyCount = 0;
-                        evilCount = 0;
-                        goodCallCount = 0;
-                        goodCellMoves = 0;
-                        evilCellMoves = 0;
+    }
 
-                        printApplicationStats(voltClient);
+    /**
+     * Dump stats to the console and VoltDB and check for suspicious cohorts.
+     * Runs on 'scheduler' and only talks to the event loop through
+     * 'dataPlaneStats'.
+     * 
+     * @throws Exception
+     */
+    private void reportControlPlaneStats() throws Exception {
 
-                    }
+        if (isLeader()) {
+            statsPublisher.startInterval();
+        }
+
+        if (isLeader() && parameterWatcher.getParameter("ENABLE_SUSPICOUS_COHORT_DETECTION", 0) == 1) {
+
+            String[] cohort = getSuspiciousCohort();
+            Object[] cohortWrapper = { cohort };
+            if (cohort.length > 0) {
+                controlClient.callProcedure("NoteSuspiciousCohort", cohortWrapper);
+            }
+        }
+
+        printDeviceStats("Good Device", knownGoodDeviceId, controlClient);
+        printDeviceStats("Bad Device", knownBadDeviceId, controlClient);
+
+        final long busyCount = dataPlaneStats.takeBusyCount();
+        final long evilCount = dataPlaneStats.takeEvilCount();
+        final long goodCallCount = dataPlaneStats.takeGoodCallCount();
+        final long goodCellMoves = dataPlaneStats.takeGoodCellMoves();
+        final long evilCellMoves = dataPlaneStats.takeEvilCellMoves();
+        final long maxPauseMicros = dataPlaneStats.takeMaxIterationNanos() / 1000;
+        final long stallCount = dataPlaneStats.takeStallCount();
+        final long droppedCalls = eventSink.takeDroppedCallCount();
+        final long failedCalls = eventSink.takeFailedCallCount();
+
+        SimboxDataGenerator.msg("Active Sessions: " + sessionMap.size());
+        SimboxDataGenerator.msg("busyCount = " + busyCount);
+        SimboxDataGenerator.msg("devicesInCall = " + dataPlaneStats.getDevicesInCall());
+        SimboxDataGenerator.msg("evilCount = " + evilCount);
+        SimboxDataGenerator.msg("goodCallCount = " + goodCallCount);
+        SimboxDataGenerator.msg("goodCellMoves = " + goodCellMoves);
+        SimboxDataGenerator.msg("evilCellMoves = " + evilCellMoves);
+        SimboxDataGenerator.msg("eventLoopMaxPauseMicros = " + maxPauseMicros + ", stalls = " + stallCount);
+        SimboxDataGenerator.msg(dataPlaneStats.getFleetDescription());
+        SimboxDataGenerator.msg("droppedCalls = " + droppedCalls + ", failedCalls = " + failedCalls);
+
+        reportStat("sessions", sessionMap.size());
+        reportStat("goodCallCount", goodCallCount);
+        reportStat("fakeCallCount", dataPlaneStats.getFleetFakeCallCount());
+        reportStat("evilCount", dataPlaneStats.getFleetEvilCallCount());
+        reportStat("busyCount", busyCount);
+        reportStat("goodCellMoves", goodCellMoves);
+        reportStat("evilCellMoves", evilCellMoves);
+        reportStat("evilRevenueCents", dataPlaneStats.getFleetProfitCents());
+        reportStat("event_loop_max_pause_us", maxPauseMicros);
+        reportStat("event_loop_stalls", stallCount);
+        reportStat("dropped_calls", droppedCalls);
+        reportStat("failed_calls", failedCalls);
+
+        if (callLimiter != null) {
+            SimboxDataGenerator.msg(callLimiter.describeLimits());
+            reportStat("limiter_total_limit", callLimiter.getTotalLimit());
+            reportStat("limiter_in_flight", callLimiter.getTotalInFlight());
+            reportStat("limiter_rejections", callLimiter.takeRejectionCount());
+            reportStat("limiter_overloads", callLimiter.takeOverloadCount());
+        }
 
+        if (client2Transport != null) {
+            SimboxDataGenerator.msg("Client2 " + client2Transport.takeLatencySummary());
+            reportStat("client2_outstanding", client2Transport.getOutstandingRequestCount());
+            reportStat("client2_failures", client2Transport.takeFailureCount());
+        }
+
+        // See if our sims have been noticed
+        if (simBoxIds.length > 0) {
+            reportSimboxDetectionStats(simBoxIds);
+        }
+
+        if (coordinator != null) {
+            coordinator.publish(false);
+        }
+
+        if (!isLeader()) {
+            return;
+        }
+
+        // See whether suspicious activity has been detected
+        controlClient.callProcedure(new ProcedureCallback() {
+            @Override
+            public void clientCallback(ClientResponse cr) throws Exception {
+                if (cr.getStatus() == ClientResponse.SUCCESS) {
+                    VoltTable resultsTable = cr.getResults()[0];
+
+                    while (resultsTable.advanceRow()) {
+                        String suspiciousBecause = resultsTable.getString("suspicious_because");
+                        long suspiciousCount = resultsTable.getLong("how_many");
+
+                        reportGlobalStat("suspicious_because_" + suspiciousBecause, suspiciousCount);
+
+                    }
                 }
+            }
+        }, "getSuspectedDeviceSummary");
+
+        reportAnomalousCells();
+        printServerStats();
+
+        if (coordinator != null) {
+            publishCoordinatedStats();
+        }
+
+        printApplicationStats(controlClient);
+
+    }
+
+    /**
+     * Pass the combined stats of every instance to 'statsPublisher'. Only the
+     * leader does this.
+     */
+    private void publishCoordinatedStats() {
+
+        HashMap<String, Long> totals = coordinator.collect();
+
+        for (Map.Entry<String, Long> entry : totals.entrySet()) {
+            statsPublisher.reportStat(entry.getKey(), entry.getValue());
+        }
+    }
 
+    /**
+     * @return true if we're on our own or are instance 0
+     */
+    private boolean isLeader() {
+        return coordinator == null || coordinator.isLeader();
+    }
+
+    /**
+     * Find out which of our sims have been flagged and report it for the whole
+     * fleet and for each box. The answer is dealt with when it arrives.
+     * 
+     * @param simBoxIds every sim in the fleet
+     * @throws NoConnectionsException
+     * @throws IOException
+     */
+    private void reportSimboxDetectionStats(long[] simBoxIds) throws NoConnectionsException, IOException {
+
+        controlClient.callProcedure(new ProcedureCallback() {
+            @Override
+            public void clientCallback(ClientResponse cr) throws Exception {
+                if (cr.getStatus() == ClientResponse.SUCCESS) {
+                    reportSimboxDetectionStats(cr.getResults()[0]);
+                }
             }
+        }, "getSimboxDeviceDetail", simBoxIds);
 
-            SimboxDataGenerator.msg("Run finished; ending sessions");
+    }
 
-            laststatstime = System.currentTimeMillis();
+    /**
+     * Report which of our sims have been flagged
+     * 
+     * @param resultsTable output of 'getSimboxDeviceDetail'
+     */
+    private void reportSimboxDetectionStats(VoltTable resultsTable) {
 
-            try {
-                voltClient.drain();
-            } catch (Exception e) {
-                SimboxDataGenerator.msg(e);
+        HashMap<String, Long> fleetTotals = new HashMap<String, Long>();
+        final ArrayList<Simbox> boxes = simboxFleet.getBoxes();
+        int[] detectedByBox = new int[boxes.size()];
+
+        while (resultsTable.advanceRow()) {
+
+            String suspiciousBecause = resultsTable.getString("suspicious_because");
+
+            if (suspiciousBecause == null) {
+                suspiciousBecause = "not_suspected";
+            } else {
+                Simbox theBox = simboxFleet.getSimboxFor(resultsTable.getLong("device_id"));
+                if (theBox != null) {
+                    detectedByBox[theBox.getFleetIndex()]++;
+                }
             }
 
-            SimboxDataGenerator.msg("done...");
+            Long oldCount = fleetTotals.get(suspiciousBecause);
+            fleetTotals.put(suspiciousBecause, oldCount == null ? 1 : oldCount.longValue() + 1);
+        }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+        for (Map.Entry<String, Long> entry : fleetTotals.entrySet()) {
+            reportStat("simboxstatus_" + entry.getKey(), entry.getValue());
         }
 
+        int boxesFullyDetected = 0;
+        int boxesPartlyDetected = 0;
+
+        for (int i = 0; i < detectedByBox.length; i++) {
+
+            Simbox theBox = boxes.get(i);
+
+            if (detectedByBox[i] > 0 && detectedByBox[i] >= theBox.getSimCount()) {
+                boxesFullyDetected++;
+            } else if (detectedByBox[i] > 0) {
+                boxesPartlyDetected++;
+            }
+
+            reportStat("simbox_" + theBox.getSimboxId() + "_detected", detectedByBox[i]);
+        }
+
+        SimboxDataGenerator.msg("Simboxes fully detected=" + boxesFullyDetected + ", partly detected="
+                + boxesPartlyDetected + ", undetected="
+                + (detectedByBox.length - boxesFullyDetected - boxesPartlyDetected));
+
+        reportStat("simboxes_fully_detected", boxesFullyDetected);
+        reportStat("simboxes_partly_detected", boxesPartlyDetected);
+
     }
 
     private void printDeviceStats(String message, long deviceId, Client voltClient)
@@ -458,6 +1014,44 @@ public class SimboxDataGenerator {
 
     }
 
+    /**
+     * Save our devices to 'snapshotFile', if we have one, so a later run can
+     * '--resume'. Waits for any background write to finish first. Only used
+     * when the event loop isn't running, as it blocks while the file is
+     * written.
+     */
+    private void saveSnapshot() {
+
+        if (snapshot == null) {
+            return;
+        }
+
+        while (!snapshot.capture(sessionMap)) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                SimboxDataGenerator.msg(e);
+                return;
+            }
+        }
+
+        writeSnapshot();
+    }
+
+    /**
+     * Write what 'snapshot' last captured.
+     */
+    private void writeSnapshot() {
+
+        try {
+            final long startSaveMs = System.currentTimeMillis();
+            snapshot.write();
+            reportStat("snapshot_save_ms", System.currentTimeMillis() - startSaveMs);
+        } catch (IOException e) {
+            SimboxDataGenerator.msg(e);
+        }
+    }
+
     /**
      * Move to next cell
      * 
@@ -495,7 +1089,7 @@ public class SimboxDataGenerator {
 
         HashMap<String, Long> cellRuns = new HashMap<String, Long>();
 
-        ClientResponseWithPartitionKey[] cr = voltClient.callAllPartitionProcedure("GetPartition6CellRuns");
+        ClientResponseWithPartitionKey[] cr = controlClient.callAllPartitionProcedure("GetPartition6CellRuns");
         for (int i = 0; i < cr.length; i++) {
             if (cr[i].response.getStatus() == ClientResponse.SUCCESS) {
                 VoltTable resultsTable = cr[i].response.getResults()[0];
@@ -539,7 +1133,7 @@ public class SimboxDataGenerator {
             it.remove();
         }
 
-        reportStat("largest_6_cell_cohort", maxValue, voltClient);
+        reportGlobalStat("largest_6_cell_cohort", maxValue);
 
         String[] cellIdsAsStringArray = new String[cellIds.size()];
 
@@ -547,99 +1141,148 @@ public class SimboxDataGenerator {
     }
 
     /**
-     * Get a number which isn't currently involved in making a call../
+     * Print the counters our procedures keep, added up across partitions.
      * 
-     * @param callingNumber the number we're calling from
-     * @return A number we can call...
+     * @throws ProcCallException
+     * @throws IOException
+     * @throws NoConnectionsException
      */
-    private UserDevice getNonbusyLegalNumber(UserDevice callingNumber) {
+    private void printServerStats() throws NoConnectionsException, IOException, ProcCallException {
 
-        for (int i = 0; i < RANDOM_SEARCH_ATTEMPTS; i++) {
+        TreeMap<String, Long> serverStats = new TreeMap<String, Long>();
 
-            if (callingNumber == null) {
+        ClientResponseWithPartitionKey[] cr = controlClient.callAllPartitionProcedure("GetServerStats");
 
-                long nonBusyNumber = r.nextInt(userCount);
+        for (int i = 0; i < cr.length; i++) {
+            if (cr[i].response.getStatus() == ClientResponse.SUCCESS) {
+                VoltTable resultsTable = cr[i].response.getResults()[0];
 
-                if (!evilSimBox.isEvil(nonBusyNumber)) {
+                while (resultsTable.advanceRow()) {
 
-                    UserDevice ourSession = sessionMap.get(nonBusyNumber);
+                    final String flaggedBecause = resultsTable.getString("flagged_because");
 
-                    if (!ourSession.isBusy()) {
-                        return ourSession;
+                    // Rows for a verdict change only count flags...
+                    if (flaggedBecause != null) {
+                        addServerStat(serverStats, "flagged_" + flaggedBecause, resultsTable.getLong("events"));
+                        continue;
                     }
 
+                    // Every other column is a counter
+                    for (int c = 2; c < resultsTable.getColumnCount(); c++) {
+                        addServerStat(serverStats, resultsTable.getColumnName(c), resultsTable.getLong(c));
+                    }
                 }
+            }
+        }
 
-            } else {
+        SimboxDataGenerator.msg("Server stats: " + serverStats);
+    }
 
-                long nextNumberToCall = callingNumber.getNextNumberToCall(evilSimBox, r, userCount);
+    /**
+     * @param serverStats
+     * @param statName
+     * @param statValue   amount to add to 'statName'
+     */
+    private static void addServerStat(TreeMap<String, Long> serverStats, String statName, long statValue) {
 
-                UserDevice ourSession = sessionMap.get(nextNumberToCall);
+        final Long total = serverStats.get(statName);
+        serverStats.put(statName, total == null ? statValue : total.longValue() + statValue);
+    }
 
-                if (!ourSession.isBusy()) {
-                    return ourSession;
-                }
+    /**
+     * Find the cells whose traffic has jumped recently using a directed
+     * procedure, and throw away per cell totals we no longer need.
+     * 
+     * @throws ProcCallException
+     * @throws IOException
+     * @throws NoConnectionsException
+     */
+    private void reportAnomalousCells() throws NoConnectionsException, IOException, ProcCallException {
 
+        final int recentMinutes = (int) parameterWatcher.getParameter("CELL_ANOMALY_RECENT_MINUTES", 5);
+        final int baselineMinutes = (int) parameterWatcher.getParameter("CELL_ANOMALY_BASELINE_MINUTES", 60);
+        final int keepMinutes = (int) Math.max(recentMinutes + baselineMinutes + 1,
+                parameterWatcher.getParameter("CELL_ACTIVITY_KEEP_MINUTES", 120));
+
+        HashMap<Long, CellActivity> cells = new HashMap<Long, CellActivity>();
+
+        ClientResponseWithPartitionKey[] cr = controlClient.callAllPartitionProcedure("GetAnomalousCells",
+                recentMinutes, baselineMinutes);
+
+        for (int i = 0; i < cr.length; i++) {
+            if (cr[i].response.getStatus() == ClientResponse.SUCCESS) {
+                CellActivity.addAll(cells, cr[i].response.getResults()[0]);
             }
         }
 
-        return null;
+        ArrayList<CellActivity> ranked = CellActivity.rank(cells, recentMinutes, baselineMinutes);
+
+        for (int i = 0; i < ranked.size() && i < ANOMALOUS_CELL_COUNT; i++) {
+            SimboxDataGenerator.msg("Anomalous cell: " + ranked.get(i));
+        }
+
+        if (!ranked.isEmpty()) {
+            reportGlobalStat("top_cell_anomaly_score", Math.round(ranked.get(0).getScore()));
+            reportGlobalStat("top_anomalous_cell_id", ranked.get(0).getCellId());
+        }
+
+        controlClient.callAllPartitionProcedure("PurgeCellActivity", keepMinutes);
     }
 
     /**
-     * Store a statistic
+     * Get a number which isn't currently involved in making a call../
      * 
-     * @param statName
-     * @param statValue
-     * @param c
-     * @throws NoConnectionsException
-     * @throws IOException
-     * @throws ProcCallException
+     * @param callingNumber the number we're calling from
+     * @return A number we can call, or null if every legal number is busy
      */
-    private static void reportStat(String statName, long statValue, Client c)
-            throws NoConnectionsException, IOException, ProcCallException {
+    private UserDevice getNonbusyLegalNumber(UserDevice callingNumber) {
+
+        if (callingNumber == null) {
+            return idleDevices.peekRandom(r);
+        }
+
+        // Callers have favourite numbers...
+        long nextNumberToCall = callingNumber.getNextNumberToCall(simboxFleet, r, firstDeviceId, userCount);
+
+        UserDevice ourSession = sessionMap.get(nextNumberToCall);
+
+        if (idleDevices.contains(ourSession)) {
+            return ourSession;
+        }
 
-        c.callProcedure("simbox_stats.UPSERT",  statName, statValue );
+        // ...but if it's busy they'll call someone else.
+        return idleDevices.peekRandomExcluding(r, callingNumber);
 
     }
 
     /**
-     * zero statistics
+     * Store a statistic about this instance. It's written to VoltDB by
+     * 'statsPublisher', after being added to the other instances' if there
+     * are any.
      * 
-     * @param c
-     * @throws NoConnectionsException
-     * @throws IOException
-     * @throws ProcCallException
+     * @param statName
+     * @param statValue
      */
-    private static void zeroStats(Client c) throws NoConnectionsException, IOException, ProcCallException {
+    private void reportStat(String statName, long statValue) {
 
-        c.callProcedure("clearStats");
+        if (coordinator != null) {
+            coordinator.reportStat(statName, statValue);
+        } else {
+            statsPublisher.reportStat(statName, statValue);
+        }
 
     }
 
     /**
+     * Store a statistic about the whole database. Only the leader works these
+     * out, so they go straight to 'statsPublisher'.
      * 
-     * Get a parameter
-     * 
-     * @param paramName
-     * @param defaultValue
-     * @param c
-     * @return parameter value or 'defaultValue' if not set
-     * @throws NoConnectionsException
-     * @throws IOException
-     * @throws ProcCallException
+     * @param statName
+     * @param statValue
      */
-    private static long getParam(String paramName, long defaultValue, Client c)
-            throws NoConnectionsException, IOException, ProcCallException {
-
-        ClientResponse cr = c.callProcedure("@AdHoc",
-                "SELECT parameter_value FROM simbox_parameters WHERE parameter_name = '" + paramName + "';");
+    private void reportGlobalStat(String statName, long statValue) {
 
-        if (cr.getResults()[0].advanceRow()) {
-            long newValue = cr.getResults()[0].getLong("parameter_value");
-            return newValue;
-        }
-        return defaultValue;
+        statsPublisher.reportStat(statName, statValue);
 
     }
 
@@ -651,9 +1294,9 @@ public class SimboxDataGenerator {
      */
     public static void main(String[] args) throws Exception {
 
-        if (args.length != 6) {
+        if (args.length < 6) {
             SimboxDataGenerator.msg(
-                    "Usage: SimboxDataGenerator hostnames userCount tpMs durationSeconds cellCount maxRandomCallLengthSeconds");
+                    "Usage: SimboxDataGenerator hostnames userCount tpMs durationSeconds cellCount maxRandomCallLengthSeconds [--fleet=count:size:moveMinutes:fakeCallPct[:selfCalls][;...]] [--paramRefreshSeconds=n] [--seed=n] [--record=eventLogFile] [--bootstrap] [--snapshot=file [--resume]] [--targetP99Ms=n] [--maxWaitMs=n] [--client2 [--requestLimit=n]] [--instances=n --instanceId=n [--coordinationDir=dir]]");
             System.exit(1);
         }
 
@@ -664,15 +1307,86 @@ public class SimboxDataGenerator {
         int cellCount = Integer.parseInt(args[4]);
         int maxRandomCallLengthSeconds = Integer.parseInt(args[5]);
 
+        HashMap<String, String> options = getOptions(args, 6);
+        String fleetSpec = getOption(options, "fleet", SimboxFleet.DEFAULT_SPEC);
+        int paramRefreshSeconds = Integer
+                .parseInt(getOption(options, "paramRefreshSeconds", "" + DEFAULT_PARAM_REFRESH_SECONDS));
+        String seedString = getOption(options, "seed", null);
+        Long seed = seedString == null ? null : Long.valueOf(seedString);
+        String eventLogFile = getOption(options, "record", null);
+        boolean bootstrap = Boolean.parseBoolean(getOption(options, "bootstrap", "false"));
+        String snapshotFile = getOption(options, "snapshot", null);
+        boolean resume = Boolean.parseBoolean(getOption(options, "resume", "false"));
+        int targetP99Ms = Integer.parseInt(getOption(options, "targetP99Ms", "" + DEFAULT_TARGET_P99_MS));
+        int maxWaitMs = Integer.parseInt(getOption(options, "maxWaitMs", "" + DEFAULT_MAX_WAIT_MS));
+        boolean useClient2 = Boolean.parseBoolean(getOption(options, "client2", "false"));
+        int client2RequestLimit = useClient2
+                ? Integer.parseInt(getOption(options, "requestLimit", "" + Client2Transport.DEFAULT_REQUEST_LIMIT))
+                : 0;
+        int instances = Integer.parseInt(getOption(options, "instances", "1"));
+        GeneratorCoordinator coordinator = null;
+
+        if (instances > 1) {
+            coordinator = new GeneratorCoordinator(getOption(options, "coordinationDir", DEFAULT_COORDINATION_DIR),
+                    Integer.parseInt(getOption(options, "instanceId", "0")), instances);
+        }
+
         msg("[hostnames userCount tpMs durationSeconds cellCount maxRandomCallLengthSeconds ]="
                 + Arrays.toString(args));
         SimboxDataGenerator pdg = new SimboxDataGenerator(hostnames, userCount, tpMs, durationSeconds, cellCount,
-                maxRandomCallLengthSeconds);
+                maxRandomCallLengthSeconds, fleetSpec, paramRefreshSeconds, seed, eventLogFile,
+                bootstrap, snapshotFile, resume, targetP99Ms, maxWaitMs, client2RequestLimit, coordinator);
 
         pdg.run();
 
     }
 
+    /**
+     * Turn optional '--name=value' arguments into a map.
+     * 
+     * @param args
+     * @param firstOption index of the first optional argument
+     * @return name/value pairs
+     */
+    static HashMap<String, String> getOptions(String[] args, int firstOption) {
+
+        HashMap<String, String> options = new HashMap<String, String>();
+
+        for (int i = firstOption; i < args.length; i++) {
+
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected --name=value, got '" + args[i] + "'");
+            }
+
+            int equalsAt = args[i].indexOf('=');
+
+            if (equalsAt < 0) {
+                options.put(args[i].substring(2), "true");
+            } else {
+                options.put(args[i].substring(2, equalsAt), args[i].substring(equalsAt + 1));
+            }
+        }
+
+        return options;
+    }
+
+    /**
+     * @param options
+     * @param name
+     * @param defaultValue
+     * @return option 'name' or 'defaultValue' if it wasn't given
+     */
+    static String getOption(HashMap<String, String> options, String name, String defaultValue) {
+
+        String value = options.get(name);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        return value;
+    }
+
     /**
      * 
      * Connect to VoltDB using native APIS
@@ -681,7 +1395,7 @@ public class SimboxDataGenerator {
      * @return
      * @throws Exception
      */
-    private static Client connectVoltDB(String commaDelimitedHostnames) throws Exception {
+    static Client connectVoltDB(String commaDelimitedHostnames) throws Exception {
         Client client = null;
         ClientConfig config = null;
 
@@ -0,0 +1,424 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2022 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.simbox;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.voltdb.client.NoConnectionsException;
+
+/**
+ * A group of simboxes, each with its own size, movement cadence and self call
+ * behaviour.
+ * <p>
+ * A fleet is described by a spec string made up of one or more groups
+ * separated by ';'. Each group is
+ * <code>count:size:moveMinutes:fakeCallPct[:selfCalls]</code>. If selfCalls
+ * is left out the boxes follow the SIMBOX_CALLS_ITSELF parameter. Boxes are
+ * spread evenly across the cells when they're created.
+ * <p>
+ * When several generator instances share a run they all parse the same spec,
+ * so every box gets the same id and starting cell everywhere. Each instance
+ * only builds and fills the boxes it owns, which are those where simboxId %
+ * instances == instanceId.
+ *
+ */
+public class SimboxFleet {
+
+    /**
+     * A fleet of one box that behaves like the original hard coded simbox
+     */
+    public static final String DEFAULT_SPEC = "1:" + Simbox.SIMBOX_SIZE + ":" + Simbox.DEFAULT_MOVE_MINUTES + ":"
+            + Simbox.DEFAULT_FAKE_CALL_PCT;
+
+    /**
+     * Our boxes, in simboxId order
+     */
+    private final ArrayList<Simbox> boxes = new ArrayList<Simbox>();
+
+    /**
+     * Which box each sim lives in
+     */
+    private final HashMap<Long, Simbox> boxBySim = new HashMap<Long, Simbox>();
+
+    /**
+     * Boxes ordered by when they're next due to move, so we only ever look at
+     * the one at the front.
+     */
+    private final PriorityQueue<Simbox> moveQueue = new PriorityQueue<Simbox>(11, new Comparator<Simbox>() {
+        @Override
+        public int compare(Simbox o1, Simbox o2) {
+            return Long.compare(o1.getNextMoveTimeMs(), o2.getNextMoveTimeMs());
+        }
+    });
+
+    /**
+     * First box that may still have room
+     */
+    private int fillIndex = 0;
+
+    /**
+     * Total number of sims all our boxes can hold
+     */
+    private int capacity = 0;
+
+    /**
+     * Number of cells in the network
+     */
+    private final int cellCount;
+
+    /**
+     * Build a fleet from a spec string.
+     *
+     * @param spec
+     * @param cellCount
+     * @param wheel
+     * @param r         each box gets its own Random, seeded from this one
+     * @throws IllegalArgumentException if the spec can't be parsed
+     */
+    public SimboxFleet(String spec, int cellCount, CallCompletionWheel wheel, Random r) {
+        this(spec, cellCount, wheel, r, 0, 1);
+    }
+
+    /**
+     * Build the part of a fleet that belongs to one generator instance.
+     *
+     * @param spec
+     * @param cellCount
+     * @param wheel
+     * @param r          each box gets its own Random, seeded from this one
+     * @param instanceId
+     * @param instances
+     * @throws IllegalArgumentException if the spec can't be parsed
+     */
+    public SimboxFleet(String spec, int cellCount, CallCompletionWheel wheel, Random r, int instanceId,
+            int instances) {
+
+        super();
+        this.cellCount = cellCount;
+
+        String[] groups = spec.split(";");
+        int boxCount = 0;
+        int nextSimboxId = 0;
+
+        for (int i = 0; i < groups.length; i++) {
+            boxCount += parseInt(groups[i], groups[i].split(":"), 0);
+        }
+
+        for (int i = 0; i < groups.length; i++) {
+
+            String[] fields = groups[i].split(":");
+
+            if (fields.length < 4 || fields.length > 5) {
+                throw new IllegalArgumentException(
+                        "Simbox group '" + groups[i] + "' should be count:size:moveMinutes:fakeCallPct[:selfCalls]");
+            }
+
+            final int count = parseInt(groups[i], fields, 0);
+            final int size = parseInt(groups[i], fields, 1);
+            final int moveMinutes = parseInt(groups[i], fields, 2);
+            final int fakeCallPct = parseInt(groups[i], fields, 3);
+
+            Boolean selfCalls = null;
+
+            if (fields.length == 5) {
+                selfCalls = Boolean.valueOf(fields[4]);
+            }
+
+            for (int j = 0; j < count; j++) {
+
+                final int simboxId = nextSimboxId++;
+
+                if (simboxId % instances != instanceId) {
+                    continue;
+                }
+
+                final int startCell = (int) (((long) simboxId * cellCount) / boxCount) % cellCount;
+
+                Simbox newBox = new Simbox(simboxId, startCell, size, moveMinutes, fakeCallPct, selfCalls, wheel,
+                        new Random(r.nextLong()));
+                newBox.setFleetIndex(boxes.size());
+                boxes.add(newBox);
+                moveQueue.add(newBox);
+                capacity += size;
+            }
+
+        }
+
+        if (boxCount == 0) {
+            throw new IllegalArgumentException("Simbox fleet '" + spec + "' has no boxes");
+        }
+
+    }
+
+    /**
+     * @param group
+     * @param fields
+     * @param index
+     * @return fields[index] as an int
+     */
+    private static int parseInt(String group, String[] fields, int index) {
+
+        try {
+            return Integer.parseInt(fields[index].trim());
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Can't parse field " + index + " of simbox group '" + group + "'");
+        }
+
+    }
+
+    /**
+     * Put a sim into the first box that has room.
+     *
+     * @param theDevice
+     * @return true if there was room
+     */
+    public boolean addSimIfRoom(UserDevice theDevice) {
+
+        while (fillIndex < boxes.size() && boxes.get(fillIndex).isFull()) {
+            fillIndex++;
+        }
+
+        if (fillIndex == boxes.size()) {
+            return false;
+        }
+
+        Simbox theBox = boxes.get(fillIndex);
+        theBox.addSim(theDevice);
+        boxBySim.put(theDevice.getDeviceId(), theBox);
+
+        return true;
+    }
+
+    /**
+     * Put a sim back into the box it was in when a snapshot was taken.
+     *
+     * @param theDevice
+     * @param simboxId
+     */
+    void restoreSim(UserDevice theDevice, int simboxId) {
+
+        Simbox theBox = getBox(simboxId);
+
+        if (theBox == null) {
+            throw new IllegalArgumentException("Simbox " + simboxId + " isn't in this fleet");
+        }
+
+        theBox.addSim(theDevice);
+        boxBySim.put(theDevice.getDeviceId(), theBox);
+    }
+
+    /**
+     * @param simboxId
+     * @return the box with id 'simboxId', or null if we don't own it
+     */
+    public Simbox getBox(int simboxId) {
+
+        for (int i = 0; i < boxes.size(); i++) {
+            if (boxes.get(i).getSimboxId() == simboxId) {
+                return boxes.get(i);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return true if every box is full
+     */
+    public boolean isFull() {
+        return boxBySim.size() >= capacity;
+    }
+
+    /**
+     * Is this sim in any of our boxes?
+     *
+     * @param deviceId
+     * @return 'true' if it is.
+     */
+    public boolean isEvil(long deviceId) {
+        return boxBySim.containsKey(deviceId);
+    }
+
+    /**
+     * @param deviceId
+     * @return the box 'deviceId' is in, or null
+     */
+    public Simbox getSimboxFor(long deviceId) {
+        return boxBySim.get(deviceId);
+    }
+
+    /**
+     * Pick a box to try and route the next international call.
+     *
+     * @param r
+     * @return a box, or null if we don't own any
+     */
+    public Simbox pickBox(Random r) {
+
+        if (boxes.isEmpty()) {
+            return null;
+        }
+
+        return boxes.get(r.nextInt(boxes.size()));
+    }
+
+    /**
+     * Move every box whose time is up to its next cell.
+     *
+     * @param nowMs
+     * @param sink
+     * @return how many sims moved
+     * @throws NoConnectionsException
+     * @throws IOException
+     */
+    public int moveBoxesThatAreDue(long nowMs, DeviceEventSink sink) throws NoConnectionsException, IOException {
+
+        int simsMoved = 0;
+
+        while (!moveQueue.isEmpty() && moveQueue.peek().getNextMoveTimeMs() < nowMs) {
+
+            Simbox dueBox = moveQueue.poll();
+            dueBox.moveCell((dueBox.getCellId() + 1) % cellCount, sink);
+            simsMoved += dueBox.getSimCount();
+            moveQueue.add(dueBox);
+        }
+
+        return simsMoved;
+    }
+
+    /**
+     * Change self call behaviour for every box that doesn't have it fixed.
+     *
+     * @param selfCalls
+     */
+    public void setSelfCalls(boolean selfCalls) {
+
+        for (int i = 0; i < boxes.size(); i++) {
+            boxes.get(i).setSelfCalls(selfCalls);
+        }
+    }
+
+    /**
+     * @return our boxes
+     */
+    public ArrayList<Simbox> getBoxes() {
+        return boxes;
+    }
+
+    /**
+     * @return how many sims we can hold
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return How many sims we have
+     */
+    public int getSimCount() {
+        return boxBySim.size();
+    }
+
+    /**
+     * @return every sim in every box
+     */
+    public long[] getSimList() {
+
+        long[] simList = new long[boxBySim.size()];
+        int i = 0;
+
+        for (Long deviceId : boxBySim.keySet()) {
+            simList[i++] = deviceId.longValue();
+        }
+
+        return simList;
+    }
+
+    /**
+     * @return total fraudulent calls
+     */
+    public long getEvilCallCount() {
+
+        long total = 0;
+
+        for (int i = 0; i < boxes.size(); i++) {
+            total += boxes.get(i).getEvilCallCount();
+        }
+
+        return total;
+    }
+
+    /**
+     * @return total fake calls
+     */
+    public long getFakeCallCount() {
+
+        long total = 0;
+
+        for (int i = 0; i < boxes.size(); i++) {
+            total += boxes.get(i).getFakeCallCount();
+        }
+
+        return total;
+    }
+
+    /**
+     * @return total projected profit
+     */
+    public float getProjectedProfit() {
+
+        float total = 0;
+
+        for (int i = 0; i < boxes.size(); i++) {
+            total += boxes.get(i).getProjectedProfit();
+        }
+
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("SimboxFleet [boxes=");
+        builder.append(boxes.size());
+        builder.append(", sims=");
+        builder.append(boxBySim.size());
+        builder.append(", capacity=");
+        builder.append(capacity);
+        builder.append(", evilCallCount=");
+        builder.append(getEvilCallCount());
+        builder.append(", fakeCallCount=");
+        builder.append(getFakeCallCount());
+        builder.append(", projectedProfit=");
+        builder.append(getProjectedProfit());
+        builder.append("]");
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,144 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2022 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.simbox;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ProcedureCallback;
+
+/**
+ * Collects statistics from any thread and writes them to 'simbox_stats' in
+ * one asynchronous 'PublishStats' call. Meant to be run periodically on a
+ * scheduler thread, so whoever reports a stat never waits for VoltDB.
+ *
+ */
+public class StatsPublisher implements Runnable {
+
+    /**
+     * Our handle to VoltDB
+     */
+    private final Client voltClient;
+
+    /**
+     * Stats reported since the last publish
+     */
+    private final ConcurrentHashMap<String, Long> pendingStats = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Set when a new reporting interval starts, so that old values are zeroed
+     * by the next publish.
+     */
+    private final AtomicBoolean clearPending = new AtomicBoolean(false);
+
+    /**
+     * Callback for 'PublishStats'
+     */
+    private final ProcedureCallback publishCallback = new ProcedureCallback() {
+        @Override
+        public void clientCallback(ClientResponse arg0) throws Exception {
+            if (arg0.getStatus() != ClientResponse.SUCCESS) {
+                SimboxDataGenerator.msg("PublishStats failed: " + arg0.getStatusString());
+            }
+        }
+    };
+
+    /**
+     * @param voltClient
+     */
+    public StatsPublisher(Client voltClient) {
+        super();
+        this.voltClient = voltClient;
+    }
+
+    /**
+     * Store a statistic. It'll be written next time we publish.
+     * 
+     * @param statName
+     * @param statValue
+     */
+    public void reportStat(String statName, long statValue) {
+        pendingStats.put(statName, statValue);
+    }
+
+    /**
+     * Start a new reporting interval. Every existing stat is zeroed when we
+     * next publish.
+     */
+    public void startInterval() {
+        clearPending.set(true);
+    }
+
+    @Override
+    public void run() {
+
+        try {
+            publish();
+        } catch (Exception e) {
+            SimboxDataGenerator.msg(e);
+        }
+    }
+
+    /**
+     * Send everything reported so far to VoltDB in one call.
+     * 
+     * @throws IOException
+     */
+    public void publish() throws IOException {
+
+        final boolean clearFirst = clearPending.getAndSet(false);
+
+        if (!clearFirst && pendingStats.isEmpty()) {
+            return;
+        }
+
+        ArrayList<String> names = new ArrayList<String>(pendingStats.size());
+        ArrayList<Long> values = new ArrayList<Long>(pendingStats.size());
+
+        for (Map.Entry<String, Long> entry : pendingStats.entrySet()) {
+
+            // Only remove it if nobody has updated it since we looked
+            if (pendingStats.remove(entry.getKey(), entry.getValue())) {
+                names.add(entry.getKey());
+                values.add(entry.getValue());
+            }
+        }
+
+        long[] valueArray = new long[values.size()];
+
+        for (int i = 0; i < valueArray.length; i++) {
+            valueArray[i] = values.get(i);
+        }
+
+        voltClient.callProcedure(publishCallback, "PublishStats", clearFirst ? 1 : 0,
+                names.toArray(new String[names.size()]), valueArray);
+
+    }
+
+}
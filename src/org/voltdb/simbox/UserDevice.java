@@ -29,9 +29,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Random;
 
-import org.voltdb.client.Client;
 import org.voltdb.client.NoConnectionsException;
-import org.voltdb.types.TimestampType;
 
 /**
  * A simulated phone on our network
@@ -67,18 +65,13 @@ public class UserDevice {
     /**
      * When the current call ends. Will be in past if call is over.
      */
-    private Date callEndTimeMs = new Date();
+    private long callEndTimeMs = System.currentTimeMillis();
     
     /**
      * When the cell last moved.
      */
     private Date lastCellMove = new Date();
     
-    /**
-     * Used by async DB calls
-     */
-    private ComplainOnErrorCallback coec = new ComplainOnErrorCallback();
-    
     /**
      * List of popular numbers. When asked to make a call we start at element 0 and 
      * if a random number <= 100 is < POPULAR_NUMBER_PCT we pick it. If we run off 
@@ -87,6 +80,26 @@ public class UserDevice {
      */
     private ArrayList<Long> popularNumbers = new ArrayList<Long>(POPULAR_NUMBER_LIST_SIZE);
 
+    /**
+     * Pool we go back to when we aren't in a call. May be null.
+     */
+    private IdleDevicePool homePool = null;
+
+    /**
+     * Wheel that tells our pool when our call ends. May be null.
+     */
+    private CallCompletionWheel wheel = null;
+
+    /**
+     * Our position in 'homePool', or -1 if we're busy. Maintained by IdleDevicePool.
+     */
+    int idleSlot = -1;
+
+    /**
+     * true if we're waiting for 'wheel' to tell us a call has ended
+     */
+    boolean onWheel = false;
+
     /**
      * Create a device in a cell.
      * @param deviceId
@@ -105,25 +118,21 @@ public class UserDevice {
      * @param r
      * @param calledNumber
      * @param durationSeconds
-     * @param c
+     * @param sink
      * @throws NoConnectionsException
      * @throws IOException
      */
-    public void makeCall(Random r, UserDevice calledNumber, int durationSeconds, Client c)
+    public void makeCall(Random r, UserDevice calledNumber, int durationSeconds, DeviceEventSink sink)
             throws NoConnectionsException, IOException {
 
-        callEndTimeMs = new Date(System.currentTimeMillis() + (1000 * durationSeconds));
-        TimestampType startTime = new TimestampType(new Date());
-
-        long otherNumber = calledNumber.getDeviceId();
-        String status = "E";
+        final long startMs = System.currentTimeMillis();
+        busyUntil(startMs + (1000 * durationSeconds));
 
         // make sure called number adds calling number to its popular
         // numbers list where appropriate, and notes that it's now busy
         calledNumber.recordBeingCalled(this.getDeviceId(), durationSeconds);
 
-        c.callProcedure(coec, "ReportDeviceActivity", deviceId, startTime, durationSeconds, "O", otherNumber, status);
-        c.callProcedure(coec, "ReportDeviceActivity", otherNumber, startTime, durationSeconds, "I", deviceId, status);
+        sink.reportCall(deviceId, calledNumber.getDeviceId(), startMs, durationSeconds);
 
     }
 
@@ -132,7 +141,7 @@ public class UserDevice {
      */
     public boolean isBusy() {
 
-        if (callEndTimeMs.getTime() >= System.currentTimeMillis()) {
+        if (callEndTimeMs >= System.currentTimeMillis()) {
             return true;
         }
 
@@ -145,8 +154,56 @@ public class UserDevice {
      */
     public void areBusyUntil(Date callEndTime) {
 
+        busyUntil(callEndTime.getTime());
+
+    }
+
+    /**
+     * Note we're busy until 'callEndTime' and, if we're being tracked, take
+     * ourselves out of our idle pool until then.
+     * @param callEndTime
+     */
+    private void busyUntil(long callEndTime) {
+
         callEndTimeMs = callEndTime;
 
+        if (wheel != null) {
+            wheel.busyUntil(this, callEndTime);
+        }
+    }
+
+    /**
+     * Start tracking our busy/idle state. We go into 'homePool' now and come back
+     * to it whenever 'wheel' says our call has ended.
+     * @param homePool
+     * @param wheel
+     */
+    public void trackIdleState(IdleDevicePool homePool, CallCompletionWheel wheel) {
+
+        if (this.homePool != null) {
+            this.homePool.remove(this);
+        }
+
+        this.homePool = homePool;
+        this.wheel = wheel;
+
+        if (!onWheel) {
+            homePool.add(this);
+        }
+    }
+
+    /**
+     * @return the pool we return to when idle
+     */
+    public IdleDevicePool getHomePool() {
+        return homePool;
+    }
+
+    /**
+     * @return when our current (or last) call ends
+     */
+    public long getCallEndTimeMs() {
+        return callEndTimeMs;
     }
 
     /**
@@ -211,6 +268,20 @@ public class UserDevice {
         return false;
     }
 
+    /**
+     * @return the createDate
+     */
+    public Date getCreateDate() {
+        return createDate;
+    }
+
+    /**
+     * @return the numbers we call most, most popular first
+     */
+    public ArrayList<Long> getPopularNumbers() {
+        return popularNumbers;
+    }
+
     /**
      * @param createDate the createDate to set
      */
@@ -221,12 +292,13 @@ public class UserDevice {
     /**
      * Get the nect number the device should call. Strong preference is given to
      * numbers we've called before. Otherwise we pick a random non-simbox one.
-     * @param evilSimBox used so we can make sure new number is good
+     * @param simboxFleet used so we can make sure new number is good
      * @param r Random
+     * @param firstDeviceId first of the possible numbers to call
      * @param userCount range of possible numbers to call
      * @return
      */
-    public long getNextNumberToCall(Simbox evilSimBox, Random r, int userCount) {
+    public long getNextNumberToCall(SimboxFleet simboxFleet, Random r, long firstDeviceId, int userCount) {
 
         // See if we can find a choice from our popular numbers list.
         // We start at the top and roll a dice each time...
@@ -240,9 +312,9 @@ public class UserDevice {
         // work provided the number of devices in the simbox is < the total number of devices.
         while (true) {
 
-            long newNumber = r.nextInt(userCount);
+            long newNumber = firstDeviceId + r.nextInt(userCount);
 
-            if (!evilSimBox.isEvil(newNumber) && (newNumber != deviceId)) {
+            if (!simboxFleet.isEvil(newNumber) && (newNumber != deviceId)) {
 
                 // Add new number to our list
                 if (popularNumbers.size() < POPULAR_NUMBER_LIST_SIZE) {
@@ -265,7 +337,7 @@ public class UserDevice {
      */
     public void recordBeingCalled(long callingDeviceId, int duration) {
 
-        callEndTimeMs = new Date(System.currentTimeMillis() + (1000 * duration));
+        busyUntil(System.currentTimeMillis() + (1000 * duration));
 
         // Add number to our popular number list if it has space. This means that the first
         // people we tend to call are they first people who called us...
@@ -0,0 +1,114 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2022 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.simbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that we only ever commit up to the lowest offset VoltDB hasn't
+ * answered for, and rewind to it after a lost connection.
+ *
+ */
+public class CdrKafkaIngestorTest {
+
+    @Test
+    public void commitsUpToLowestPendingOffset() {
+
+        CdrKafkaIngestor.PartitionProgress progress = new CdrKafkaIngestor.PartitionProgress();
+
+        progress.submitted(10);
+        progress.submitted(11);
+        progress.submitted(12);
+        assertEquals(10, progress.getCommittableOffset());
+
+        // Answers arriving out of order mustn't move us past 10...
+        progress.acknowledged(12);
+        progress.acknowledged(11);
+        assertEquals(10, progress.getCommittableOffset());
+
+        progress.acknowledged(10);
+        assertEquals(13, progress.getCommittableOffset());
+    }
+
+    @Test
+    public void commitsAfterHighestWhenNothingIsPending() {
+
+        CdrKafkaIngestor.PartitionProgress progress = new CdrKafkaIngestor.PartitionProgress();
+        assertEquals(-1, progress.highestSubmitted);
+
+        progress.submitted(0);
+        progress.acknowledged(0);
+        assertEquals(1, progress.getCommittableOffset());
+    }
+
+    @Test
+    public void lostOffsetStaysPendingUntilRewound() {
+
+        CdrKafkaIngestor.PartitionProgress progress = new CdrKafkaIngestor.PartitionProgress();
+
+        progress.submitted(5);
+        progress.submitted(6);
+        progress.submitted(7);
+
+        // 5 lost its connection while 6 is still outstanding
+        progress.connectionLost(5);
+        progress.acknowledged(7);
+        assertEquals(5, progress.getCommittableOffset());
+        assertFalse(progress.isReadyToRewind());
+
+        progress.acknowledged(6);
+        assertEquals(5, progress.getCommittableOffset());
+        assertTrue(progress.isReadyToRewind());
+    }
+
+    @Test
+    public void rewindRestartsFromLowestLostOffset() {
+
+        CdrKafkaIngestor.PartitionProgress progress = new CdrKafkaIngestor.PartitionProgress();
+
+        progress.submitted(5);
+        progress.submitted(6);
+        progress.submitted(7);
+        progress.submitted(8);
+
+        progress.acknowledged(5);
+        progress.connectionLost(7);
+        progress.connectionLost(6);
+        progress.acknowledged(8);
+
+        // 6, 7 and 8 are read and sent again, in order
+        assertEquals(6, progress.rewind());
+        assertFalse(progress.lost);
+        assertEquals(6, progress.getCommittableOffset());
+
+        progress.submitted(6);
+        progress.acknowledged(6);
+        assertEquals(7, progress.getCommittableOffset());
+    }
+
+}
@@ -0,0 +1,171 @@
+package simbox;
+
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Date;
+import java.util.HashMap;
+
+import org.junit.Test;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdbse.rules.RuleSet;
+
+/**
+ * Checks that RulePlan only rules out stacks RuleSet can't trip.
+ *
+ */
+public class RulePlanTest {
+
+    /**
+     * Score everything by busyness, like DeviceDetectionProcedure does for
+     * stacks it doesn't know
+     */
+    private static final HashMap<String, String> NO_SCORE_FEATURES = new HashMap<String, String>();
+
+    private static final int BUSYNESS = RulePlan.OUTGOING_SUMMARY | RulePlan.INCOMING_SUMMARY;
+
+    @Test
+    public void mixedModeStackTakesModeFromFirstRow() {
+
+        VoltTable rules = newRuleTable();
+        addRule(rules, 1, "OR", "mixed", "thisDeviceIsSuspicious", "=", 1d, null);
+        addRule(rules, 2, "AND", "mixed", "actualBusyInCallSuspicuousPct", ">", 1d, null);
+
+        RulePlan plan = new RulePlan(rules, NO_SCORE_FEATURES, "actualBusynessPercentage");
+
+        // The first row says OR, so the second rule can still trip it
+        assertEquals(RulePlan.SUSPICIOUS_INCOMING_SUMMARY | BUSYNESS, plan.getNeededQueries(freeFeatures(0)));
+    }
+
+    @Test
+    public void andStackIsRuledOutByItsFirstRule() {
+
+        VoltTable rules = newRuleTable();
+        addRule(rules, 1, "AND", "cohort", "thisDeviceIsSuspicious", "=", 1d, null);
+        addRule(rules, 2, "AND", "cohort", "actualBusyInCallPct", ">=", 1d, null);
+
+        RulePlan plan = new RulePlan(rules, NO_SCORE_FEATURES, "actualBusynessPercentage");
+
+        assertEquals(0, plan.getNeededQueries(freeFeatures(0)));
+        assertEquals(BUSYNESS, plan.getNeededQueries(freeFeatures(1)));
+    }
+
+    @Test
+    public void andStackIsNotRuledOutByALaterRule() {
+
+        VoltTable rules = newRuleTable();
+        addRule(rules, 1, "AND", "busy", "actualBusyInCallPct", ">=", 1d, null);
+        addRule(rules, 2, "AND", "busy", "thisDeviceIsSuspicious", "=", 1d, null);
+
+        RulePlan plan = new RulePlan(rules, NO_SCORE_FEATURES, "actualBusynessPercentage");
+
+        assertEquals(BUSYNESS, plan.getNeededQueries(freeFeatures(0)));
+    }
+
+    @Test
+    public void ruleSetTripsAndStackOnItsFirstRule() throws Exception {
+
+        VoltTable rules = newRuleTable();
+        addRule(rules, 1, "AND", "busy", "actualBusyInCallPct", ">=", 1d, null);
+        addRule(rules, 2, "AND", "busy", "thisDeviceIsSuspicious", "=", 1d, null);
+
+        RuleSet rs = new RuleSet("SIMBOX", rules, new Date(System.currentTimeMillis() + 60000));
+
+        HashMap<String, Double> values = freeFeatures(0);
+        values.put("actualBusyInCallPct", 5d);
+
+        // This is why a failing free rule after the first can't rule a stack out
+        assertEquals("busy", rs.evaluate(values, new HashMap<String, String>()));
+    }
+
+    @Test
+    public void stackRestartsWhenNameReappears() {
+
+        VoltTable rules = newRuleTable();
+        addRule(rules, 1, "AND", "s1", "thisDeviceIsSuspicious", "=", 1d, null);
+        addRule(rules, 2, "OR", "s2", "otherNumberIsSuspicious", "=", 1d, null);
+        addRule(rules, 3, "OR", "s1", "actualBusyInCallSuspicuousPct", ">", 1d, null);
+
+        RulePlan plan = new RulePlan(rules, NO_SCORE_FEATURES, "outCallTopBottomNRatio");
+
+        // The second 's1' is an OR stack of its own, so its rule still counts
+        assertEquals(RulePlan.SUSPICIOUS_INCOMING_SUMMARY | RulePlan.NUMBER_COUNTS,
+                plan.getNeededQueries(freeFeatures(0)));
+    }
+
+    @Test
+    public void thresholdExpressionsAreJudgedFromFreeFeatures() {
+
+        VoltTable rules = newRuleTable();
+        addRule(rules, 1, "AND", "ratio", "topBottomNRatio", "<", null, "busynessPercentage");
+        addRule(rules, 2, "AND", "ratio", "outCallTopBottomNRatio", "<", null, "topBottomNRatio");
+
+        RulePlan plan = new RulePlan(rules, NO_SCORE_FEATURES, "outCallTopBottomNRatio");
+
+        HashMap<String, Double> free = freeFeatures(0);
+        free.put("topBottomNRatio", 10d);
+        free.put("busynessPercentage", 10d);
+        assertEquals(0, plan.getNeededQueries(free));
+
+        free.put("busynessPercentage", 11d);
+        assertEquals(RulePlan.NUMBER_COUNTS, plan.getNeededQueries(free));
+    }
+
+    /**
+     * @param thisDeviceIsSuspicious
+     * @return features we know without running any queries
+     */
+    private static HashMap<String, Double> freeFeatures(double thisDeviceIsSuspicious) {
+
+        HashMap<String, Double> free = new HashMap<String, Double>();
+        free.put("thisDeviceIsSuspicious", thisDeviceIsSuspicious);
+        free.put("otherNumberIsSuspicious", 0d);
+        return free;
+    }
+
+    /**
+     * @return an empty table shaped like the output of RuleSet.GET_RULE_SET
+     */
+    private static VoltTable newRuleTable() {
+        return new VoltTable(new VoltTable.ColumnInfo("RULESET_NAME", VoltType.STRING),
+                new VoltTable.ColumnInfo("ISAND", VoltType.STRING),
+                new VoltTable.ColumnInfo("STACK_NAME", VoltType.STRING),
+                new VoltTable.ColumnInfo("SEQNO", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("RULE_FIELD", VoltType.STRING),
+                new VoltTable.ColumnInfo("RULE_OPERATOR", VoltType.STRING),
+                new VoltTable.ColumnInfo("THRESHOLD_FLOAT", VoltType.FLOAT),
+                new VoltTable.ColumnInfo("THRESHOLD_STRING", VoltType.STRING),
+                new VoltTable.ColumnInfo("THRESHOLD_EXPRESSION", VoltType.STRING));
+    }
+
+    private static void addRule(VoltTable rules, long seqno, String isAnd, String stackName, String ruleField,
+            String operator, Double threshold, String thresholdExpression) {
+        rules.addRow("SIMBOX", isAnd, stackName, seqno, ruleField, operator, threshold, null, thresholdExpression);
+    }
+
+}